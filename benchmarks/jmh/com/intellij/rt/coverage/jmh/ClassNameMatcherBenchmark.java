@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.util.ClassNamePatternMatcher;
+import com.intellij.rt.coverage.util.ClassNameUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of matching class names against include/exclude patterns: a list of regular expressions
+ * versus the compiled matcher. Most of the patterns are package prefixes, some are real regular expressions.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class ClassNameMatcherBenchmark {
+  @Param({"20", "200"})
+  public int patternsCount;
+
+  private final String[] myClassNames = new String[4096];
+  private List<Pattern> myPatterns;
+  private ClassNamePatternMatcher myMatcher;
+
+  @Setup
+  public void setup() {
+    myPatterns = new ArrayList<Pattern>();
+    for (int i = 0; i < patternsCount; i++) {
+      final String regex = i % 4 == 3
+          ? "com\\.acme\\.module" + i + "\\..*Test"
+          : "com\\.acme\\.module" + i + "\\..*";
+      myPatterns.add(Pattern.compile(regex));
+    }
+    myMatcher = new ClassNamePatternMatcher(myPatterns);
+    for (int i = 0; i < myClassNames.length; i++) {
+      myClassNames[i] = "com.acme.module" + i % (2 * patternsCount) + ".impl.sub" + i % 7 + ".Class" + i + (i % 3 == 0 ? "Test" : "");
+    }
+  }
+
+  @Benchmark
+  public int regexList() {
+    int result = 0;
+    for (String className : myClassNames) {
+      if (ClassNameUtil.matchesPatterns(className, myPatterns)) result++;
+    }
+    return result;
+  }
+
+  @Benchmark
+  public int compiledMatcher() {
+    int result = 0;
+    for (String className : myClassNames) {
+      if (myMatcher.matches(className)) result++;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.jmh.hot.Point;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of calling tiny instrumented getters in sampling mode.
+ * Compare the legacy sampling of the baseline and the current agent, the legacy sampling with the line mask field
+ * and the new sampling mode.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class SamplingOverheadBenchmark {
+  private final Point[] myPoints = new Point[1024];
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < myPoints.length; i++) {
+      myPoints[i] = new Point(i, -i);
+    }
+  }
+
+  @Benchmark
+  public int getters() {
+    int result = 0;
+    for (Point point : myPoints) {
+      result += point.getX() + point.getY();
+    }
+    return result;
+  }
+}
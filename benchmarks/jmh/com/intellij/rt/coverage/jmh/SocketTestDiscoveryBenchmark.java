@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.SocketTestDiscoveryProtocolDataListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of reporting finished tests to a socket, with a fast receiver and with a receiver
+ * that pauses after every read like a busy IDE.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class SocketTestDiscoveryBenchmark {
+  private static final int CLASSES_COUNT = 100;
+  private static final int METHODS_COUNT = 20;
+
+  @Param({"0", "200"})
+  public int receiverDelayMicros;
+
+  @Param({"256"})
+  public int queueSize;
+
+  private final Map<Integer, boolean[]> myVisitedMethods = new HashMap<Integer, boolean[]>();
+  private final Map<Integer, int[]> myMethodNames = new HashMap<Integer, int[]>();
+  private ServerSocket myServerSocket;
+  private Thread myReceiver;
+  private SocketTestDiscoveryProtocolDataListener myListener;
+  private int myTestIndex;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    for (int i = 0; i < CLASSES_COUNT; i++) {
+      final boolean[] visited = new boolean[METHODS_COUNT];
+      final int[] names = new int[METHODS_COUNT];
+      for (int j = 0; j < METHODS_COUNT; j++) {
+        visited[j] = (i + j) % 3 == 0;
+        names[j] = CLASSES_COUNT + j;
+      }
+      myVisitedMethods.put(i, visited);
+      myMethodNames.put(i, names);
+    }
+    myServerSocket = new ServerSocket(0);
+    myReceiver = new Thread(new Runnable() {
+      public void run() {
+        receive();
+      }
+    }, "test-discovery-benchmark-receiver");
+    myReceiver.start();
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.PORT_PROP, String.valueOf(myServerSocket.getLocalPort()));
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.DATA_VERSION, "3");
+    System.setProperty(SocketTestDiscoveryProtocolDataListener.QUEUE_SIZE_PROP, String.valueOf(queueSize));
+    myListener = new SocketTestDiscoveryProtocolDataListener();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    myListener.testsFinished();
+    myReceiver.join();
+    myServerSocket.close();
+  }
+
+  @Benchmark
+  public void testFinished() {
+    myListener.testFinished("Test", "test" + (myTestIndex++ % 1000), myVisitedMethods, myMethodNames,
+        Collections.<int[]>emptyList());
+  }
+
+  private void receive() {
+    try {
+      final Socket socket = myServerSocket.accept();
+      final InputStream inputStream = socket.getInputStream();
+      final byte[] buffer = new byte[8192];
+      while (inputStream.read(buffer) >= 0) {
+        if (receiverDelayMicros > 0) {
+          LockSupport.parkNanos(receiverDelayMicros * 1000L);
+        }
+      }
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
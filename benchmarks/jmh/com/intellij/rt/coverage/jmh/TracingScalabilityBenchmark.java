@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.jmh.hot.HotClass;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of a hot instrumented class called from a growing number of threads.
+ * Run with <code>-Dcoverage.tracing.stripes</code> to compare a single hits array with striped ones,
+ * and with <code>-Dcoverage.tracing.atomic</code> to measure the cost of lossless hits counting.
+ * Also used in sampling mode to compare line mask increments with <code>-Dcoverage.sampling.write.once</code>.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+public class TracingScalabilityBenchmark {
+  private int myValue = 27;
+
+  @Benchmark
+  @Threads(1)
+  public int threads1() {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int threads4() {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int threads16() {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public int threads64() {
+    return call();
+  }
+
+  private int call() {
+    return HotClass.compute(myValue++);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.SingleTrFileDiscoveryProtocolDataListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Time of writing visited methods of a test to a trace file with the plain (version 3)
+ * and the bitmap (version 4) encoding. The resulting file size is printed after each trial.
+ */
+@SuppressWarnings({"unused", "used in jmh"})
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class VisitedMethodsEncodingBenchmark {
+  private static final int CLASSES_COUNT = 2000;
+  private static final int METHODS_COUNT = 30;
+  private static final int PATTERNS_COUNT = 16;
+
+  @Param({"3", "4"})
+  public int version;
+
+  private final Map<Integer, int[]> myMethodNames = new HashMap<Integer, int[]>();
+  private final Map<Integer, boolean[]>[] myVisitedMethods = createPatterns();
+  private SingleTrFileDiscoveryProtocolDataListener myListener;
+  private File myFile;
+  private int myTestIndex;
+
+  @SuppressWarnings("unchecked")
+  private Map<Integer, boolean[]>[] createPatterns() {
+    for (int c = 0; c < CLASSES_COUNT; c++) {
+      final int[] names = new int[METHODS_COUNT];
+      for (int m = 0; m < METHODS_COUNT; m++) {
+        names[m] = CLASSES_COUNT + c * METHODS_COUNT + m;
+      }
+      myMethodNames.put(c, names);
+    }
+    // each test visits a part of classes, a few methods in most of them
+    final Random random = new Random(42);
+    final Map<Integer, boolean[]>[] patterns = new Map[PATTERNS_COUNT];
+    for (int p = 0; p < PATTERNS_COUNT; p++) {
+      patterns[p] = new HashMap<Integer, boolean[]>();
+      for (int c = 0; c < CLASSES_COUNT; c++) {
+        final boolean[] used = new boolean[METHODS_COUNT];
+        if (random.nextInt(10) == 0) {
+          final int probability = random.nextInt(4) == 0 ? 2 : 8;
+          for (int m = 0; m < METHODS_COUNT; m++) {
+            used[m] = random.nextInt(probability) == 0;
+          }
+        }
+        patterns[p].put(c, used);
+      }
+    }
+    return patterns;
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    myFile = File.createTempFile("visited-methods", ".ijtc");
+    System.setProperty(SingleTrFileDiscoveryProtocolDataListener.TRACE_FILE, myFile.getAbsolutePath());
+    System.setProperty(SingleTrFileDiscoveryProtocolDataListener.FILE_VERSION, String.valueOf(version));
+    myListener = new SingleTrFileDiscoveryProtocolDataListener();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    myListener.testsFinished();
+    System.out.println("Version " + version + ": " + myTestIndex + " tests, " + myFile.length() + " bytes");
+    myFile.delete();
+  }
+
+  @Benchmark
+  public void testFinished() throws IOException {
+    final int index = myTestIndex++;
+    myListener.testFinished("Test", "test" + index % 1000, myVisitedMethods[index % PATTERNS_COUNT], myMethodNames,
+        Collections.<int[]>emptyList());
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh.hot;
+
+/**
+ * A class with short hot methods, which lines and branches are hit by all benchmark threads.
+ */
+public class HotClass {
+  public static int compute(int value) {
+    int result = value;
+    for (int i = 0; i < 16; i++) {
+      if ((result & 1) == 0) {
+        result = result / 2;
+      } else {
+        result = 3 * result + 1;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.jmh.hot;
+
+/**
+ * A class with tiny methods, where the coverage overhead of a method entry dominates.
+ */
+public class Point {
+  private final int myX;
+  private final int myY;
+
+  public Point(int x, int y) {
+    myX = x;
+    myY = y;
+  }
+
+  public int getX() {
+    return myX;
+  }
+
+  public int getY() {
+    return myY;
+  }
+}
@@ -23,9 +23,9 @@ import org.jetbrains.coverage.org.objectweb.asm.*;
 
 public class CondySamplingInstrumenter extends Instrumenter {
   private static final String LINE_HITS_CONST_NAME = "__$lineHits$__";
-  private static final String LINE_HITS_CONST_TYPE = "[I";
+  private static final String LINE_HITS_CONST_TYPE = NewSamplingInstrumenter.LINE_HITS_FIELD_TYPE;
 
-  private final Handle handle = new Handle(Opcodes.H_INVOKESTATIC, "com/intellij/rt/coverage/util/CondyUtils", "getLineMask", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;)[I", false);
+  private final Handle handle = new Handle(Opcodes.H_INVOKESTATIC, "com/intellij/rt/coverage/util/CondyUtils", NewSamplingInstrumenter.LINE_HITS_GETTER, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/String;)" + LINE_HITS_CONST_TYPE, false);
   private final ConstantDynamic condy = new ConstantDynamic(LINE_HITS_CONST_NAME, InstrumentationUtils.OBJECT_TYPE, handle, getClassName());
 
   public CondySamplingInstrumenter(final ProjectData projectData,
@@ -56,7 +56,7 @@ public class CondySamplingInstrumenter extends Instrumenter {
   @Override
   protected void initLineData() {
     final LineData[] lines = LinesUtil.calcLineArray(myMaxLineNumber, myLines);
-    myClassData.initLineMask(lines);
+    NewSamplingInstrumenter.initLineMask(myClassData, lines);
     myClassData.setLines(lines);
   }
 }
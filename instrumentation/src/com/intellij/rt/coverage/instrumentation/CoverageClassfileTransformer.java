@@ -21,14 +21,14 @@ import com.intellij.rt.coverage.instrumentation.filters.FilterUtils;
 import com.intellij.rt.coverage.instrumentation.filters.classFilter.PrivateConstructorOfUtilClassFilter;
 import com.intellij.rt.coverage.instrumentation.filters.classSignature.ClassSignatureFilter;
 import com.intellij.rt.coverage.instrumentation.testTracking.TestTrackingMode;
-import com.intellij.rt.coverage.util.ClassNameUtil;
+import com.intellij.rt.coverage.util.ClassNamePatternMatcher;
 import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
-import java.util.List;
+import java.util.*;
 import java.util.regex.Pattern;
 
 public class CoverageClassfileTransformer extends AbstractIntellijClassfileTransformer {
@@ -36,10 +36,16 @@ public class CoverageClassfileTransformer extends AbstractIntellijClassfileTrans
 
   private final ProjectData data;
   private final boolean shouldCalculateSource;
-  private final List<Pattern> excludePatterns;
-  private final List<Pattern> includePatterns;
+  private final ClassNamePatternMatcher excludeMatcher;
+  private final InclusionPattern inclusionPattern;
   private final ClassFinder cf;
   private final TestTrackingMode testTrackingMode;
+  /**
+   * Names of fully covered classes per defining loader, which are transformed without probes,
+   * see {@link CoveredClassesDeinstrumenter}. A class of the same name defined by another loader keeps probes.
+   */
+  private final Map<ClassLoader, Set<String>> deinstrumentedClasses = new WeakHashMap<ClassLoader, Set<String>>();
+  private volatile boolean hasDeinstrumentedClasses;
 
   public CoverageClassfileTransformer(ProjectData data, boolean shouldCalculateSource, List<Pattern> excludePatterns, List<Pattern> includePatterns, ClassFinder cf) {
     this(data, shouldCalculateSource, excludePatterns, includePatterns, cf, null);
@@ -48,16 +54,70 @@ public class CoverageClassfileTransformer extends AbstractIntellijClassfileTrans
   public CoverageClassfileTransformer(ProjectData data, boolean shouldCalculateSource, List<Pattern> excludePatterns, List<Pattern> includePatterns, ClassFinder cf, TestTrackingMode testTrackingMode) {
     this.data = data;
     this.shouldCalculateSource = shouldCalculateSource;
-    this.excludePatterns = excludePatterns;
-    this.includePatterns = includePatterns;
+    this.excludeMatcher = new ClassNamePatternMatcher(excludePatterns);
+    final ClassNamePatternMatcher includeMatcher = new ClassNamePatternMatcher(includePatterns);
+    this.inclusionPattern = includeMatcher.isEmpty() ? null : new InclusionPattern() {
+      public boolean accept(String className) {
+        return includeMatcher.matches(className);
+      }
+    };
     this.cf = cf;
     this.testTrackingMode = testTrackingMode;
   }
 
   @Override
   protected ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw) {
+    final boolean lazyInit = !OptionsUtil.CLASS_INIT_ANALYSIS || getInitializationAnalyzer(loader).mayBeUsedBeforeInitialization(cr);
+    if (isDeinstrumented(loader, className)) {
+      return createDeinstrumentedClassVisitor(className, cr, cw, lazyInit);
+    }
     return createInstrumenter(data, className, cr, cw, testTrackingMode, data.isSampling(),
-        shouldCalculateSource, OptionsUtil.IGNORE_PRIVATE_CONSTRUCTOR_OF_UTIL_CLASS);
+        shouldCalculateSource, OptionsUtil.IGNORE_PRIVATE_CONSTRUCTOR_OF_UTIL_CLASS, lazyInit);
+  }
+
+  /**
+   * Mark loaded classes to be transformed without probes from now on. Must be called before the classes are retransformed.
+   */
+  void deinstrument(Collection<Class<?>> classes) {
+    synchronized (deinstrumentedClasses) {
+      for (Class<?> aClass : classes) {
+        Set<String> names = deinstrumentedClasses.get(aClass.getClassLoader());
+        if (names == null) {
+          names = new HashSet<String>();
+          deinstrumentedClasses.put(aClass.getClassLoader(), names);
+        }
+        names.add(aClass.getName());
+      }
+      hasDeinstrumentedClasses = true;
+    }
+  }
+
+  /**
+   * @param loader defining loader of the class, null for the bootstrap loader
+   */
+  boolean isDeinstrumented(ClassLoader loader, String className) {
+    if (!hasDeinstrumentedClasses) return false;
+    synchronized (deinstrumentedClasses) {
+      final Set<String> names = deinstrumentedClasses.get(loader);
+      return names != null && names.contains(className);
+    }
+  }
+
+  /**
+   * Create a visitor that adds the same members as the sampling instrumenter does, as retransformation cannot remove them,
+   * but does not add probes into methods. Class data is collected into a detached project data, so the collected
+   * coverage is not changed.
+   *
+   * @return null if the instrumenter does not add members, so the original class may be used
+   */
+  private ClassVisitor createDeinstrumentedClassVisitor(String className, ClassReader cr, ClassVisitor cw, boolean lazyInit) {
+    final ProjectData detached = data.createDetachedCopy();
+    if (OptionsUtil.NEW_SAMPLING_ENABLED) {
+      if (OptionsUtil.CONDY_ENABLED && InstrumentationUtils.getBytecodeVersion(cr) >= Opcodes.V11) return null;
+      return new NewSamplingInstrumenter(detached, cw, cr, className, false, lazyInit, false);
+    }
+    if (!SamplingInstrumenter.addsMembers()) return null;
+    return new SamplingInstrumenter(detached, cw, cr, className, false, lazyInit, false);
   }
 
   /**
@@ -68,6 +128,20 @@ public class CoverageClassfileTransformer extends AbstractIntellijClassfileTrans
                                          boolean isSampling,
                                          boolean shouldCalculateSource,
                                          boolean shouldIgnorePrivateConstructorOfUtilCLass) {
+    return createInstrumenter(data, className, cr, cw, testTrackingMode, isSampling,
+        shouldCalculateSource, shouldIgnorePrivateConstructorOfUtilCLass, true);
+  }
+
+  /**
+   * @param lazyInit whether instrumented methods must check that the coverage data field is initialized,
+   *                 see {@link ExtraFieldInstrumenter}
+   */
+  static ClassVisitor createInstrumenter(ProjectData data, String className,
+                                         ClassReader cr, ClassVisitor cw, TestTrackingMode testTrackingMode,
+                                         boolean isSampling,
+                                         boolean shouldCalculateSource,
+                                         boolean shouldIgnorePrivateConstructorOfUtilCLass,
+                                         boolean lazyInit) {
     for (ClassSignatureFilter filter : ourFilters) {
       if (filter.shouldFilter(cr)) return null;
     }
@@ -78,20 +152,20 @@ public class CoverageClassfileTransformer extends AbstractIntellijClassfileTrans
           instrumenter = new CondySamplingInstrumenter(data, cw, className, shouldCalculateSource);
         } else {
           //wrap cw with new TraceClassVisitor(cw, new PrintWriter(new StringWriter())) to get readable bytecode
-          instrumenter = new NewSamplingInstrumenter(data, cw, cr, className, shouldCalculateSource);
+          instrumenter = new NewSamplingInstrumenter(data, cw, cr, className, shouldCalculateSource, lazyInit);
         }
       } else {
-        instrumenter = new SamplingInstrumenter(data, cw, className, shouldCalculateSource);
+        instrumenter = new SamplingInstrumenter(data, cw, cr, className, shouldCalculateSource, lazyInit);
       }
     } else {
       if (OptionsUtil.NEW_TRACING_ENABLED) {
         if (data.isTestTracking() && testTrackingMode != null) {
           instrumenter = testTrackingMode.createInstrumenter(data, cw, cr, className, shouldCalculateSource);
         } else {
-          if (OptionsUtil.CONDY_ENABLED && InstrumentationUtils.getBytecodeVersion(cr) >= Opcodes.V11) {
+          if (OptionsUtil.CONDY_ENABLED && OptionsUtil.TRACING_STRIPES < 2 && InstrumentationUtils.getBytecodeVersion(cr) >= Opcodes.V11) {
             instrumenter = new CondyTracingInstrumenter(data, cw, className, shouldCalculateSource);
           } else {
-            instrumenter = new NewTracingInstrumenter(data, cw, cr, className, shouldCalculateSource);
+            instrumenter = new NewTracingInstrumenter(data, cw, cr, className, shouldCalculateSource, lazyInit);
           }
         }
       } else {
@@ -107,16 +181,12 @@ public class CoverageClassfileTransformer extends AbstractIntellijClassfileTrans
 
   @Override
   protected boolean shouldExclude(String className) {
-    return ClassNameUtil.matchesPatterns(className, excludePatterns);
+    return excludeMatcher.matches(className);
   }
 
   @Override
   protected InclusionPattern getInclusionPattern() {
-    return includePatterns.isEmpty() ? null : new InclusionPattern() {
-      public boolean accept(String className) {
-        return ClassNameUtil.matchesPatterns(className, includePatterns);
-      }
-    };
+    return inclusionPattern;
   }
 
   @Override
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Writes incremental coverage snapshots while the application is running.
+ * <p>
+ * A snapshot copies hit counters of each class into a side buffer without stopping instrumented code,
+ * so the counters of a class may be incremented concurrently during copying.
+ * Only the hits collected since the previous snapshot are written, and only for the classes whose counters have changed.
+ * Thus, the sum of all snapshot files is the coverage collected before the last snapshot.
+ * Snapshot files are written next to the data file: <code>coverage.ic</code> results in <code>coverage-snapshot-1.ic</code>, etc.
+ */
+public class CoverageSnapshotter {
+  private final ProjectData myProjectData;
+  private final File myDataFile;
+  /** Counters of classes in the previous snapshot, see {@link #readCounters}. */
+  private final Map<String, int[]> myPreviousCounters = new HashMap<String, int[]>();
+  private int mySnapshotsCount;
+  private Timer myTimer;
+  private boolean myStopped;
+
+  public CoverageSnapshotter(ProjectData projectData, File dataFile) {
+    myProjectData = projectData;
+    myDataFile = dataFile;
+  }
+
+  /**
+   * Take snapshots periodically in a background thread.
+   */
+  public synchronized void schedule(long periodMs) {
+    if (myStopped || myTimer != null) return;
+    myTimer = new Timer("Coverage snapshot", true);
+    myTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        snapshot();
+      }
+    }, periodMs, periodMs);
+  }
+
+  /**
+   * Stop taking snapshots. Must be called before the final save, as saving modifies the collected data.
+   */
+  public synchronized void stop() {
+    myStopped = true;
+    if (myTimer != null) {
+      myTimer.cancel();
+    }
+  }
+
+  /**
+   * Write hits collected since the previous snapshot.
+   *
+   * @return snapshot file, or null if there are no new hits
+   */
+  public synchronized File snapshot() {
+    if (myStopped || myProjectData.isStopped()) return null;
+    try {
+      final ProjectData delta = createDelta();
+      if (delta.getClassesNumber() == 0) return null;
+      final File file = getSnapshotFile(++mySnapshotsCount);
+      SaveHook.save(delta, file, null);
+      ErrorReporter.logInfo("Coverage snapshot of " + delta.getClassesNumber() + " classes is written to " + file.getPath());
+      return file;
+    } catch (Throwable e) {
+      ErrorReporter.reportError("Failed to write coverage snapshot", e);
+      return null;
+    }
+  }
+
+  private File getSnapshotFile(int index) {
+    final String name = myDataFile.getName();
+    final int extension = name.lastIndexOf('.');
+    final String baseName = extension > 0 ? name.substring(0, extension) : name;
+    return new File(myDataFile.getAbsoluteFile().getParentFile(), baseName + "-snapshot-" + index + ".ic");
+  }
+
+  ProjectData createDelta() {
+    final ProjectData delta = myProjectData.createDetachedCopy();
+    delta.setInstructionsCoverage(false);
+    for (ClassData classData : myProjectData.getClassesCollection()) {
+      final LineData[] lines = (LineData[]) classData.getLines();
+      if (lines == null) continue;
+      final String name = classData.getName();
+      final int[] counters = readCounters(classData, lines);
+      int[] previous = myPreviousCounters.get(name);
+      if (previous == null ? isZero(counters) : Arrays.equals(previous, counters)) continue;
+      myPreviousCounters.put(name, counters);
+      if (previous != null && previous.length != counters.length) {
+        // class structure has changed, counters cannot be matched
+        previous = null;
+      }
+
+      final ClassData deltaClass = delta.getOrCreateClassData(name);
+      deltaClass.setSource(classData.getSource());
+      deltaClass.setLines(createDeltaLines(deltaClass, lines, counters, previous));
+      deltaClass.setFullyAnalysed(classData.isFullyAnalysed());
+    }
+    return delta;
+  }
+
+  /**
+   * Collect all hit counters of a class into an array: line hits, then jumps and switches hits for each line.
+   * The counters are taken from the same storage that is used when the final report is saved.
+   *
+   * @see ClassData#applyLinesMask()
+   * @see ClassData#applyBranches()
+   */
+  private int[] readCounters(ClassData classData, LineData[] lines) {
+    final int[] lineMask = myProjectData.isSampling() ? copy(classData.getLineMask()) : null;
+    final byte[] lineByteMask = myProjectData.isSampling() ? copy(classData.getLineByteMask()) : null;
+    final int[] hitsMask = classData.collectHitsMask();
+    final TIntArrayList counters = new TIntArrayList();
+    for (LineData lineData : lines) {
+      if (lineData == null) continue;
+      counters.add(getLineHits(lineData, lineMask, lineByteMask, hitsMask));
+      final JumpData[] jumps = lineData.getJumps();
+      if (jumps != null) {
+        for (JumpData jumpData : jumps) {
+          counters.add(jumpData == null ? 0 : getBranchHits(jumpData.getTrueHits(), jumpData.getId(true), hitsMask));
+          counters.add(jumpData == null ? 0 : getBranchHits(jumpData.getFalseHits(), jumpData.getId(false), hitsMask));
+        }
+      }
+      final SwitchData[] switches = lineData.getSwitches();
+      if (switches != null) {
+        for (SwitchData switchData : switches) {
+          if (switchData == null) continue;
+          counters.add(getBranchHits(switchData.getDefaultHits(), switchData.getId(-1), hitsMask));
+          final int[] hits = switchData.getHits();
+          for (int i = 0; i < hits.length; i++) {
+            counters.add(getBranchHits(hits[i], switchData.getId(i), hitsMask));
+          }
+        }
+      }
+    }
+    return counters.toNativeArray();
+  }
+
+  /**
+   * Create lines with the same structure as <code>lines</code> and with hits equal to the counters increase.
+   * The counters are traversed in the same order as in {@link #readCounters}.
+   */
+  private static LineData[] createDeltaLines(ClassData deltaClass, LineData[] lines, int[] counters, int[] previous) {
+    final LineData[] result = new LineData[lines.length];
+    int k = 0;
+    for (int line = 0; line < lines.length; line++) {
+      final LineData lineData = lines[line];
+      if (lineData == null) continue;
+      final LineData deltaLine = new LineData(lineData.getLineNumber(), lineData.getMethodSignature());
+      deltaClass.registerMethodSignature(deltaLine);
+      deltaLine.setHits(getDelta(counters, previous, k++));
+      final JumpData[] jumps = lineData.getJumps();
+      if (jumps != null) {
+        for (int j = 0; j < jumps.length; j++) {
+          deltaLine.setTrueHits(j, getDelta(counters, previous, k++));
+          deltaLine.setFalseHits(j, getDelta(counters, previous, k++));
+        }
+      }
+      final SwitchData[] switches = lineData.getSwitches();
+      if (switches != null) {
+        for (int s = 0; s < switches.length; s++) {
+          final SwitchData switchData = switches[s];
+          if (switchData == null) continue;
+          final int[] keys = switchData.getKeys().clone();
+          deltaLine.setDefaultHits(s, keys, getDelta(counters, previous, k++));
+          final int[] hits = new int[switchData.getHits().length];
+          for (int i = 0; i < hits.length; i++) {
+            hits[i] = getDelta(counters, previous, k++);
+          }
+          deltaLine.setSwitchHits(s, keys, hits);
+        }
+      }
+      deltaLine.fillArrays();
+      result[line] = deltaLine;
+    }
+    return result;
+  }
+
+  private static int getLineHits(LineData lineData, int[] lineMask, byte[] lineByteMask, int[] hitsMask) {
+    final int lineNumber = lineData.getLineNumber();
+    if (lineMask != null && lineNumber < lineMask.length) return lineMask[lineNumber];
+    if (lineByteMask != null && lineNumber < lineByteMask.length && lineByteMask[lineNumber] != 0) {
+      return Math.max(1, lineData.getHits());
+    }
+    final int id = lineData.getId();
+    if (hitsMask != null && 0 <= id && id < hitsMask.length) return hitsMask[id];
+    return lineData.getHits();
+  }
+
+  private static int getBranchHits(int hits, int id, int[] hitsMask) {
+    if (hitsMask == null || id < 0 || id >= hitsMask.length) return hits;
+    return hits + hitsMask[id];
+  }
+
+  private static int getDelta(int[] counters, int[] previous, int index) {
+    return previous == null ? counters[index] : counters[index] - previous[index];
+  }
+
+  private static int[] copy(int[] array) {
+    return array == null ? null : array.clone();
+  }
+
+  private static byte[] copy(byte[] array) {
+    return array == null ? null : array.clone();
+  }
+
+  private static boolean isZero(int[] array) {
+    for (int value : array) {
+      if (value != 0) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Removes probes from fully covered classes in sampling mode while the application is running.
+ * <p>
+ * Once all lines of a class are covered, the probes cannot change the report anymore, but still cost time.
+ * Such classes are periodically retransformed with the transformer producing the classes without probes,
+ * so the collected coverage of the class is frozen. Retransformation cannot remove members,
+ * so the field added by instrumentation is kept.
+ * Java 6+ is required, as retransformation methods are called via reflection for 1.5 compatibility.
+ */
+public class CoveredClassesDeinstrumenter {
+  private final ProjectData myProjectData;
+  private final Instrumentation myInstrumentation;
+  private final CoverageClassfileTransformer myTransformer;
+  private Method myIsModifiableMethod;
+  private Method myRetransformMethod;
+  private Timer myTimer;
+  private boolean myStopped;
+
+  public CoveredClassesDeinstrumenter(ProjectData projectData, Instrumentation instrumentation, CoverageClassfileTransformer transformer) {
+    myProjectData = projectData;
+    myInstrumentation = instrumentation;
+    myTransformer = transformer;
+  }
+
+  /**
+   * Check for fully covered classes periodically in a background thread.
+   */
+  public synchronized void schedule(long periodMs) {
+    if (myStopped || myTimer != null) return;
+    myTimer = new Timer("Coverage deinstrumentation", true);
+    myTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        deinstrumentCoveredClasses();
+      }
+    }, periodMs, periodMs);
+  }
+
+  /**
+   * Stop checking for covered classes. A running check is completed before this method returns,
+   * so no classes are retransformed after that.
+   */
+  public synchronized void stop() {
+    myStopped = true;
+    if (myTimer != null) {
+      myTimer.cancel();
+    }
+  }
+
+  /**
+   * @return number of retransformed classes
+   */
+  public synchronized int deinstrumentCoveredClasses() {
+    if (myStopped || myProjectData.isStopped() || !myProjectData.isSampling()) return 0;
+    try {
+      final Set<String> covered = new HashSet<String>();
+      for (ClassData classData : myProjectData.getClassesCollection()) {
+        if (classData.isLineMaskCovered()) {
+          covered.add(classData.getName());
+        }
+      }
+      if (covered.isEmpty()) return 0;
+
+      // a class of the same name may be defined by several loaders, each of them is retransformed separately
+      final List<Class<?>> classes = new ArrayList<Class<?>>();
+      for (Class<?> aClass : myInstrumentation.getAllLoadedClasses()) {
+        if (covered.contains(aClass.getName()) && !myTransformer.isDeinstrumented(aClass.getClassLoader(), aClass.getName())
+            && isModifiable(aClass)) {
+          classes.add(aClass);
+        }
+      }
+      if (classes.isEmpty()) return 0;
+      myTransformer.deinstrument(classes);
+      final int retransformed = retransform(classes);
+      ErrorReporter.logInfo("Probes are removed from " + retransformed + " fully covered classes");
+      return retransformed;
+    } catch (Throwable e) {
+      ErrorReporter.reportError("Failed to remove probes from fully covered classes", e);
+      return 0;
+    }
+  }
+
+  private boolean isModifiable(Class<?> aClass) throws Exception {
+    if (myIsModifiableMethod == null) {
+      myIsModifiableMethod = Instrumentation.class.getMethod("isModifiableClass", Class.class);
+    }
+    return (Boolean) myIsModifiableMethod.invoke(myInstrumentation, aClass);
+  }
+
+  /**
+   * Retransform all classes at once, or one by one if it fails, as a single failed class cancels the whole batch.
+   * A class that cannot be retransformed keeps the probes.
+   *
+   * @return number of retransformed classes
+   */
+  private int retransform(List<Class<?>> classes) throws Exception {
+    if (myRetransformMethod == null) {
+      myRetransformMethod = Instrumentation.class.getMethod("retransformClasses", Class[].class);
+    }
+    try {
+      myRetransformMethod.invoke(myInstrumentation, (Object) classes.toArray(new Class<?>[0]));
+      return classes.size();
+    } catch (InvocationTargetException e) {
+      if (classes.size() == 1) {
+        ErrorReporter.reportError("Failed to remove probes from class " + classes.get(0).getName(), e.getCause());
+        return 0;
+      }
+    }
+    int retransformed = 0;
+    for (Class<?> aClass : classes) {
+      retransformed += retransform(Collections.<Class<?>>singletonList(aClass));
+    }
+    return retransformed;
+  }
+
+  /**
+   * @return true if classes may be retransformed in this JVM
+   */
+  public static boolean isSupported(Instrumentation instrumentation) {
+    try {
+      final Method method = Instrumentation.class.getMethod("isRetransformClassesSupported");
+      return (Boolean) method.invoke(instrumentation);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
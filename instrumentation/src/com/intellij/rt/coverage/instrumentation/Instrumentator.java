@@ -36,6 +36,21 @@ import java.util.regex.PatternSyntaxException;
 
 public class Instrumentator {
   public static boolean ourIsInitialized = false;
+  private static volatile CoverageSnapshotter ourSnapshotter;
+
+  /**
+   * Write coverage collected since the previous snapshot into a separate report file next to the data file.
+   * The application keeps running while the snapshot is taken.
+   * This method is intended to be called from the application under test, e.g. via reflection.
+   *
+   * @return snapshot file, or null if there are no new hits or the agent does not save coverage to a file
+   * @see CoverageSnapshotter
+   */
+  @SuppressWarnings("unused")
+  public static File takeSnapshot() {
+    final CoverageSnapshotter snapshotter = ourSnapshotter;
+    return snapshotter == null ? null : snapshotter.snapshot();
+  }
 
   public static void premain(String argsString, Instrumentation instrumentation) throws Exception {
     new Instrumentator().performPremain(argsString, instrumentation);
@@ -120,15 +135,39 @@ public class Instrumentator {
     final ProjectData data = ProjectData.createProjectData(dataFile, null, traceLines, sampling, includePatterns, excludePatterns, testTrackingMode.createTestTrackingCallback());
     data.setAnnotationsToIgnore(annotationsToIgnore);
     final ClassFinder cf = new ClassFinder(includePatterns, excludePatterns);
+    final boolean shouldCalculateSource = sourceMapFile != null;
+    final CoverageClassfileTransformer transformer = new CoverageClassfileTransformer(data, shouldCalculateSource, excludePatterns, includePatterns, cf, testTrackingMode);
+    final CoveredClassesDeinstrumenter deinstrumenter;
+    if (sampling && OptionsUtil.DEINSTRUMENTATION_PERIOD_MS > 0 && CoveredClassesDeinstrumenter.isSupported(instrumentation)) {
+      deinstrumenter = new CoveredClassesDeinstrumenter(data, instrumentation, transformer);
+    } else {
+      deinstrumenter = null;
+    }
     if (dataFile != null) {
       final SaveHook hook = new SaveHook(dataFile, calcUnloaded, cf, mergeData);
       hook.setSourceMapFile(sourceMapFile);
-      Runtime.getRuntime().addShutdownHook(new Thread(hook));
+      final CoverageSnapshotter snapshotter = new CoverageSnapshotter(data, dataFile);
+      if (OptionsUtil.SNAPSHOT_PERIOD_MS > 0) {
+        snapshotter.schedule(OptionsUtil.SNAPSHOT_PERIOD_MS);
+      }
+      ourSnapshotter = snapshotter;
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        public void run() {
+          snapshotter.stop();
+          // classes must not be retransformed while the data is saved
+          if (deinstrumenter != null) deinstrumenter.stop();
+          hook.run();
+        }
+      }));
     }
 
-    final boolean shouldCalculateSource = sourceMapFile != null;
-    final CoverageClassfileTransformer transformer = new CoverageClassfileTransformer(data, shouldCalculateSource, excludePatterns, includePatterns, cf, testTrackingMode);
     addTransformer(instrumentation, transformer);
+
+    if (deinstrumenter != null) {
+      deinstrumenter.schedule(OptionsUtil.DEINSTRUMENTATION_PERIOD_MS);
+    } else if (sampling && OptionsUtil.DEINSTRUMENTATION_PERIOD_MS > 0) {
+      ErrorReporter.logInfo("Classes retransformation is not supported, fully covered classes keep probes");
+    }
   }
 
   private int readPatterns(final List<Pattern> patterns, int i, final String[] args, final String name) {
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of coverage snapshots that should be merged into a data file.
+ * <p>
+ * Each process appends its snapshot into the journal without locking. Then the lock owner folds all the snapshots
+ * collected so far into the data file, so several processes finishing at the same time
+ * share a single load-merge-save of the data file instead of doing it one by one.
+ * <p>
+ * A fold is committed by a marker file that lists the folded snapshots. The merged data is written and synced
+ * into a temporary file first, then the marker is created, and only then the data file is replaced and
+ * the snapshots are deleted. If a process crashes in the middle, the next fold completes the committed fold
+ * from the marker, so a snapshot is never merged twice. Snapshots that cannot be read are moved to
+ * the <code>corrupted</code> directory of the journal.
+ */
+class MergeJournal {
+  private static final String SNAPSHOT_SUFFIX = ".ic";
+  private static final String SOURCE_MAP_SUFFIX = ".sm";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String CORRUPTED_DIR = "corrupted";
+  private static final long LOCK_TIMEOUT_MS = 2 * 60 * 1000;
+
+  private final File myDataFile;
+  private final File mySourceMapFile;
+  private final File myJournalDir;
+  private final File myMarker;
+  private final File myFoldedData;
+
+  MergeJournal(File dataFile, File sourceMapFile) {
+    myDataFile = dataFile;
+    mySourceMapFile = sourceMapFile;
+    myJournalDir = ProjectDataLoader.getJournalDir(dataFile);
+    myMarker = new File(myJournalDir, ProjectDataLoader.JOURNAL_MARKER);
+    myFoldedData = new File(myJournalDir, ProjectDataLoader.JOURNAL_FOLDED_DATA);
+  }
+
+  File getJournalDir() {
+    return myJournalDir;
+  }
+
+  /**
+   * Write a snapshot into the journal. The snapshot is written into a temporary file first,
+   * so that the merger never observes a partially written snapshot.
+   */
+  void append(ProjectData projectData) throws IOException {
+    myJournalDir.mkdirs();
+    final File tmp = File.createTempFile("snapshot", TEMP_SUFFIX, myJournalDir);
+    final String name = tmp.getName().substring(0, tmp.getName().length() - TEMP_SUFFIX.length());
+    final File sourceMap = mySourceMapFile == null ? null : new File(myJournalDir, name + SOURCE_MAP_SUFFIX);
+    try {
+      SaveHook.saveOrFail(projectData, tmp, sourceMap, true);
+      if (!tmp.renameTo(new File(myJournalDir, name + SNAPSHOT_SUFFIX))) {
+        throw new IOException("Failed to append snapshot to the merge journal " + myJournalDir.getPath());
+      }
+    } catch (IOException e) {
+      tmp.delete();
+      if (sourceMap != null) sourceMap.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Merge all the journal snapshots into the data file.
+   * Nothing is done if the snapshots have been already merged by the previous lock owner.
+   * If the data file cannot be locked or the merged data cannot be saved, the snapshots are kept for the next fold.
+   * Until then, they are included in the data loaded with {@link ProjectDataLoader#loadLocked}.
+   *
+   * @param projectData data which collection settings are used for the merged report
+   */
+  void fold(ProjectData projectData) {
+    fold(projectData, LOCK_TIMEOUT_MS);
+  }
+
+  /**
+   * @return true if the journal is folded into the data file
+   */
+  boolean fold(ProjectData projectData, long lockTimeoutMs) {
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myDataFile, lockTimeoutMs, 0);
+    if (lock == null) {
+      ErrorReporter.reportError("Failed to lock " + myDataFile.getPath() + " to merge journal " + myJournalDir.getPath()
+          + ", snapshots are kept for the next merge and are included when the data file is loaded");
+      return false;
+    }
+    try {
+      completeFold();
+      final File[] snapshots = listSnapshots();
+      if (snapshots.length == 0) return true;
+      final ProjectData merged = projectData.createDetachedCopy();
+      final ProjectData data = load(myDataFile, null);
+      if (data != null) {
+        merged.merge(data);
+      }
+      final List<String> folded = new ArrayList<String>();
+      for (File snapshot : snapshots) {
+        final ProjectData snapshotData = load(snapshot, getSourceMapFile(snapshot));
+        if (snapshotData == null) continue;
+        merged.merge(snapshotData);
+        folded.add(snapshot.getName());
+      }
+      if (folded.isEmpty()) return true;
+      SaveHook.saveOrFail(merged, myFoldedData, null, true);
+      writeMarker(folded);
+      SaveHook.saveSourceMap(merged.getClasses(), mySourceMapFile);
+      completeFold();
+      return true;
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to merge journal " + myJournalDir.getPath() + ", snapshots are kept for the next merge", e);
+      return false;
+    } finally {
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+  }
+
+  /**
+   * Finish a committed fold: replace the data file with the merged data and delete the folded snapshots.
+   * Data of a fold that has not been committed is deleted.
+   */
+  private void completeFold() throws IOException {
+    if (!myMarker.exists()) {
+      myFoldedData.delete();
+      return;
+    }
+    final List<String> folded = ProjectDataLoader.readJournalMarker(myMarker);
+    if (myFoldedData.exists()) {
+      replace(myFoldedData, myDataFile);
+    }
+    for (String name : folded) {
+      final File snapshot = new File(myJournalDir, name);
+      getSourceMapFile(snapshot).delete();
+      if (!snapshot.delete() && snapshot.exists()) {
+        throw new IOException("Failed to delete merged snapshot " + snapshot.getPath());
+      }
+    }
+    if (!myMarker.delete()) {
+      throw new IOException("Failed to delete merge journal marker " + myMarker.getPath());
+    }
+  }
+
+  /**
+   * @return loaded data, or null if the file exists but cannot be read, in which case it is moved to the quarantine
+   */
+  private ProjectData load(File file, File sourceMap) {
+    if (!file.exists()) return null;
+    try {
+      final ProjectData data = ProjectDataLoader.loadOrFail(file);
+      if (sourceMap != null && sourceMap.exists()) {
+        SaveHook.loadAndApplySourceMap(data, sourceMap);
+      }
+      return data;
+    } catch (IOException e) {
+      final File quarantine = new File(myJournalDir, CORRUPTED_DIR);
+      quarantine.mkdirs();
+      final File target = new File(quarantine, System.currentTimeMillis() + "-" + file.getName());
+      final boolean moved = file.renameTo(target);
+      if (sourceMap != null && sourceMap.exists()) {
+        sourceMap.renameTo(new File(quarantine, target.getName() + SOURCE_MAP_SUFFIX));
+      }
+      ErrorReporter.reportError("Failed to read coverage data from " + file.getPath()
+          + (moved ? ", the file is moved to " + target.getPath() : ""), e);
+      return null;
+    }
+  }
+
+  private void writeMarker(List<String> folded) throws IOException {
+    final File tmp = new File(myJournalDir, ProjectDataLoader.JOURNAL_MARKER + TEMP_SUFFIX);
+    final FileOutputStream fileStream = new FileOutputStream(tmp);
+    final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fileStream));
+    try {
+      CoverageIOUtil.writeINT(os, folded.size());
+      for (String name : folded) {
+        CoverageIOUtil.writeUTF(os, name);
+      }
+      os.flush();
+      fileStream.getFD().sync();
+    } finally {
+      CoverageIOUtil.close(os);
+    }
+    replace(tmp, myMarker);
+  }
+
+  private static void replace(File source, File target) throws IOException {
+    if (source.renameTo(target)) return;
+    // rename does not replace an existing file on some platforms
+    target.delete();
+    if (!source.renameTo(target)) {
+      throw new IOException("Failed to rename " + source.getPath() + " to " + target.getPath());
+    }
+  }
+
+  private File[] listSnapshots() {
+    final File[] snapshots = myJournalDir.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().endsWith(SNAPSHOT_SUFFIX);
+      }
+    });
+    return snapshots == null ? new File[0] : snapshots;
+  }
+
+  private static File getSourceMapFile(File snapshot) {
+    final String name = snapshot.getName();
+    return new File(snapshot.getParentFile(), name.substring(0, name.length() - SNAPSHOT_SUFFIX.length()) + SOURCE_MAP_SUFFIX);
+  }
+}
@@ -16,28 +16,49 @@
 
 package com.intellij.rt.coverage.instrumentation;
 
+import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.LinesUtil;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
 public class NewSamplingInstrumenter extends Instrumenter {
   private static final String LINE_HITS_FIELD_NAME = "__$lineHits$__";
-  private static final String LINE_HITS_FIELD_TYPE = "[I";
+  /** Line hits counters, or line coverage flags in byte mask mode. */
+  static final String LINE_HITS_FIELD_TYPE = OptionsUtil.SAMPLING_BYTE_MASK ? "[B" : "[I";
+  static final String LINE_HITS_GETTER = OptionsUtil.SAMPLING_BYTE_MASK ? "getLineByteMask" : "getLineMask";
   private static final String LINE_HITS_LOCAL_VARIABLE_NAME = "__$localLineHits$__";
 
   private final String myClassNameType;
   private final ExtraFieldInstrumenter myExtraFieldInstrumenter;
+  private final boolean myWithProbes;
 
   public NewSamplingInstrumenter(final ProjectData projectData,
                                  final ClassVisitor classVisitor,
                                  final ClassReader cr,
                                  final String className,
-                                 final boolean shouldCalculateSource) {
+                                 final boolean shouldCalculateSource,
+                                 final boolean lazyInit) {
+    this(projectData, classVisitor, cr, className, shouldCalculateSource, lazyInit, true);
+  }
+
+  /**
+   * @param withProbes if false, only the members required by instrumentation are added and lines are not counted,
+   *                   see {@link CoveredClassesDeinstrumenter}
+   */
+  public NewSamplingInstrumenter(final ProjectData projectData,
+                                 final ClassVisitor classVisitor,
+                                 final ClassReader cr,
+                                 final String className,
+                                 final boolean shouldCalculateSource,
+                                 final boolean lazyInit,
+                                 final boolean withProbes) {
     super(projectData, classVisitor, className, shouldCalculateSource);
-    myExtraFieldInstrumenter = new ExtraFieldSamplingInstrumenter(cr, className);
+    myExtraFieldInstrumenter = new ExtraFieldSamplingInstrumenter(cr, className, lazyInit);
     myClassNameType = ClassNameUtil.convertToInternalName(className);
+    myWithProbes = withProbes;
   }
 
   public MethodVisitor createMethodLineEnumerator(
@@ -48,6 +69,7 @@ public class NewSamplingInstrumenter extends Instrumenter {
       final String signature,
       final String[] exceptions
   ) {
+    if (!myWithProbes) return myExtraFieldInstrumenter.createMethodVisitor(this, mv, mv, name);
     final MethodVisitor visitor = new ArraySamplingMethodVisitor(mv, access, name, desc, this) {
       public void visitCode() {
         mv.visitFieldInsn(Opcodes.GETSTATIC, myClassNameType, LINE_HITS_FIELD_NAME, LINE_HITS_FIELD_TYPE);
@@ -67,21 +89,29 @@ public class NewSamplingInstrumenter extends Instrumenter {
   @Override
   protected void initLineData() {
     final LineData[] lines = LinesUtil.calcLineArray(myMaxLineNumber, myLines);
-    myClassData.initLineMask(lines);
+    initLineMask(myClassData, lines);
     myClassData.setLines(lines);
   }
 
+  static void initLineMask(ClassData classData, LineData[] lines) {
+    if (OptionsUtil.SAMPLING_BYTE_MASK) {
+      classData.initLineByteMask(lines);
+    } else {
+      classData.initLineMask(lines);
+    }
+  }
+
   private class ExtraFieldSamplingInstrumenter extends ExtraFieldInstrumenter {
 
-    public ExtraFieldSamplingInstrumenter(ClassReader cr, String className) {
-      super(cr, null, className, LINE_HITS_FIELD_NAME, LINE_HITS_FIELD_TYPE, true);
+    public ExtraFieldSamplingInstrumenter(ClassReader cr, String className, boolean lazyInit) {
+      super(cr, null, className, LINE_HITS_FIELD_NAME, LINE_HITS_FIELD_TYPE, true, lazyInit);
     }
 
     public void initField(MethodVisitor mv) {
       mv.visitLdcInsn(getClassName());
 
       //get line array
-      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "getLineMask", "(Ljava/lang/String;)[I", false);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, LINE_HITS_GETTER, "(Ljava/lang/String;)" + LINE_HITS_FIELD_TYPE, false);
 
       //save line array
       mv.visitFieldInsn(Opcodes.PUTSTATIC, myClassNameType, LINE_HITS_FIELD_NAME, LINE_HITS_FIELD_TYPE);
@@ -103,12 +133,40 @@ public class NewSamplingInstrumenter extends Instrumenter {
     public void visitLineNumber(final int line, final Label start) {
       myInstrumenter.getOrCreateLineData(line, myName, myDesc);
 
+      if (OptionsUtil.SAMPLING_WRITE_ONCE) {
+        setLineCovered(line);
+      } else {
+        mv.visitVarInsn(Opcodes.ALOAD, getOrCreateLocalVariableIndex());
+        InstrumentationUtils.pushInt(mv, line);
+
+        if (OptionsUtil.SAMPLING_BYTE_MASK) {
+          mv.visitInsn(Opcodes.ICONST_1);
+          mv.visitInsn(Opcodes.BASTORE);
+        } else {
+          InstrumentationUtils.incrementIntArrayByIndex(mv);
+        }
+      }
+
+      super.visitLineNumber(line, start);
+    }
+
+    /**
+     * Generates code <code>if (mask[line] == 0) mask[line] = 1;</code>, so a covered line only reads the mask.
+     */
+    private void setLineCovered(int line) {
+      final int loadOpcode = OptionsUtil.SAMPLING_BYTE_MASK ? Opcodes.BALOAD : Opcodes.IALOAD;
+      final int storeOpcode = OptionsUtil.SAMPLING_BYTE_MASK ? Opcodes.BASTORE : Opcodes.IASTORE;
+      final Label alreadyCovered = new Label();
       mv.visitVarInsn(Opcodes.ALOAD, getOrCreateLocalVariableIndex());
       InstrumentationUtils.pushInt(mv, line);
+      mv.visitInsn(loadOpcode);
+      mv.visitJumpInsn(Opcodes.IFNE, alreadyCovered);
 
-      InstrumentationUtils.incrementIntArrayByIndex(mv);
-
-      super.visitLineNumber(line, start);
+      mv.visitVarInsn(Opcodes.ALOAD, getOrCreateLocalVariableIndex());
+      InstrumentationUtils.pushInt(mv, line);
+      mv.visitInsn(Opcodes.ICONST_1);
+      mv.visitInsn(storeOpcode);
+      mv.visitLabel(alreadyCovered);
     }
   }
 }
@@ -21,18 +21,27 @@ import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.instrumentation.data.BranchDataContainer;
 import com.intellij.rt.coverage.instrumentation.data.Jump;
 import com.intellij.rt.coverage.instrumentation.data.Switch;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
 public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
   private static final String BRANCH_HITS_FIELD_NAME = "__$branchHits$__";
   private static final String BRANCH_HITS_FIELD_TYPE = "[I";
   private static final String BRANCH_HITS_LOCAL_VARIABLE_NAME = "__$localBranchHits$__";
+  private static final String BRANCH_HITS_STRIPES_FIELD_NAME = "__$branchHitsStripes$__";
+  private static final String BRANCH_HITS_STRIPES_FIELD_TYPE = "[[I";
+  private static final String ATOMIC_HITS_OWNER = "com/intellij/rt/coverage/util/AtomicHitsUtils";
 
   private final ExtraFieldInstrumenter myExtraFieldInstrumenter;
+  /** Number of hits stripes, a power of two, or 1 when striping is disabled. */
+  private final int myStripes;
 
-  public NewTracingInstrumenter(ProjectData projectData, ClassVisitor classVisitor, ClassReader cr, String className, boolean shouldCalculateSource) {
+  public NewTracingInstrumenter(ProjectData projectData, ClassVisitor classVisitor, ClassReader cr, String className, boolean shouldCalculateSource, boolean lazyInit) {
     super(projectData, classVisitor, className, shouldCalculateSource);
-    myExtraFieldInstrumenter = new ExtraFieldTracingInstrumenter(cr, className);
+    myStripes = Math.max(1, OptionsUtil.TRACING_STRIPES);
+    myExtraFieldInstrumenter = myStripes > 1
+        ? new ExtraFieldStripedTracingInstrumenter(cr, className, lazyInit)
+        : new ExtraFieldTracingInstrumenter(cr, className, lazyInit);
   }
 
   @Override
@@ -44,14 +53,18 @@ public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
                                           final String desc,
                                           final String className) {
     if (enumerator.hasNoLines()) {
-      if (myExtraFieldInstrumenter.isInterface() && InstrumentationUtils.CLASS_INIT.equals(name)) {
+      if (myExtraFieldInstrumenter.isInitializedInClinit() && InstrumentationUtils.CLASS_INIT.equals(name)) {
         return myExtraFieldInstrumenter.createMethodVisitor(this, mv, mv, name);
       }
       return mv;
     }
     final MethodVisitor visitor = new ArrayTracingMethodVisitor(mv, access, desc, enumerator) {
       public void visitCode() {
-        mv.visitFieldInsn(Opcodes.GETSTATIC, myExtraFieldInstrumenter.getInternalClassName(), BRANCH_HITS_FIELD_NAME, BRANCH_HITS_FIELD_TYPE);
+        if (myStripes > 1) {
+          loadStripe(mv);
+        } else {
+          mv.visitFieldInsn(Opcodes.GETSTATIC, myExtraFieldInstrumenter.getInternalClassName(), BRANCH_HITS_FIELD_NAME, BRANCH_HITS_FIELD_TYPE);
+        }
         mv.visitVarInsn(Opcodes.ASTORE, getOrCreateLocalVariableIndex());
         super.visitCode();
       }
@@ -59,6 +72,19 @@ public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
     return myExtraFieldInstrumenter.createMethodVisitor(this, mv, visitor, name);
   }
 
+  /**
+   * Push the stripe of the current thread: <code>stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)]</code>.
+   */
+  private void loadStripe(MethodVisitor mv) {
+    mv.visitFieldInsn(Opcodes.GETSTATIC, myExtraFieldInstrumenter.getInternalClassName(), BRANCH_HITS_STRIPES_FIELD_NAME, BRANCH_HITS_STRIPES_FIELD_TYPE);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Thread", "currentThread", "()Ljava/lang/Thread;", false);
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Thread", "getId", "()J", false);
+    mv.visitInsn(Opcodes.L2I);
+    InstrumentationUtils.pushInt(mv, myStripes - 1);
+    mv.visitInsn(Opcodes.IAND);
+    mv.visitInsn(Opcodes.AALOAD);
+  }
+
   @Override
   public void visitEnd() {
     myExtraFieldInstrumenter.generateMembers(this);
@@ -73,8 +99,8 @@ public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
 
   private class ExtraFieldTracingInstrumenter extends ExtraFieldInstrumenter {
 
-    public ExtraFieldTracingInstrumenter(ClassReader cr, String className) {
-      super(cr, null, className, BRANCH_HITS_FIELD_NAME, BRANCH_HITS_FIELD_TYPE, true);
+    public ExtraFieldTracingInstrumenter(ClassReader cr, String className, boolean lazyInit) {
+      super(cr, null, className, BRANCH_HITS_FIELD_NAME, BRANCH_HITS_FIELD_TYPE, true, lazyInit);
     }
 
     public void initField(MethodVisitor mv) {
@@ -88,6 +114,23 @@ public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
     }
   }
 
+  private class ExtraFieldStripedTracingInstrumenter extends ExtraFieldInstrumenter {
+
+    public ExtraFieldStripedTracingInstrumenter(ClassReader cr, String className, boolean lazyInit) {
+      super(cr, null, className, BRANCH_HITS_STRIPES_FIELD_NAME, BRANCH_HITS_STRIPES_FIELD_TYPE, true, lazyInit);
+    }
+
+    public void initField(MethodVisitor mv) {
+      mv.visitLdcInsn(getClassName());
+
+      //get hits stripes
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "getHitsStripes", "(Ljava/lang/String;)[[I", false);
+
+      //save hits stripes
+      mv.visitFieldInsn(Opcodes.PUTSTATIC, myExtraFieldInstrumenter.getInternalClassName(), BRANCH_HITS_STRIPES_FIELD_NAME, BRANCH_HITS_STRIPES_FIELD_TYPE);
+    }
+  }
+
   public static class ArrayTracingMethodVisitor extends LocalVariableInserter {
     private final LineEnumerator myEnumerator;
 
@@ -123,7 +166,11 @@ public class NewTracingInstrumenter extends AbstractTracingInstrumenter {
       if (id == -1) return;
       mv.visitVarInsn(Opcodes.ALOAD, getOrCreateLocalVariableIndex());
       InstrumentationUtils.pushInt(mv, id);
-      InstrumentationUtils.incrementIntArrayByIndex(mv);
+      if (OptionsUtil.TRACING_ATOMIC_HITS) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, ATOMIC_HITS_OWNER, "increment", "([II)V", false);
+      } else {
+        InstrumentationUtils.incrementIntArrayByIndex(mv);
+      }
     }
   }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.FileMapData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import com.intellij.rt.coverage.util.StringsPool;
+import com.intellij.rt.coverage.util.classFinder.ClassEntry;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Full analysis of unloaded classes which parses class files in a thread pool.
+ * <p>
+ * Class files are enumerated with <code>ClassFinder</code> on the calling thread. Each class is analysed by a worker
+ * into its own detached <code>ProjectData</code>, then the results are applied to the target project data
+ * on the calling thread in the enumeration order. This way the result is exactly the same as after the sequential
+ * {@link SaveHook#appendUnloadedFullAnalysis} call.
+ * <p>
+ * When a cache is provided, workers restore the results of unchanged classes from the cache instead of parsing them.
+ */
+class ParallelUnloadedClassesAnalyzer {
+  /** Number of classes per thread that may be read but not applied yet. Limits the memory used by class bytes. */
+  private static final int PENDING_CLASSES_PER_THREAD = 64;
+
+  private final ProjectData myProjectData;
+  private final boolean myCalculateSource;
+  private final boolean myIsSampling;
+  private final boolean myIgnorePrivateConstructorOfUtilClass;
+  private final boolean myCheckLineMappings;
+  private final int myThreads;
+  private final UnloadedClassesCache myCache;
+
+  ParallelUnloadedClassesAnalyzer(ProjectData projectData, boolean calculateSource, boolean isSampling,
+                                  boolean ignorePrivateConstructorOfUtilClass, boolean checkLineMappings, int threads,
+                                  UnloadedClassesCache cache) {
+    myProjectData = projectData;
+    myCalculateSource = calculateSource;
+    myIsSampling = isSampling;
+    myIgnorePrivateConstructorOfUtilClass = ignorePrivateConstructorOfUtilClass;
+    myCheckLineMappings = checkLineMappings;
+    myThreads = threads;
+    myCache = cache;
+  }
+
+  void analyse(ClassFinder classFinder) {
+    final ExecutorService executor = Executors.newFixedThreadPool(myThreads, new WorkerThreadFactory());
+    final LinkedList<UnloadedClass> pending = new LinkedList<UnloadedClass>();
+    try {
+      classFinder.iterateMatchedClasses(new ClassEntry.Consumer() {
+        public void consume(ClassEntry classEntry) {
+          final String className = classEntry.getClassName();
+          if (isAnalysed(myProjectData.getClassData(StringsPool.getFromPool(className)))) return;
+          try {
+            final byte[] bytes = classEntry.getClassBytes();
+            if (bytes == null) return;
+            final UnloadedClass unloadedClass = new UnloadedClass(className, bytes);
+            unloadedClass.myResult = executor.submit(new AnalyseTask(unloadedClass));
+            pending.addLast(unloadedClass);
+          } catch (Throwable e) {
+            reportError(className, e);
+          }
+          while (pending.size() > myThreads * PENDING_CLASSES_PER_THREAD) {
+            apply(pending.removeFirst());
+          }
+        }
+      });
+      while (!pending.isEmpty()) {
+        apply(pending.removeFirst());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean isAnalysed(ClassData classData) {
+    return classData != null && classData.getLines() != null && classData.isFullyAnalysed();
+  }
+
+  /**
+   * Apply analysis results of a class to the target project data.
+   * The checks here must repeat the sequential algorithm, as the target state may be changed by the previous classes.
+   */
+  private void apply(UnloadedClass unloadedClass) {
+    final String className = unloadedClass.myClassName;
+    try {
+      final ClassData existing = myProjectData.getClassData(className);
+      if (isAnalysed(existing)) return;
+      if (existing != null && existing.getLines() != null) {
+        // lines are merged with partially collected data, so the class is analysed against the target state
+        unloadedClass.myResult.cancel(false);
+        SaveHook.appendUnloadedClass(myProjectData, className, new ClassReader(unloadedClass.myBytes), myIsSampling,
+            myCalculateSource, myIgnorePrivateConstructorOfUtilClass, myCheckLineMappings);
+        return;
+      }
+      final ProjectData analysed = unloadedClass.myResult.get();
+      if (analysed == null) return;
+      applyAnalysedClass(analysed, className);
+      SaveHook.registerUnloadedClass(myProjectData, className, myCheckLineMappings);
+    } catch (ExecutionException e) {
+      reportError(className, e.getCause());
+    } catch (Throwable e) {
+      reportError(className, e);
+    }
+  }
+
+  /**
+   * Repeat the changes that instrumenter makes in a project data.
+   * @see Instrumenter#visit
+   * @see Instrumenter#visitSource
+   * @see Instrumenter#visitOuterClass
+   * @see Instrumenter#visitEnd
+   */
+  private void applyAnalysedClass(ProjectData analysed, String className) {
+    final ClassData analysedClass = analysed.getClassData(className);
+    if (analysedClass == null) return;
+    final ClassData classData = myProjectData.getOrCreateClassData(StringsPool.getFromPool(className));
+    if (myCalculateSource && analysedClass.getSource() != null) {
+      classData.setSource(analysedClass.getSource());
+    }
+    final Map<String, FileMapData[]> linesMap = analysed.getLinesMap();
+    if (linesMap != null) {
+      final FileMapData[] mappings = linesMap.get(className);
+      if (mappings != null) {
+        myProjectData.addLineMaps(className, mappings);
+      }
+    }
+    for (ClassData outerClass : analysed.getClassesCollection()) {
+      if (outerClass == analysedClass) continue;
+      final ClassData targetOuterClass = myProjectData.getOrCreateClassData(outerClass.getName());
+      if (targetOuterClass.getSource() == null) {
+        targetOuterClass.setSource(classData.getSource());
+      }
+    }
+    if (!analysedClass.isFullyAnalysed()) return;
+    final LineData[] lines = (LineData[]) analysedClass.getLines();
+    if (myIsSampling) {
+      if (OptionsUtil.NEW_SAMPLING_ENABLED) {
+        NewSamplingInstrumenter.initLineMask(classData, lines);
+      } else {
+        classData.initLineMask(lines);
+      }
+    }
+    if (analysedClass.getHitsMask() != null) {
+      classData.createHitsMask(analysedClass.getHitsMask().length);
+    }
+    classData.setLines(lines);
+    classData.setIgnoredLines(analysedClass.getIgnoredLines());
+    if (myProjectData.isInstructionsCoverageEnabled()) {
+      final ClassInstructions instructions = analysed.getInstructions().get(className);
+      if (instructions != null) {
+        myProjectData.getInstructions().put(className, instructions);
+      }
+    }
+  }
+
+  private static void reportError(String className, Throwable e) {
+    ErrorReporter.reportError("Failed to process unloaded class: " + className + ", error: " + e.getMessage(), e);
+  }
+
+  private static class UnloadedClass {
+    private final String myClassName;
+    private final byte[] myBytes;
+    private Future<ProjectData> myResult;
+
+    private UnloadedClass(String className, byte[] bytes) {
+      myClassName = className;
+      myBytes = bytes;
+    }
+  }
+
+  private class AnalyseTask implements Callable<ProjectData> {
+    private final UnloadedClass myClass;
+
+    private AnalyseTask(UnloadedClass unloadedClass) {
+      myClass = unloadedClass;
+    }
+
+    /**
+     * @return a project data with the analysed class or null if the class is filtered out
+     */
+    public ProjectData call() throws IOException {
+      if (myCache == null) return analyse();
+      final byte[] hash = UnloadedClassesCache.hash(myClass.myBytes);
+      final UnloadedClassesCache.Entry entry = myCache.get(myClass.myClassName, hash);
+      if (entry != null) return entry.restore(myClass.myClassName);
+      final ProjectData analysed = analyse();
+      myCache.put(myClass.myClassName, hash, analysed);
+      return analysed;
+    }
+
+    private ProjectData analyse() {
+      final ProjectData analysed = myProjectData.createDetachedCopy();
+      final boolean processed = SaveHook.analyseUnloadedClass(analysed, myClass.myClassName, new ClassReader(myClass.myBytes),
+          myIsSampling, myCalculateSource, myIgnorePrivateConstructorOfUtilClass);
+      return processed ? analysed : null;
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger myCounter = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "Coverage unloaded classes analysis " + myCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
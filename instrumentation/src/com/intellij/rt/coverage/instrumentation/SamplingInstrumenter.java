@@ -19,13 +19,43 @@ package com.intellij.rt.coverage.instrumentation;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 import com.intellij.rt.coverage.util.LinesUtil;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.*;
 
+/**
+ * Sampling instrumenter that counts line hits through <code>ProjectData.touchLine</code>.
+ * <p>
+ * With {@link OptionsUtil#SAMPLING_LINE_MASK_FIELD}, the line mask is resolved once per class into a static field instead,
+ * and instrumented methods increment it directly.
+ */
 public class SamplingInstrumenter extends Instrumenter {
+  private static final String LINE_MASK_FIELD_NAME = "__$lineMask$__";
+  private static final String LINE_MASK_FIELD_TYPE = "[I";
   private static final String CLASS_DATA_LOCAL_VARIABLE_NAME = "__class__data__";
+  private static final String LINE_MASK_LOCAL_VARIABLE_NAME = "__$localLineMask$__";
+
+  private final ExtraFieldInstrumenter myExtraFieldInstrumenter;
+  private final boolean myWithProbes;
+
+  public SamplingInstrumenter(final ProjectData projectData, ClassVisitor classVisitor, ClassReader cr, String className, boolean shouldCalculateSource, boolean lazyInit) {
+    this(projectData, classVisitor, cr, className, shouldCalculateSource, lazyInit, true);
+  }
 
-  public SamplingInstrumenter(final ProjectData projectData, ClassVisitor classVisitor, String className, boolean shouldCalculateSource) {
+  /**
+   * @param withProbes if false, only the members required by instrumentation are added and lines are not counted,
+   *                   see {@link CoveredClassesDeinstrumenter}
+   */
+  public SamplingInstrumenter(final ProjectData projectData, ClassVisitor classVisitor, ClassReader cr, String className, boolean shouldCalculateSource, boolean lazyInit, boolean withProbes) {
     super(projectData, classVisitor, className, shouldCalculateSource);
+    myExtraFieldInstrumenter = OptionsUtil.SAMPLING_LINE_MASK_FIELD ? new ExtraLineMaskFieldSamplingInstrumenter(cr, className, lazyInit) : null;
+    myWithProbes = withProbes;
+  }
+
+  /**
+   * @return true if the instrumenter adds class members
+   */
+  static boolean addsMembers() {
+    return OptionsUtil.SAMPLING_LINE_MASK_FIELD;
   }
 
   protected MethodVisitor createMethodLineEnumerator(final MethodVisitor mv,
@@ -34,6 +64,31 @@ public class SamplingInstrumenter extends Instrumenter {
                                                      final int access,
                                                      final String signature,
                                                      final String[] exceptions) {
+    if (myExtraFieldInstrumenter == null) {
+      if (!myWithProbes) return mv;
+      return createClassDataMethodVisitor(mv, name, desc, access);
+    }
+    if (!myWithProbes) return myExtraFieldInstrumenter.createMethodVisitor(this, mv, mv, name);
+    final MethodVisitor visitor = new LocalVariableInserter(mv, access, desc, LINE_MASK_LOCAL_VARIABLE_NAME, LINE_MASK_FIELD_TYPE) {
+
+      public void visitLineNumber(final int line, final Label start) {
+        getOrCreateLineData(line, name, desc);
+        mv.visitVarInsn(Opcodes.ALOAD, getOrCreateLocalVariableIndex());
+        InstrumentationUtils.pushInt(mv, line);
+        InstrumentationUtils.incrementIntArrayByIndex(mv);
+        super.visitLineNumber(line, start);
+      }
+
+      public void visitCode() {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, myExtraFieldInstrumenter.getInternalClassName(), LINE_MASK_FIELD_NAME, LINE_MASK_FIELD_TYPE);
+        mv.visitVarInsn(Opcodes.ASTORE, getOrCreateLocalVariableIndex());
+        super.visitCode();
+      }
+    };
+    return myExtraFieldInstrumenter.createMethodVisitor(this, mv, visitor, name);
+  }
+
+  private MethodVisitor createClassDataMethodVisitor(final MethodVisitor mv, final String name, final String desc, final int access) {
     return new LocalVariableInserter(mv, access, desc, CLASS_DATA_LOCAL_VARIABLE_NAME, InstrumentationUtils.OBJECT_TYPE) {
 
       public void visitLineNumber(final int line, final Label start) {
@@ -53,9 +108,34 @@ public class SamplingInstrumenter extends Instrumenter {
     };
   }
 
+  @Override
+  public void visitEnd() {
+    if (myExtraFieldInstrumenter != null) {
+      myExtraFieldInstrumenter.generateMembers(this);
+    }
+    super.visitEnd();
+  }
+
   protected void initLineData() {
     final LineData[] lines = LinesUtil.calcLineArray(myMaxLineNumber, myLines);
     myClassData.initLineMask(lines);
     myClassData.setLines(lines);
   }
+
+  private class ExtraLineMaskFieldSamplingInstrumenter extends ExtraFieldInstrumenter {
+
+    public ExtraLineMaskFieldSamplingInstrumenter(ClassReader cr, String className, boolean lazyInit) {
+      super(cr, null, className, LINE_MASK_FIELD_NAME, LINE_MASK_FIELD_TYPE, true, lazyInit);
+    }
+
+    public void initField(MethodVisitor mv) {
+      mv.visitLdcInsn(getClassName());
+
+      //get line mask
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, ProjectData.PROJECT_DATA_OWNER, "getLineMask", "(Ljava/lang/String;)" + LINE_MASK_FIELD_TYPE, false);
+
+      //save line mask
+      mv.visitFieldInsn(Opcodes.PUTSTATIC, myExtraFieldInstrumenter.getInternalClassName(), LINE_MASK_FIELD_NAME, LINE_MASK_FIELD_TYPE);
+    }
+  }
 }
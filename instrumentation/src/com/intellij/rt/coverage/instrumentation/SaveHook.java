@@ -72,6 +72,16 @@ public class SaveHook implements Runnable {
       projectData.checkLineMappings();
       dropIgnoredLines(projectData);
       checkLineSignatures(projectData);
+      if (myMergeFile && OptionsUtil.MERGE_JOURNAL) {
+        final MergeJournal journal = new MergeJournal(myDataFile, mySourceMapFile);
+        try {
+          journal.append(projectData);
+          journal.fold(projectData);
+          return;
+        } catch (IOException e) {
+          ErrorReporter.reportError("Failed to append snapshot to the merge journal, merging into the data file directly", e);
+        }
+      }
       lock = CoverageIOUtil.FileLock.lock(myDataFile);
       if (myMergeFile) {
         final ProjectData load = ProjectDataLoader.load(myDataFile);
@@ -84,30 +94,47 @@ public class SaveHook implements Runnable {
     } catch (Throwable e) {
       ErrorReporter.reportError("Unexpected error", e);
     } finally {
+      if (myClassFinder != null) myClassFinder.closeArchives();
       CoverageIOUtil.FileLock.unlock(lock);
     }
   }
 
   public static void save(ProjectData projectData, File dataFile, File sourceMapFile) {
-    DataOutputStream os = null;
     try {
-      os = CoverageIOUtil.openFile(dataFile);
+      saveOrFail(projectData, dataFile, sourceMapFile, false);
+    } catch (IOException e) {
+      ErrorReporter.reportError("Error writing file " + dataFile.getPath(), e);
+    }
+  }
+
+  /**
+   * Save coverage data, failing if the data file cannot be written completely.
+   *
+   * @param sync whether to force the data file content to the storage device before returning
+   */
+  static void saveOrFail(ProjectData projectData, File dataFile, File sourceMapFile, boolean sync) throws IOException {
+    final FileOutputStream fileStream = new FileOutputStream(dataFile);
+    final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fileStream));
+    final Map<String, ClassData> classes = new HashMap<String, ClassData>(projectData.getClasses());
+    try {
       final TObjectIntHashMap<String> dict = new TObjectIntHashMap<String>();
-      final Map<String, ClassData> classes = new HashMap<String, ClassData>(projectData.getClasses());
       CoverageIOUtil.writeINT(os, classes.size());
       saveDictionary(os, dict, classes);
-      saveData(os, dict, classes);
+      final ReportIndex index = new ReportIndex(classes.size());
+      saveData(os, dict, classes, index);
 
       CoverageIOUtil.writeINT(os, ProjectDataLoader.REPORT_VERSION);
       CoverageIOUtil.writeUTF(os, getExtraInfoString());
-      ReportSectionsUtil.saveSections(projectData, os, dict);
-
-      saveSourceMap(classes, sourceMapFile);
-    } catch (IOException e) {
-      ErrorReporter.reportError("Error writing file " + dataFile.getPath(), e);
+      ReportSectionsUtil.saveSections(projectData, os, dict, index);
+      index.save(os);
+      os.flush();
+      if (sync) {
+        fileStream.getFD().sync();
+      }
     } finally {
       CoverageIOUtil.close(os);
     }
+    saveSourceMap(classes, sourceMapFile);
   }
 
   /**
@@ -143,6 +170,11 @@ public class SaveHook implements Runnable {
     for (Map.Entry<String, String> entry : map.entrySet()) {
       String className = entry.getKey();
       String source = entry.getValue();
+      if (projectData instanceof LazyProjectData) {
+        // do not load all classes of the report
+        ((LazyProjectData) projectData).setSource(className, source);
+        continue;
+      }
       ClassData data = projectData.getClassData(className);
       if (data != null) {
         data.setSource(source);
@@ -173,8 +205,9 @@ public class SaveHook implements Runnable {
     }
   }
 
-  private static void saveData(DataOutputStream os, final TObjectIntHashMap<String> dict, Map<String, ClassData> classes) throws IOException {
+  private static void saveData(DataOutputStream os, final TObjectIntHashMap<String> dict, Map<String, ClassData> classes, ReportIndex index) throws IOException {
     for (ClassData o : classes.values()) {
+      index.setClassOffset(dict.get(o.getName()), os.size());
       o.save(os, new DictionaryLookup() {
         public int getDictionaryIndex(String className) {
           return dict.containsKey(className) ? dict.get(className) : -1;
@@ -286,6 +319,37 @@ public class SaveHook implements Runnable {
                                                 final boolean calculateSource, final boolean isSampling,
                                                 final boolean ignorePrivateConstructorOfUtilClass,
                                                 final boolean checkLineMappings) {
+    appendUnloadedFullAnalysis(projectData, classFinder, calculateSource, isSampling, ignorePrivateConstructorOfUtilClass,
+        checkLineMappings, OptionsUtil.UNLOADED_CLASSES_THREADS);
+  }
+
+  public static void appendUnloadedFullAnalysis(final ProjectData projectData, final ClassFinder classFinder,
+                                                final boolean calculateSource, final boolean isSampling,
+                                                final boolean ignorePrivateConstructorOfUtilClass,
+                                                final boolean checkLineMappings, final int threads) {
+    final String cachePath = OptionsUtil.UNLOADED_CLASSES_CACHE;
+    appendUnloadedFullAnalysis(projectData, classFinder, calculateSource, isSampling, ignorePrivateConstructorOfUtilClass,
+        checkLineMappings, threads, cachePath == null ? null : new File(cachePath));
+  }
+
+  /**
+   * @param threads   number of threads used for class files analysis,
+   *                  classes are analysed in the current thread when it is not greater than 1
+   * @param cacheFile file to store analysis results between runs or null if the cache is disabled
+   */
+  public static void appendUnloadedFullAnalysis(final ProjectData projectData, final ClassFinder classFinder,
+                                                final boolean calculateSource, final boolean isSampling,
+                                                final boolean ignorePrivateConstructorOfUtilClass,
+                                                final boolean checkLineMappings, final int threads,
+                                                final File cacheFile) {
+    if ((threads > 1 || cacheFile != null) && OptionsUtil.THREAD_SAFE_STORAGE) {
+      final UnloadedClassesCache cache = UnloadedClassesCache.open(cacheFile, projectData, isSampling, calculateSource,
+          ignorePrivateConstructorOfUtilClass);
+      new ParallelUnloadedClassesAnalyzer(projectData, calculateSource, isSampling, ignorePrivateConstructorOfUtilClass,
+          checkLineMappings, Math.max(1, threads), cache).analyse(classFinder);
+      if (cache != null) cache.save();
+      return;
+    }
     classFinder.iterateMatchedClasses(new ClassEntry.Consumer() {
       public void consume(ClassEntry classEntry) {
         final ClassData cd = projectData.getClassData(StringsPool.getFromPool(classEntry.getClassName()));
@@ -306,12 +370,26 @@ public class SaveHook implements Runnable {
     appendUnloadedClass(projectData, className, reader, isSampling, calculateSource, ignorePrivateConstructorOfUtilClass, true);
   }
 
-  private static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, boolean isSampling, boolean calculateSource, boolean ignorePrivateConstructorOfUtilClass, boolean checkLineMappings) {
+  static void appendUnloadedClass(ProjectData projectData, String className, ClassReader reader, boolean isSampling, boolean calculateSource, boolean ignorePrivateConstructorOfUtilClass, boolean checkLineMappings) {
+    if (!analyseUnloadedClass(projectData, className, reader, isSampling, calculateSource, ignorePrivateConstructorOfUtilClass)) return;
+    registerUnloadedClass(projectData, className, checkLineMappings);
+  }
+
+  /**
+   * Collect lines and branches of a class into <code>projectData</code>.
+   *
+   * @return false if the class is ignored
+   */
+  static boolean analyseUnloadedClass(ProjectData projectData, String className, ClassReader reader, boolean isSampling, boolean calculateSource, boolean ignorePrivateConstructorOfUtilClass) {
     final ClassVisitor visitor = CoverageClassfileTransformer.createInstrumenter(
         projectData, className, reader, EMPTY_CLASS_VISITOR,
         null, isSampling, calculateSource, ignorePrivateConstructorOfUtilClass);
-    if (visitor == null) return;
+    if (visitor == null) return false;
     reader.accept(visitor, ClassReader.SKIP_FRAMES);
+    return true;
+  }
+
+  static void registerUnloadedClass(ProjectData projectData, String className, boolean checkLineMappings) {
     final ClassData classData = projectData.getClassData(className);
     if (classData == null || classData.getLines() == null) return;
     classData.dropIgnoredLines();
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.*;
+import com.intellij.rt.coverage.data.instructions.ClassInstructions;
+import com.intellij.rt.coverage.data.instructions.JumpInstructions;
+import com.intellij.rt.coverage.data.instructions.LineInstructions;
+import com.intellij.rt.coverage.data.instructions.SwitchInstructions;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
+import com.intellij.rt.coverage.util.StringsPool;
+import org.jetbrains.coverage.gnu.trove.TIntHashSet;
+
+import java.io.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * On-disk cache of unloaded classes analysis results.
+ * <p>
+ * An entry is stored per class and is valid while the class file content hash is the same.
+ * The whole cache is dropped when the analysis options or the agent itself change.
+ * Only the entries of the classes that were requested during the run are written back, so the removed classes
+ * do not stay in the cache forever.
+ *
+ * @see ParallelUnloadedClassesAnalyzer
+ */
+class UnloadedClassesCache {
+  private static final int MAGIC = 0x49435543;
+  private static final int VERSION = 0;
+
+  private final File myFile;
+  private final ProjectData myProjectData;
+  private final String myOptions;
+  private final Map<String, Entry> myLoaded = new ConcurrentHashMap<String, Entry>();
+  private final Map<String, Entry> myUsed = new ConcurrentHashMap<String, Entry>();
+
+  private UnloadedClassesCache(File file, ProjectData projectData, String options) {
+    myFile = file;
+    myProjectData = projectData;
+    myOptions = options;
+  }
+
+  /**
+   * @return cache stored in <code>file</code> or null if cache is disabled
+   */
+  static UnloadedClassesCache open(File file, ProjectData projectData, boolean isSampling, boolean calculateSource,
+                                   boolean ignorePrivateConstructorOfUtilClass) {
+    if (file == null) return null;
+    final UnloadedClassesCache cache = new UnloadedClassesCache(file, projectData,
+        getOptionsString(projectData, isSampling, calculateSource, ignorePrivateConstructorOfUtilClass));
+    if (file.exists()) {
+      try {
+        cache.load();
+      } catch (IOException e) {
+        cache.myLoaded.clear();
+        ErrorReporter.reportError("Failed to load unloaded classes cache " + file.getPath(), e);
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * All the parameters that affect the analysis result.
+   * Instrumentation options are included too, as the analysis is done with the instrumenter of the current mode.
+   */
+  private static String getOptionsString(ProjectData projectData, boolean isSampling, boolean calculateSource,
+                                         boolean ignorePrivateConstructorOfUtilClass) {
+    final StringBuilder result = new StringBuilder();
+    result.append(getAgentStamp())
+        .append(';').append(isSampling)
+        .append(';').append(calculateSource)
+        .append(';').append(ignorePrivateConstructorOfUtilClass)
+        .append(';').append(projectData.isInstructionsCoverageEnabled())
+        .append(';').append(projectData.isTestTracking())
+        .append(';').append(OptionsUtil.NEW_SAMPLING_ENABLED)
+        .append(';').append(OptionsUtil.NEW_TRACING_ENABLED)
+        .append(';').append(OptionsUtil.NEW_TEST_TRACKING_ENABLED)
+        .append(';').append(OptionsUtil.TRACING_STRIPES)
+        .append(';').append(OptionsUtil.TRACING_ATOMIC_HITS)
+        .append(';').append(OptionsUtil.CLASS_INIT_ANALYSIS)
+        .append(';').append(OptionsUtil.SAMPLING_BYTE_MASK)
+        .append(';').append(OptionsUtil.SAMPLING_WRITE_ONCE)
+        .append(';').append(OptionsUtil.SAMPLING_LINE_MASK_FIELD)
+        .append(';').append(OptionsUtil.CONDY_ENABLED)
+        .append(';').append(OptionsUtil.INSTRUCTIONS_COVERAGE_ENABLED)
+        // options of the Kotlin filters
+        .append(';').append(System.getProperty("coverage.kotlin.enable"))
+        .append(';').append(System.getProperty("idea.coverage.check.inline.signatures"));
+    final List<Pattern> annotations = projectData.getAnnotationsToIgnore();
+    if (annotations != null) {
+      for (Pattern pattern : annotations) {
+        result.append(';').append(pattern.pattern());
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Analysis results depend on the agent version, so the cache is invalidated when the agent content changes.
+   * The agent may be loaded from a jar file or from a classes directory.
+   */
+  private static String getAgentStamp() {
+    final CodeSource codeSource = UnloadedClassesCache.class.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null) return "";
+    final File agent = new File(codeSource.getLocation().getPath());
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("MD5");
+      digestContent(agent, "", digest);
+      final StringBuilder result = new StringBuilder();
+      for (byte b : digest.digest()) {
+        result.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+      }
+      return result.toString();
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to compute hash of the coverage agent " + agent.getPath(), e);
+      return agent.getPath() + ':' + agent.length() + ':' + agent.lastModified();
+    }
+  }
+
+  private static void digestContent(File file, String relativePath, MessageDigest digest) throws IOException {
+    digest.update(relativePath.getBytes("UTF-8"));
+    if (file.isDirectory()) {
+      final String[] children = file.list();
+      if (children == null) return;
+      Arrays.sort(children);
+      for (String child : children) {
+        digestContent(new File(file, child), relativePath + '/' + child, digest);
+      }
+      return;
+    }
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  /**
+   * Restore analysis result of a class.
+   *
+   * @return null if there is no valid cache entry for this class,
+   * an entry with null result if the class is ignored by the analysis
+   */
+  Entry get(String className, byte[] hash) {
+    final Entry entry = myLoaded.get(className);
+    if (entry == null || !Arrays.equals(entry.myHash, hash)) return null;
+    myUsed.put(className, entry);
+    return entry;
+  }
+
+  /**
+   * @param analysed project data with the analysed class or null if the class is ignored by the analysis
+   */
+  void put(String className, byte[] hash, ProjectData analysed) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      if (analysed != null) {
+        writeClass(out, analysed, className);
+      }
+      out.close();
+      myUsed.put(className, new Entry(hash, analysed == null ? null : bytes.toByteArray()));
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to cache analysis results of class " + className, e);
+    }
+  }
+
+  static byte[] hash(byte[] classBytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(classBytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void load() throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+      if (!myOptions.equals(CoverageIOUtil.readUTFFast(in))) return;
+      final int size = CoverageIOUtil.readINT(in);
+      for (int i = 0; i < size; i++) {
+        final String className = CoverageIOUtil.readUTFFast(in);
+        final byte[] hash = new byte[CoverageIOUtil.readINT(in)];
+        in.readFully(hash);
+        final int length = in.readInt();
+        byte[] data = null;
+        if (length >= 0) {
+          data = new byte[length];
+          in.readFully(data);
+        }
+        myLoaded.put(className, new Entry(hash, data));
+      }
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
+  /**
+   * Write the cache into a temporary file first, so that a broken cache is never observed.
+   */
+  void save() {
+    final File parent = myFile.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists()) parent.mkdirs();
+    final File tmp = new File(myFile.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = CoverageIOUtil.openFile(tmp);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      CoverageIOUtil.writeUTF(out, myOptions);
+      CoverageIOUtil.writeINT(out, myUsed.size());
+      for (Map.Entry<String, Entry> e : myUsed.entrySet()) {
+        final Entry entry = e.getValue();
+        CoverageIOUtil.writeUTF(out, e.getKey());
+        CoverageIOUtil.writeINT(out, entry.myHash.length);
+        out.write(entry.myHash);
+        if (entry.myData == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(entry.myData.length);
+          out.write(entry.myData);
+        }
+      }
+      out.close();
+      out = null;
+      if (!tmp.renameTo(myFile)) {
+        myFile.delete();
+        if (!tmp.renameTo(myFile)) {
+          throw new IOException("Failed to rename " + tmp.getPath() + " to " + myFile.getPath());
+        }
+      }
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to save unloaded classes cache " + myFile.getPath(), e);
+    } finally {
+      CoverageIOUtil.close(out);
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Write the results that are used in {@link ParallelUnloadedClassesAnalyzer#applyAnalysedClass}.
+   */
+  private static void writeClass(DataOutputStream out, ProjectData analysed, String className) throws IOException {
+    final ClassData classData = analysed.getClassData(className);
+    out.writeBoolean(classData != null);
+    if (classData == null) return;
+    writeNullableString(out, classData.getSource());
+
+    int outerClasses = 0;
+    for (ClassData outerClass : analysed.getClassesCollection()) {
+      if (outerClass != classData) outerClasses++;
+    }
+    CoverageIOUtil.writeINT(out, outerClasses);
+    for (ClassData outerClass : analysed.getClassesCollection()) {
+      if (outerClass != classData) CoverageIOUtil.writeUTF(out, outerClass.getName());
+    }
+
+    final Map<String, FileMapData[]> linesMap = analysed.getLinesMap();
+    final FileMapData[] mappings = linesMap == null ? null : linesMap.get(className);
+    writeMappings(out, mappings);
+
+    out.writeBoolean(classData.isFullyAnalysed());
+    if (!classData.isFullyAnalysed()) return;
+    final int[] hitsMask = classData.getHitsMask();
+    out.writeInt(hitsMask == null ? -1 : hitsMask.length);
+    writeLines(out, (LineData[]) classData.getLines(), hitsMask != null);
+    final TIntHashSet ignoredLines = classData.getIgnoredLines();
+    final int[] ignored = ignoredLines == null ? new int[0] : ignoredLines.toArray();
+    CoverageIOUtil.writeINT(out, ignored.length);
+    for (int line : ignored) {
+      CoverageIOUtil.writeINT(out, line);
+    }
+    final ClassInstructions instructions = analysed.isInstructionsCoverageEnabled() ? analysed.getInstructions().get(className) : null;
+    out.writeBoolean(instructions != null);
+    if (instructions != null) {
+      writeInstructions(out, instructions);
+    }
+  }
+
+  private ProjectData readClass(String className, byte[] data) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    final ProjectData analysed = myProjectData.createDetachedCopy();
+    if (!in.readBoolean()) return analysed;
+    final ClassData classData = analysed.getOrCreateClassData(className);
+    classData.setSource(readNullableString(in));
+
+    final int outerClasses = CoverageIOUtil.readINT(in);
+    for (int i = 0; i < outerClasses; i++) {
+      analysed.getOrCreateClassData(StringsPool.getFromPool(CoverageIOUtil.readUTFFast(in)));
+    }
+
+    final FileMapData[] mappings = readMappings(in);
+    if (mappings != null) {
+      analysed.addLineMaps(className, mappings);
+    }
+
+    if (!in.readBoolean()) return analysed;
+    final int hitsMaskSize = in.readInt();
+    if (hitsMaskSize >= 0) {
+      classData.createHitsMask(hitsMaskSize);
+    }
+    classData.setLines(readLines(in, hitsMaskSize >= 0));
+    final int ignoredSize = CoverageIOUtil.readINT(in);
+    if (ignoredSize > 0) {
+      final TIntHashSet ignoredLines = new TIntHashSet(ignoredSize);
+      for (int i = 0; i < ignoredSize; i++) {
+        ignoredLines.add(CoverageIOUtil.readINT(in));
+      }
+      classData.setIgnoredLines(ignoredLines);
+    }
+    if (in.readBoolean()) {
+      analysed.getInstructions().put(className, readInstructions(in));
+    }
+    return analysed;
+  }
+
+  private static void writeMappings(DataOutputStream out, FileMapData[] mappings) throws IOException {
+    out.writeInt(mappings == null ? -1 : mappings.length);
+    if (mappings == null) return;
+    for (FileMapData mapping : mappings) {
+      out.writeBoolean(mapping != null);
+      if (mapping == null) continue;
+      writeNullableString(out, mapping.getClassName());
+      writeNullableString(out, mapping.getFileName());
+      final LineMapData[] lines = mapping.getLines();
+      out.writeInt(lines == null ? -1 : lines.length);
+      if (lines == null) continue;
+      for (LineMapData line : lines) {
+        out.writeBoolean(line != null);
+        if (line == null) continue;
+        CoverageIOUtil.writeINT(out, line.getSourceLineNumber());
+        CoverageIOUtil.writeINT(out, line.getTargetMinLine());
+        CoverageIOUtil.writeINT(out, line.getTargetMaxLine());
+      }
+    }
+  }
+
+  private static FileMapData[] readMappings(DataInputStream in) throws IOException {
+    final int size = in.readInt();
+    if (size < 0) return null;
+    final FileMapData[] mappings = new FileMapData[size];
+    for (int i = 0; i < size; i++) {
+      if (!in.readBoolean()) continue;
+      final String className = readNullableString(in);
+      final String fileName = readNullableString(in);
+      final int linesSize = in.readInt();
+      LineMapData[] lines = null;
+      if (linesSize >= 0) {
+        lines = new LineMapData[linesSize];
+        for (int j = 0; j < linesSize; j++) {
+          if (!in.readBoolean()) continue;
+          lines[j] = new LineMapData(CoverageIOUtil.readINT(in), CoverageIOUtil.readINT(in), CoverageIOUtil.readINT(in));
+        }
+      }
+      mappings[i] = new FileMapData(className, fileName, lines);
+    }
+    return mappings;
+  }
+
+  /**
+   * Hits are not written as unloaded classes are not covered.
+   *
+   * @param withIds whether line and branch ids are assigned, which is the case when the hits mask is used
+   */
+  private static void writeLines(DataOutputStream out, LineData[] lines, boolean withIds) throws IOException {
+    CoverageIOUtil.writeINT(out, lines.length);
+    for (LineData line : lines) {
+      out.writeBoolean(line != null);
+      if (line == null) continue;
+      CoverageIOUtil.writeINT(out, line.getLineNumber());
+      writeNullableString(out, line.getMethodSignature());
+      if (withIds) out.writeInt(line.getId());
+      final JumpData[] jumps = line.getJumps();
+      out.writeInt(jumps == null ? -1 : jumps.length);
+      if (jumps != null && withIds) {
+        for (JumpData jump : jumps) {
+          out.writeInt(jump.getId(true));
+          out.writeInt(jump.getId(false));
+        }
+      }
+      final SwitchData[] switches = line.getSwitches();
+      out.writeInt(switches == null ? -1 : switches.length);
+      if (switches != null) {
+        for (SwitchData switchData : switches) {
+          final int[] keys = switchData.getKeys();
+          CoverageIOUtil.writeINT(out, keys.length);
+          for (int i = 0; i < keys.length; i++) {
+            out.writeInt(keys[i]);
+            if (withIds) out.writeInt(switchData.getId(i));
+          }
+          if (withIds) out.writeInt(switchData.getId(-1));
+        }
+      }
+    }
+  }
+
+  private static LineData[] readLines(DataInputStream in, boolean withIds) throws IOException {
+    final LineData[] lines = new LineData[CoverageIOUtil.readINT(in)];
+    for (int i = 0; i < lines.length; i++) {
+      if (!in.readBoolean()) continue;
+      final int lineNumber = CoverageIOUtil.readINT(in);
+      final String signature = readNullableString(in);
+      final LineData line = new LineData(lineNumber, signature == null ? null : StringsPool.getFromPool(signature));
+      if (withIds) line.setId(in.readInt());
+      final int jumps = in.readInt();
+      for (int j = 0; j < jumps; j++) {
+        final JumpData jump = line.addJump(j);
+        if (withIds) {
+          jump.setId(in.readInt(), true);
+          jump.setId(in.readInt(), false);
+        }
+      }
+      final int switches = in.readInt();
+      for (int s = 0; s < switches; s++) {
+        final int[] keys = new int[CoverageIOUtil.readINT(in)];
+        final int[] ids = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+          keys[k] = in.readInt();
+          if (withIds) ids[k] = in.readInt();
+        }
+        final SwitchData switchData = line.addSwitch(s, keys);
+        if (withIds) {
+          for (int k = 0; k < keys.length; k++) {
+            switchData.setId(ids[k], k);
+          }
+          switchData.setId(in.readInt(), -1);
+        }
+      }
+      if (jumps >= 0 || switches >= 0) {
+        line.fillArrays();
+      }
+      lines[i] = line;
+    }
+    return lines;
+  }
+
+  private static void writeInstructions(DataOutputStream out, ClassInstructions instructions) throws IOException {
+    final LineInstructions[] lines = instructions.getlines();
+    CoverageIOUtil.writeINT(out, lines.length);
+    for (LineInstructions line : lines) {
+      out.writeBoolean(line != null);
+      if (line == null) continue;
+      CoverageIOUtil.writeINT(out, line.getInstructions());
+      final List<JumpInstructions> jumps = line.getJumps();
+      CoverageIOUtil.writeINT(out, jumps == null ? 0 : jumps.size());
+      if (jumps != null) {
+        for (JumpInstructions jump : jumps) {
+          CoverageIOUtil.writeINT(out, jump.getInstructions(true));
+          CoverageIOUtil.writeINT(out, jump.getInstructions(false));
+        }
+      }
+      final List<SwitchInstructions> switches = line.getSwitches();
+      CoverageIOUtil.writeINT(out, switches == null ? 0 : switches.size());
+      if (switches != null) {
+        for (SwitchInstructions switchInstructions : switches) {
+          CoverageIOUtil.writeINT(out, switchInstructions.size());
+          for (int key = -1; key < switchInstructions.size(); key++) {
+            CoverageIOUtil.writeINT(out, switchInstructions.getInstructions(key));
+          }
+        }
+      }
+    }
+  }
+
+  private static ClassInstructions readInstructions(DataInputStream in) throws IOException {
+    final LineInstructions[] lines = new LineInstructions[CoverageIOUtil.readINT(in)];
+    for (int i = 0; i < lines.length; i++) {
+      if (!in.readBoolean()) continue;
+      final LineInstructions line = new LineInstructions();
+      line.setInstructions(CoverageIOUtil.readINT(in));
+      final int jumps = CoverageIOUtil.readINT(in);
+      for (int j = 0; j < jumps; j++) {
+        final JumpInstructions jump = new JumpInstructions();
+        jump.setInstructions(true, CoverageIOUtil.readINT(in));
+        jump.setInstructions(false, CoverageIOUtil.readINT(in));
+        line.addJump(jump);
+      }
+      final int switches = CoverageIOUtil.readINT(in);
+      for (int s = 0; s < switches; s++) {
+        final SwitchInstructions switchInstructions = new SwitchInstructions(CoverageIOUtil.readINT(in));
+        for (int key = -1; key < switchInstructions.size(); key++) {
+          switchInstructions.setInstructions(key, CoverageIOUtil.readINT(in));
+        }
+        line.addSwitch(switchInstructions);
+      }
+      lines[i] = line;
+    }
+    return new ClassInstructions(lines);
+  }
+
+  private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) CoverageIOUtil.writeUTF(out, value);
+  }
+
+  private static String readNullableString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? CoverageIOUtil.readUTFFast(in) : null;
+  }
+
+  class Entry {
+    private final byte[] myHash;
+    /** Serialized analysis result, null if the class is ignored. */
+    private final byte[] myData;
+
+    private Entry(byte[] hash, byte[] data) {
+      myHash = hash;
+      myData = data;
+    }
+
+    /**
+     * @return project data with the analysed class or null if the class is ignored by the analysis
+     */
+    ProjectData restore(String className) throws IOException {
+      return myData == null ? null : readClass(className, myData);
+    }
+  }
+}
@@ -162,7 +162,7 @@ public class KotlinInlineVisitingFilter extends MethodVisitingFilter {
   }
 
   private FileMapData[] getMappings() {
-    final ProjectData project = ProjectData.getProjectData();
+    final ProjectData project = myContext.getProjectData();
     if (project == null) return null;
     final Map<String, FileMapData[]> mappings = project.getLinesMap();
     if (mappings == null) return null;
@@ -253,6 +253,34 @@ public class KotlinInlineVisitingFilter extends MethodVisitingFilter {
       }
     }
     if (linesWithIncorrectSignatures.isEmpty()) return;
+    final ClassReader indexedReader = readIndexedClass(classData.getName(), classFinder);
+    if (indexedReader != null) {
+      fixLineSignatures(indexedReader, classData, linesWithIncorrectSignatures);
+    } else {
+      findAndFixLineSignatures(classData, classFinder, linesWithIncorrectSignatures);
+    }
+    linesWithIncorrectSignatures.forEach(new TIntProcedure() {
+      public boolean execute(int line) {
+        final LineData lineData = classData.getLineData(line);
+        lineData.setMethodSignature(lineData.getMethodSignature().replace(UNKNOWN_DESC, DEFAULT_DESC));
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Read the class from the class path entry where it has been found during the unloaded classes search.
+   */
+  private static ClassReader readIndexedClass(String className, ClassFinder classFinder) {
+    try {
+      final byte[] bytes = classFinder.getClassBytes(className);
+      return bytes == null ? null : new ClassReader(bytes);
+    } catch (Throwable ignored) {
+      return null;
+    }
+  }
+
+  private static void findAndFixLineSignatures(ClassData classData, ClassFinder classFinder, TIntHashSet linesWithIncorrectSignatures) {
     final Set<ClassLoader> classLoaders = new HashSet<ClassLoader>(classFinder.getClassloaders());
     classLoaders.add(null);
     for (ClassLoader loader : classLoaders) {
@@ -260,36 +288,31 @@ public class KotlinInlineVisitingFilter extends MethodVisitingFilter {
       try {
         is = getClassInputStream(loader, classData.getName());
         if (is == null) continue;
-        final ClassReader reader = new ClassReader(is);
-
-        reader.accept(new ClassVisitor(Opcodes.API_VERSION) {
-          @Override
-          public MethodVisitor visitMethod(int access, final String name, final String descriptor, String signature, String[] exceptions) {
-            return new MethodVisitor(Opcodes.API_VERSION) {
-              @Override
-              public void visitLineNumber(int line, Label start) {
-                super.visitLineNumber(line, start);
-                if (linesWithIncorrectSignatures.remove(line)) {
-                  final LineData lineData = classData.getLineData(line);
-                  lineData.setMethodSignature(name + descriptor);
-                }
-              }
-            };
-          }
-        }, ClassReader.SKIP_FRAMES);
+        fixLineSignatures(new ClassReader(is), classData, linesWithIncorrectSignatures);
         break;
       } catch (Throwable ignored) {
       } finally {
         CoverageIOUtil.close(is);
       }
     }
-    linesWithIncorrectSignatures.forEach(new TIntProcedure() {
-      public boolean execute(int line) {
-        final LineData lineData = classData.getLineData(line);
-        lineData.setMethodSignature(lineData.getMethodSignature().replace(UNKNOWN_DESC, DEFAULT_DESC));
-        return true;
+  }
+
+  private static void fixLineSignatures(ClassReader reader, final ClassData classData, final TIntHashSet linesWithIncorrectSignatures) {
+    reader.accept(new ClassVisitor(Opcodes.API_VERSION) {
+      @Override
+      public MethodVisitor visitMethod(int access, final String name, final String descriptor, String signature, String[] exceptions) {
+        return new MethodVisitor(Opcodes.API_VERSION) {
+          @Override
+          public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+            if (linesWithIncorrectSignatures.remove(line)) {
+              final LineData lineData = classData.getLineData(line);
+              lineData.setMethodSignature(name + descriptor);
+            }
+          }
+        };
       }
-    });
+    }, ClassReader.SKIP_FRAMES);
   }
 
   private static InputStream getClassInputStream(ClassLoader loader, String className) {
@@ -62,7 +62,7 @@ class TestTrackingClassDataInstrumenter extends NewTracingInstrumenter {
   protected final ExtraFieldInstrumenter myExtraClassDataFieldInstrumenter;
 
   public TestTrackingClassDataInstrumenter(ProjectData projectData, ClassVisitor classVisitor, ClassReader cr, String className, boolean shouldCalculateSource) {
-    super(projectData, classVisitor, cr, className, shouldCalculateSource);
+    super(projectData, classVisitor, cr, className, shouldCalculateSource, true);
     myExtraClassDataFieldInstrumenter = new ExtraClassDataFieldTestTrackingInstrumenter(cr, className);
   }
 
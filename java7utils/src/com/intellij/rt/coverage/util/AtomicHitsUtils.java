@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Lossless hits counting, which is used by instrumented code when <code>coverage.tracing.atomic</code> is enabled.
+ * <p>
+ * On Java 9+ increments are done with <code>VarHandle.getAndAdd</code> on the hits array element.
+ * The var handle is accessed through a constant method handle, so the call is inlined by JIT.
+ * On older versions increments are done under the array monitor.
+ */
+public class AtomicHitsUtils {
+  /** <code>(int[] hits, int index, int delta) -> int</code> or null if var handles are not available. */
+  private static final MethodHandle GET_AND_ADD = createGetAndAdd();
+
+  public static void increment(int[] hits, int index) {
+    if (GET_AND_ADD != null) {
+      try {
+        final int ignored = (int) GET_AND_ADD.invokeExact(hits, index, 1);
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    } else {
+      synchronized (hits) {
+        hits[index]++;
+      }
+    }
+  }
+
+  private static MethodHandle createGetAndAdd() {
+    try {
+      final Method arrayElementVarHandle = MethodHandles.class.getMethod("arrayElementVarHandle", Class.class);
+      final Object varHandle = arrayElementVarHandle.invoke(null, int[].class);
+      final Class<?> accessModeClass = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+      final Object getAndAdd = enumValueOf(accessModeClass, "GET_AND_ADD");
+      final Method toMethodHandle = Class.forName("java.lang.invoke.VarHandle").getMethod("toMethodHandle", accessModeClass);
+      return (MethodHandle) toMethodHandle.invoke(varHandle, getAndAdd);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (Throwable e) {
+      ErrorReporter.reportError("Failed to create hits var handle, falling back to synchronized increments", e);
+      return null;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E extends Enum<E>> E enumValueOf(Class<?> enumClass, String name) {
+    return Enum.valueOf((Class<E>) enumClass, name);
+  }
+}
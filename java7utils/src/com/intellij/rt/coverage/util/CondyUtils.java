@@ -28,4 +28,8 @@ public class CondyUtils {
   public static int[] getLineMask(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className) {
     return ProjectData.getLineMask(className);
   }
+
+  public static byte[] getLineByteMask(MethodHandles.Lookup lookup, String name, Class<?> clazz, String className) {
+    return ProjectData.getLineByteMask(className);
+  }
 }
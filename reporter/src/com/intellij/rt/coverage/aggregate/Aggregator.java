@@ -23,6 +23,7 @@ import com.intellij.rt.coverage.instrumentation.SaveHook;
 import com.intellij.rt.coverage.report.data.BinaryReport;
 import com.intellij.rt.coverage.report.data.Filters;
 import com.intellij.rt.coverage.report.data.Module;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import com.intellij.rt.coverage.util.ProjectDataLoader;
 import com.intellij.rt.coverage.util.classFinder.ClassFilter;
 import com.intellij.rt.coverage.util.classFinder.ClassFinder;
@@ -32,7 +33,14 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 public class Aggregator {
@@ -60,21 +68,64 @@ public class Aggregator {
   public ProjectData getProjectData() {
     if (myProjectData != null) return myProjectData;
     final ProjectData projectData = collectCoverageInformationFromOutputs();
-    for (BinaryReport report : myReports) {
-      final ProjectData data = ProjectDataLoader.load(report.getDataFile());
-      for (ClassData classData : data.getClassesCollection()) {
-        final ClassData collectedClassData = projectData.getClassData(classData.getName());
-        if (collectedClassData == null) {
-          // projectData contains all classes already filtered by outputs and filters
-          // so this class must be filtered
-          continue;
+    mergeReports(projectData);
+    myProjectData = projectData;
+    return projectData;
+  }
+
+  private void mergeReports(final ProjectData projectData) {
+    mergeReports(projectData, myReports, OptionsUtil.AGGREGATOR_THREADS);
+  }
+
+  /**
+   * Load binary reports in parallel and merge them in the order of the reports,
+   * so the result does not depend on the order in which the loading finishes.
+   * At most <code>2 * threads</code> loaded reports are kept in memory.
+   * Reports are loaded sequentially unless thread safe storage is enabled, as loading fills the shared strings pool.
+   */
+  static void mergeReports(final ProjectData projectData, List<BinaryReport> reports, int threads) {
+    threads = Math.min(threads, reports.size());
+    if (threads <= 1 || !OptionsUtil.THREAD_SAFE_STORAGE) {
+      for (BinaryReport report : reports) {
+        mergeReport(projectData, ProjectDataLoader.loadMapped(report.getDataFile()));
+      }
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final LinkedList<Future<ProjectData>> loading = new LinkedList<Future<ProjectData>>();
+      final Iterator<BinaryReport> it = reports.iterator();
+      while (it.hasNext() || !loading.isEmpty()) {
+        while (it.hasNext() && loading.size() < 2 * threads) {
+          final BinaryReport report = it.next();
+          loading.add(executor.submit(new Callable<ProjectData>() {
+            public ProjectData call() {
+              return ProjectDataLoader.loadMapped(report.getDataFile());
+            }
+          }));
         }
-        collectedClassData.merge(classData);
+        mergeReport(projectData, loading.removeFirst().get());
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to load coverage reports", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
+  private static void mergeReport(ProjectData projectData, ProjectData data) {
+    for (ClassData classData : data.getClassesCollection()) {
+      final ClassData collectedClassData = projectData.getClassData(classData.getName());
+      if (collectedClassData == null) {
+        // projectData contains all classes already filtered by outputs and filters
+        // so this class must be filtered
+        continue;
+      }
+      collectedClassData.merge(classData);
     }
-    myProjectData = projectData;
-    return projectData;
   }
 
   /**
@@ -108,7 +159,12 @@ public class Aggregator {
     }
     projectData.setInstructionsCoverage(true);
     projectData.setAnnotationsToIgnore(excludeAnnotations);
-    SaveHook.appendUnloadedFullAnalysis(projectData, createClassFinder(), true, false, true, false);
+    final ClassFinder classFinder = createClassFinder();
+    try {
+      SaveHook.appendUnloadedFullAnalysis(projectData, classFinder, true, false, true, false);
+    } finally {
+      classFinder.closeArchives();
+    }
     projectData.dropLineMappings();
     return projectData;
   }
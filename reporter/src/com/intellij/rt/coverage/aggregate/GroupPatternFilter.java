@@ -20,7 +20,7 @@ import com.intellij.rt.coverage.util.classFinder.ClassFilter;
 
 import java.util.List;
 
-public class GroupPatternFilter implements ClassFilter {
+public class GroupPatternFilter implements ClassFilter.PackageFilter {
   private final List<PatternFilter> myInternalFilters;
 
   public GroupPatternFilter(List<PatternFilter> filters) {
@@ -34,4 +34,11 @@ public class GroupPatternFilter implements ClassFilter {
     }
     return false;
   }
+
+  public boolean mayIncludePackage(String packageName) {
+    for (PatternFilter filter : myInternalFilters) {
+      if (filter.mayIncludePackage(packageName)) return true;
+    }
+    return false;
+  }
 }
@@ -24,6 +24,7 @@ import com.intellij.rt.coverage.data.instructions.ClassInstructions;
 import com.intellij.rt.coverage.data.instructions.LineInstructions;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.LazyProjectData;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -84,14 +85,17 @@ public class XMLCoverageReport {
     myOut.writeAttribute("name", "Intellij Coverage Report");
     newLine();
 
-    final HashMap<String, List<ClassData>> packages = mapClassesToPackages(project, true);
-
     final Counter counter = new Counter();
-    for (Map.Entry<String, List<ClassData>> packageEntry : packages.entrySet()) {
-      String packageName = packageEntry.getKey();
-      List<ClassData> classes = packageEntry.getValue();
-      final Counter packageCounter = writePackage(project, packageName, classes);
-      counter.add(packageCounter);
+    if (project instanceof LazyProjectData) {
+      writePackagesStreaming((LazyProjectData) project, counter);
+    } else {
+      final HashMap<String, List<ClassData>> packages = mapClassesToPackages(project, true);
+      for (Map.Entry<String, List<ClassData>> packageEntry : packages.entrySet()) {
+        String packageName = packageEntry.getKey();
+        List<ClassData> classes = packageEntry.getValue();
+        final Counter packageCounter = writePackage(project, packageName, classes);
+        counter.add(packageCounter);
+      }
     }
     writeCounter(counter, INSTRUCTION_MASK | LINE_MASK | BRANCH_MASK | METHOD_MASK | CLASS_MASK);
     myOut.writeEndElement();
@@ -100,6 +104,42 @@ public class XMLCoverageReport {
     newLine();
   }
 
+  /**
+   * Load and write packages one by one in sorted order, so that only one package is kept in memory.
+   * Classes of a package are loaded from the report file directly into a separate project data.
+   */
+  private void writePackagesStreaming(LazyProjectData project, Counter counter) throws XMLStreamException {
+    final List<String> names = new ArrayList<String>(project.getClassNames());
+    Collections.sort(names, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        final int packageOrder = getPackageName(o1, true).compareTo(getPackageName(o2, true));
+        return packageOrder != 0 ? packageOrder : o1.compareTo(o2);
+      }
+    });
+    int start = 0;
+    while (start < names.size()) {
+      final String packageName = getPackageName(names.get(start), true);
+      int end = start + 1;
+      while (end < names.size() && packageName.equals(getPackageName(names.get(end), true))) {
+        end++;
+      }
+      final List<String> packageClassNames = names.subList(start, end);
+      final ProjectData packageData = project.loadClasses(packageClassNames);
+      final List<ClassData> classes = new ArrayList<ClassData>();
+      for (String className : packageClassNames) {
+        final ClassData classData = packageData.getClassData(className);
+        if (classData != null && shouldIncludeClass(classData)) {
+          classes.add(classData);
+        }
+      }
+      if (!classes.isEmpty()) {
+        counter.add(writePackage(packageData, packageName, classes));
+      }
+      start = end;
+    }
+  }
+
   private Counter writePackage(ProjectData project, String packageName, List<ClassData> classes) throws XMLStreamException {
     myOut.writeStartElement("package");
     myOut.writeAttribute("name", ClassNameUtil.convertToInternalName(packageName));
@@ -279,9 +319,7 @@ public class XMLCoverageReport {
     });
     for (ClassData classData : classes) {
       if (!shouldIncludeClass(classData)) continue;
-      String className = classData.getName();
-      int indexOfName = className.lastIndexOf('.');
-      String packageName = indexOfName < 0 ? (useClassNameIfEmpty ? className : "") : className.substring(0, indexOfName);
+      String packageName = getPackageName(classData.getName(), useClassNameIfEmpty);
       List<ClassData> packageClasses = packages.get(packageName);
       if (!packages.containsKey(packageName)) {
         packageClasses = new ArrayList<ClassData>();
@@ -292,6 +330,11 @@ public class XMLCoverageReport {
     return packages;
   }
 
+  private static String getPackageName(String className, boolean useClassNameIfEmpty) {
+    int indexOfName = className.lastIndexOf('.');
+    return indexOfName < 0 ? (useClassNameIfEmpty ? className : "") : className.substring(0, indexOfName);
+  }
+
   private IOException wrapIOException(Throwable t) {
     IOException e = new IOException(t.getClass().getSimpleName() + ": " + t.getMessage());
     e.setStackTrace(t.getStackTrace());
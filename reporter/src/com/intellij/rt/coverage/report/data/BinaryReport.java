@@ -44,7 +44,7 @@ public class BinaryReport {
   }
 
   public ProjectData loadData() {
-    final ProjectData data = ProjectDataLoader.load(myDataFile);
+    final ProjectData data = ProjectDataLoader.loadIndexed(myDataFile);
     if (mySourceMapFile != null) {
       try {
         SaveHook.loadAndApplySourceMap(data, mySourceMapFile);
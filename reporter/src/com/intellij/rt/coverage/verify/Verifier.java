@@ -52,7 +52,7 @@ public class Verifier {
   }
 
   private static RuleViolation processRule(final Rule rule) {
-    final ProjectData projectData = ProjectDataLoader.load(rule.reportFile);
+    final ProjectData projectData = ProjectDataLoader.loadIndexed(rule.reportFile);
     final Map<Integer, BoundViolation> violations = new HashMap<Integer, BoundViolation>();
     final TargetProcessor processor = rule.target.createTargetProcessor();
     processor.process(projectData, new TargetProcessor.Consumer() {
@@ -17,7 +17,9 @@
 package com.intellij.rt.coverage.aggregate;
 
 import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
 import com.intellij.rt.coverage.report.TestUtils;
 import com.intellij.rt.coverage.report.data.BinaryReport;
 import com.intellij.rt.coverage.report.data.Filters;
@@ -45,6 +47,53 @@ public class AggregatorTest {
     runAggregator(requests, "testData.defaultArgs.TestKt", "testData.branches.TestKt", "testData.crossinline.TestKt");
   }
 
+  @Test
+  public void testParallelMergeIsSameAsSerial() throws IOException {
+    final List<BinaryReport> reports = new ArrayList<BinaryReport>();
+    for (int i = 0; i < 20; i++) {
+      final ProjectData data = new ProjectData();
+      for (int c = 0; c < 10; c++) {
+        final LineData[] lines = new LineData[5];
+        for (int l = 1; l < lines.length; l++) {
+          // signature of a line differs between the reports, so the first merged report wins
+          lines[l] = new LineData(l, "method" + i + "()V");
+          lines[l].setHits(i * c + l);
+        }
+        data.getOrCreateClassData("A" + c).setLines(lines);
+      }
+      final File file = File.createTempFile("report", ".ic");
+      file.deleteOnExit();
+      SaveHook.save(data, file, null);
+      reports.add(new BinaryReport(file, null));
+    }
+
+    final ProjectData serial = createTargetData();
+    Aggregator.mergeReports(serial, reports, 1);
+    final ProjectData parallel = createTargetData();
+    Aggregator.mergeReports(parallel, reports, 4);
+
+    for (int c = 0; c < 10; c++) {
+      final ClassData expected = serial.getClassData("A" + c);
+      final ClassData actual = parallel.getClassData("A" + c);
+      Assert.assertEquals(expected.getLines().length, actual.getLines().length);
+      for (int l = 1; l < expected.getLines().length; l++) {
+        final LineData expectedLine = expected.getLineData(l);
+        final LineData actualLine = actual.getLineData(l);
+        Assert.assertEquals("method0()V", expectedLine.getMethodSignature());
+        Assert.assertEquals(expectedLine.getMethodSignature(), actualLine.getMethodSignature());
+        Assert.assertEquals(expectedLine.getHits(), actualLine.getHits());
+      }
+    }
+  }
+
+  private static ProjectData createTargetData() {
+    final ProjectData projectData = new ProjectData();
+    for (int c = 0; c < 10; c++) {
+      projectData.getOrCreateClassData("A" + c);
+    }
+    return projectData;
+  }
+
   @NotNull
   private static List<Aggregator.Request> createRequests() throws IOException {
     final List<Aggregator.Request> requests = new ArrayList<Aggregator.Request>();
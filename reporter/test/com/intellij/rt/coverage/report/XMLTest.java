@@ -19,9 +19,12 @@ package com.intellij.rt.coverage.report;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
 import com.intellij.rt.coverage.report.data.BinaryReport;
 import com.intellij.rt.coverage.report.util.FileUtils;
+import com.intellij.rt.coverage.util.LazyProjectData;
 import com.intellij.rt.coverage.util.ProcessUtil;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
 import org.junit.Test;
@@ -112,6 +115,26 @@ public class XMLTest {
 
   @Test
   public void basicTest() throws Throwable {
+    final File file = createXMLFile();
+    new XMLCoverageReport().write(new FileOutputStream(file), createBasicProject());
+    verifyProjectXML(file, "xml/xmlTest.xml");
+  }
+
+  @Test
+  public void basicStreamingTest() throws Throwable {
+    final File dataFile = File.createTempFile("report_tmp", ".ic");
+    final File sourceMapFile = new File(dataFile.getAbsolutePath() + ".sm");
+    SaveHook.save(createBasicProject(), dataFile, sourceMapFile);
+    final ProjectData project = ProjectDataLoader.loadIndexed(dataFile);
+    Assert.assertTrue(project instanceof LazyProjectData);
+    SaveHook.loadAndApplySourceMap(project, sourceMapFile);
+
+    final File file = createXMLFile();
+    new XMLCoverageReport().write(new FileOutputStream(file), project);
+    verifyProjectXML(file, "xml/xmlTest.xml");
+  }
+
+  private static ProjectData createBasicProject() {
     final ProjectData project = new ProjectData();
     final ClassData classData1 = project.getOrCreateClassData("MyClass");
     final ClassData classData2 = project.getOrCreateClassData("package.MyClass2");
@@ -130,10 +153,7 @@ public class XMLTest {
 
     classData1.setSource("F.java");
     classData2.setSource("A.java");
-
-    final File file = createXMLFile();
-    new XMLCoverageReport().write(new FileOutputStream(file), project);
-    verifyProjectXML(file, "xml/xmlTest.xml");
+    return project;
   }
 
   private File runTestAndConvertToXML(String patterns, String className) throws Throwable {
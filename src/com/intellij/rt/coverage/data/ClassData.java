@@ -26,15 +26,25 @@ import java.io.IOException;
 import java.util.*;
 
 public class ClassData implements CoverageData {
+  /** Number of ints in a cache line, which is added to the end of each hits stripe. */
+  private static final int STRIPE_PADDING = 16;
+
   private final String myClassName;
   private LineData[] myLinesArray;
   private Map<String, Integer> myStatus;
   /** Storage for line hits in sampling mode. */
   private int[] myLineMask;
+  /** Storage for line coverage flags in sampling mode with byte mask, a non-zero value means that the line is covered. */
+  private byte[] myLineByteMask;
   private String mySource;
 
   /** Storage for line and branch hits in new tracing mode. */
   private volatile int[] myHitsMask;
+  /**
+   * Stripes of the hits mask in striped tracing mode, each thread increments counters in one of the stripes.
+   * Stripes are padded to not share cache lines with each other.
+   */
+  private volatile int[][] myHitsStripes;
   /** Storage for test tracking data. */
   private volatile boolean[] myTraceMask;
 
@@ -232,6 +242,17 @@ public class ClassData implements CoverageData {
     }
   }
 
+  public void initLineByteMask(LineData[] lines) {
+    final int size = myLinesArray != null ? Math.max(lines.length, myLinesArray.length) : lines.length;
+    if (myLineByteMask == null) {
+      myLineByteMask = new byte[size];
+    } else if (myLineByteMask.length < size) {
+      final byte[] lineByteMask = new byte[size];
+      System.arraycopy(myLineByteMask, 0, lineByteMask, 0, myLineByteMask.length);
+      myLineByteMask = lineByteMask;
+    }
+  }
+
   public void setLines(LineData[] lines) {
     if (myLinesArray == null) {
       myLinesArray = lines;
@@ -288,6 +309,72 @@ public class ClassData implements CoverageData {
       System.arraycopy(newMask, 0, myHitsMask, 0, myHitsMask.length);
     }
     myHitsMask = newMask;
+    if (myHitsStripes != null) {
+      createHitsStripes(myHitsStripes);
+    }
+  }
+
+  /**
+   * Get stripes of the hits mask, the number of stripes is set with {@link OptionsUtil#TRACING_STRIPES}.
+   * Hits in the stripes are added to the hits mask in {@link #applyBranches()}.
+   */
+  public int[][] getHitsStripes() {
+    int[][] stripes = myHitsStripes;
+    if (stripes == null) {
+      synchronized (this) {
+        stripes = myHitsStripes;
+        if (stripes == null) {
+          stripes = createHitsStripes(null);
+        }
+      }
+    }
+    return stripes;
+  }
+
+  private int[][] createHitsStripes(int[][] oldStripes) {
+    final int size = myHitsMask == null ? 0 : myHitsMask.length;
+    final int[][] stripes = new int[Math.max(1, OptionsUtil.TRACING_STRIPES)][];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new int[size + STRIPE_PADDING];
+      if (oldStripes != null) {
+        System.arraycopy(oldStripes[i], 0, stripes[i], 0, Math.min(size, oldStripes[i].length));
+      }
+    }
+    myHitsStripes = stripes;
+    return stripes;
+  }
+
+  /**
+   * Move hits from the stripes into the hits mask.
+   */
+  private void foldHitsStripes() {
+    final int[][] stripes = myHitsStripes;
+    final int[] hitsMask = myHitsMask;
+    if (stripes == null || hitsMask == null) return;
+    for (int[] stripe : stripes) {
+      for (int i = 0; i < hitsMask.length && i < stripe.length; i++) {
+        hitsMask[i] += stripe[i];
+        stripe[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * @return a copy of the hits mask with the hits of all stripes added, or null if there is no hits mask
+   */
+  public int[] collectHitsMask() {
+    final int[] hitsMask = myHitsMask;
+    if (hitsMask == null) return null;
+    final int[] result = hitsMask.clone();
+    final int[][] stripes = myHitsStripes;
+    if (stripes != null) {
+      for (int[] stripe : stripes) {
+        for (int i = 0; i < result.length && i < stripe.length; i++) {
+          result[i] += stripe[i];
+        }
+      }
+    }
+    return result;
   }
 
   public synchronized void createTraceMask(int size) {
@@ -303,6 +390,10 @@ public class ClassData implements CoverageData {
     return myLineMask;
   }
 
+  public byte[] getLineByteMask() {
+    return myLineByteMask;
+  }
+
   public int[] getHitsMask() {
     return myHitsMask;
   }
@@ -316,6 +407,7 @@ public class ClassData implements CoverageData {
   }
 
   public void applyLinesMask() {
+    applyLineByteMask();
     if (myLineMask == null) return;
     final int size = myLineMask.length;
     for (LineData lineData : myLinesArray) {
@@ -325,8 +417,44 @@ public class ClassData implements CoverageData {
     }
   }
 
+  /**
+   * @return true if all lines of the class are covered according to the line mask in sampling mode
+   */
+  public boolean isLineMaskCovered() {
+    final LineData[] lines = myLinesArray;
+    final int[] lineMask = myLineMask;
+    final byte[] lineByteMask = myLineByteMask;
+    if (lines == null || lineMask == null && lineByteMask == null) return false;
+    for (LineData lineData : lines) {
+      if (lineData == null) continue;
+      final int line = lineData.getLineNumber();
+      final boolean covered = lineMask != null
+          ? line < lineMask.length && lineMask[line] != 0
+          : line < lineByteMask.length && lineByteMask[line] != 0;
+      if (!covered) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Unlike the hits mask, byte mask is not initialized with the existing hits,
+   * so a covered line gets a hit only if it has none.
+   */
+  private void applyLineByteMask() {
+    if (myLineByteMask == null) return;
+    final int size = myLineByteMask.length;
+    for (LineData lineData : myLinesArray) {
+      if (lineData == null) continue;
+      final int line = lineData.getLineNumber();
+      if (line < size && myLineByteMask[line] != 0 && lineData.getHits() == 0) {
+        lineData.setHits(1);
+      }
+    }
+  }
+
   public void applyBranches() {
     if (myHitsMask == null) return;
+    foldHitsStripes();
     try {
       for (LineData lineData : myLinesArray) {
         if (lineData == null) continue;
@@ -391,6 +519,10 @@ public class ClassData implements CoverageData {
     }
   }
 
+  public TIntHashSet getIgnoredLines() {
+    return myIgnoredLines;
+  }
+
   public boolean isIgnoredLine(final int line) {
     return myIgnoredLines != null && myIgnoredLines.contains(line);
   }
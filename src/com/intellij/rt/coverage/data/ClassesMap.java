@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Class name to <code>ClassData</code> map optimized for lookups from instrumented code.
+ * <p>
+ * This is an open addressing hash table of immutable entries. Names are compared by identity first,
+ * as instrumented code passes interned class name constants.
+ * A successful lookup does not allocate, lock or read volatile fields: the table is read without synchronization,
+ * which is safe as entries have only final fields. If a lookup misses, it is repeated under the lock,
+ * because an entry could be inserted or the table could be resized concurrently.
+ * Inserts take the lock; they happen once per class, so the contention is negligible.
+ */
+public class ClassesMap {
+  private static final int DEFAULT_CAPACITY = 2048; // must be a power of two
+
+  /** The table is at most half full, so a probe sequence always finds an empty slot. */
+  private Entry[] myTable = new Entry[DEFAULT_CAPACITY];
+  private int mySize;
+
+  public ClassData get(String name) {
+    final ClassData data = find(myTable, name);
+    if (data != null) return data;
+    synchronized (this) {
+      return find(myTable, name);
+    }
+  }
+
+  /**
+   * Associate the class data with the name if there is no data for it yet.
+   *
+   * @return previous data associated with the name or null if the data has been put
+   */
+  public synchronized ClassData putIfAbsent(String name, ClassData data) {
+    final ClassData existing = find(myTable, name);
+    if (existing != null) return existing;
+    if ((mySize + 1) * 2 > myTable.length) {
+      myTable = resize(myTable);
+    }
+    insert(myTable, new Entry(name, data));
+    mySize++;
+    return null;
+  }
+
+  public synchronized int size() {
+    return mySize;
+  }
+
+  /**
+   * @return a snapshot of the map values
+   */
+  public synchronized Collection<ClassData> values() {
+    final List<ClassData> result = new ArrayList<ClassData>(mySize);
+    for (Entry entry : myTable) {
+      if (entry != null) result.add(entry.myValue);
+    }
+    return result;
+  }
+
+  /**
+   * @return a snapshot of the map
+   */
+  public synchronized HashMap<String, ClassData> asMap() {
+    final HashMap<String, ClassData> result = new HashMap<String, ClassData>(mySize * 2);
+    for (Entry entry : myTable) {
+      if (entry != null) result.put(entry.myKey, entry.myValue);
+    }
+    return result;
+  }
+
+  private static ClassData find(Entry[] table, String name) {
+    final int hash = hash(name);
+    final int mask = table.length - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      final Entry entry = table[i];
+      if (entry == null) return null;
+      if (entry.myKey == name || entry.myHash == hash && entry.myKey.equals(name)) {
+        return entry.myValue;
+      }
+    }
+  }
+
+  private static void insert(Entry[] table, Entry entry) {
+    final int mask = table.length - 1;
+    int i = entry.myHash & mask;
+    while (table[i] != null) {
+      i = (i + 1) & mask;
+    }
+    table[i] = entry;
+  }
+
+  private static Entry[] resize(Entry[] table) {
+    final Entry[] newTable = new Entry[table.length * 2];
+    for (Entry entry : table) {
+      if (entry != null) insert(newTable, entry);
+    }
+    return newTable;
+  }
+
+  private static int hash(String name) {
+    final int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static class Entry {
+    private final String myKey;
+    private final int myHash;
+    private final ClassData myValue;
+
+    private Entry(String key, ClassData value) {
+      myKey = key;
+      myHash = hash(key);
+      myValue = value;
+    }
+  }
+}
@@ -34,7 +34,9 @@ public class ProjectData implements CoverageData, Serializable {
   // ClassData methods
   private static final MethodCaller TOUCH_LINE_METHOD = new MethodCaller("touchLine", new Class[] {int.class});
   private static final MethodCaller GET_LINE_MASK_METHOD = new MethodCaller("getLineMask", new Class[0]);
+  private static final MethodCaller GET_LINE_BYTE_MASK_METHOD = new MethodCaller("getLineByteMask", new Class[0]);
   private static final MethodCaller GET_HITS_MASK_METHOD = new MethodCaller("getHitsMask", new Class[0]);
+  private static final MethodCaller GET_HITS_STRIPES_METHOD = new MethodCaller("getHitsStripes", new Class[0]);
   private static final MethodCaller GET_TRACE_MASK_METHOD = new MethodCaller("getTraceMask", new Class[0]);
   private static final MethodCaller TOUCH_SWITCH_METHOD = new MethodCaller("touch", new Class[] {int.class, int.class, int.class});
   private static final MethodCaller TOUCH_JUMP_METHOD = new MethodCaller("touch", new Class[] {int.class, int.class, boolean.class});
@@ -61,8 +63,8 @@ public class ProjectData implements CoverageData, Serializable {
    */
   private final AtomicReference<Map<Object, boolean[]>> myTrace = new AtomicReference<Map<Object, boolean[]>>();
   private File myTracesDir;
-  private List<Pattern> myIncludePatterns;
-  private List<Pattern> myExcludePatterns;
+  private ClassNamePatternMatcher myIncludeMatcher;
+  private ClassNamePatternMatcher myExcludeMatcher;
 
   private final ClassesMap myClasses = new ClassesMap();
   private volatile Map<String, FileMapData[]> myLinesMap;
@@ -82,7 +84,8 @@ public class ProjectData implements CoverageData, Serializable {
     ClassData classData = myClasses.get(name);
     if (classData == null) {
       classData = new ClassData(name);
-      myClasses.put(name, classData);
+      final ClassData existing = myClasses.putIfAbsent(name, classData);
+      if (existing != null) return existing;
     }
     return classData;
   }
@@ -162,22 +165,34 @@ public class ProjectData implements CoverageData, Serializable {
     ourProjectData.myTraceLines = traceLines;
     ourProjectData.myCollectInstructions = OptionsUtil.INSTRUCTIONS_COVERAGE_ENABLED;
     ourProjectData.myDataFile = dataFile;
-    ourProjectData.myIncludePatterns = includePatterns;
-    ourProjectData.myExcludePatterns = excludePatterns;
+    ourProjectData.myIncludeMatcher = includePatterns == null ? null : new ClassNamePatternMatcher(includePatterns);
+    ourProjectData.myExcludeMatcher = excludePatterns == null ? null : new ClassNamePatternMatcher(excludePatterns);
     ourProjectData.myTestTrackingCallback = testTrackingCallback;
     return ourProjectData;
   }
 
+  /**
+   * Create an empty project data with the same collection settings.
+   * Unlike {@link #createProjectData}, the result is not registered as the global instance,
+   * so it may be used as a thread-confined storage.
+   */
+  public ProjectData createDetachedCopy() {
+    final ProjectData copy = new ProjectData();
+    copy.mySampling = mySampling;
+    copy.myTraceLines = myTraceLines;
+    copy.myCollectInstructions = myCollectInstructions;
+    copy.myDataFile = myDataFile;
+    copy.myIncludeMatcher = myIncludeMatcher;
+    copy.myExcludeMatcher = myExcludeMatcher;
+    copy.myAnnotationsToIgnore = myAnnotationsToIgnore;
+    return copy;
+  }
+
   public void merge(final CoverageData data) {
     final ProjectData projectData = (ProjectData)data;
-    for (Map.Entry<String, ClassData> entry : projectData.myClasses.myClasses.entrySet()) {
-      final String key = entry.getKey();
-      final ClassData mergedData = entry.getValue();
-      ClassData classData = myClasses.get(key);
-      if (classData == null) {
-        classData = new ClassData(mergedData.getName());
-        myClasses.put(key, classData);
-      }
+    for (ClassData mergedData : projectData.getClassesCollection()) {
+      final String key = mergedData.getName();
+      final ClassData classData = getOrCreateClassData(key);
       classData.merge(mergedData);
     }
 
@@ -217,8 +232,8 @@ public class ProjectData implements CoverageData, Serializable {
             continue;
           }
           final ClassData classInfo;
-          if ((myExcludePatterns == null || !ClassNameUtil.matchesPatterns(mappedClassName, myExcludePatterns))
-              && (myIncludePatterns == null || myIncludePatterns.isEmpty() || ClassNameUtil.matchesPatterns(mappedClassName, myIncludePatterns))) {
+          if ((myExcludeMatcher == null || !myExcludeMatcher.matches(mappedClassName))
+              && (myIncludeMatcher == null || myIncludeMatcher.isEmpty() || myIncludeMatcher.matches(mappedClassName))) {
             classInfo = getOrCreateClassData(mappedClassName);
             if (classInfo.getSource() == null || classInfo.getSource().length() == 0) {
               classInfo.setSource(aFileData.getFileName());
@@ -243,14 +258,14 @@ public class ProjectData implements CoverageData, Serializable {
 
   public void applyLinesMask() {
     if (!mySampling) return;
-    for (ClassData data : myClasses.myClasses.values()) {
+    for (ClassData data : myClasses.values()) {
       data.applyLinesMask();
     }
   }
 
   public void applyBranchData() {
     if (mySampling) return;
-    for (ClassData data : myClasses.myClasses.values()) {
+    for (ClassData data : myClasses.values()) {
       data.applyBranches();
     }
   }
@@ -322,7 +337,7 @@ public class ProjectData implements CoverageData, Serializable {
   }
 
   public Collection<ClassData> getClassesCollection() {
-    return myClasses.myClasses.values();
+    return myClasses.values();
   }
 
 
@@ -445,6 +460,19 @@ public class ProjectData implements CoverageData, Serializable {
     }
   }
 
+  public static byte[] getLineByteMask(String className) {
+    if (ourProjectData != null) {
+      return ourProjectData.getClassData(className).getLineByteMask();
+    }
+    try {
+      final Object classData = getClassDataObject(className);
+      return (byte[]) touch(GET_LINE_BYTE_MASK_METHOD, classData, new Object[0]);
+    } catch (Exception e) {
+      ErrorReporter.reportError("Error in class data loading: " + className, e);
+      return null;
+    }
+  }
+
   public static int[] getHitsMask(String className) {
     if (ourProjectData != null) {
       return ourProjectData.getClassData(className).getHitsMask();
@@ -458,6 +486,19 @@ public class ProjectData implements CoverageData, Serializable {
     }
   }
 
+  public static int[][] getHitsStripes(String className) {
+    if (ourProjectData != null) {
+      return ourProjectData.getClassData(className).getHitsStripes();
+    }
+    try {
+      final Object classData = getClassDataObject(className);
+      return (int[][]) touch(GET_HITS_STRIPES_METHOD, classData, new Object[0]);
+    } catch (Exception e) {
+      ErrorReporter.reportError("Error in class data access: " + className, e);
+      return null;
+    }
+  }
+
   public static boolean[] getTraceMask(String className) {
     if (ourProjectData != null) {
       return ourProjectData.getClassData(className).getTraceMask();
@@ -522,72 +563,4 @@ public class ProjectData implements CoverageData, Serializable {
       return m;
     }
   }
-
-  /**
-   * This map provides faster read operations for the case when key is mostly the same
-   * object. In our case key is the class name which is the same string with high probability.
-   * According to CPU snapshots with usual map we spend a lot of time on equals() operation.
-   * This class was introduced to reduce number of equals().
-   */
-  private static class ClassesMap {
-    private static final int POOL_SIZE = 1024; // must be a power of two
-    private static final int MASK = POOL_SIZE - 1;
-    private static final int DEFAULT_CAPACITY = 1000;
-    private final IdentityClassData[] myIdentityArray = new IdentityClassData[POOL_SIZE];
-    private final Map<String, ClassData> myClasses = createClassesMap();
-
-    public int size() {
-      return myClasses.size();
-    }
-
-    public ClassData get(String name) {
-      int idx = name.hashCode() & MASK;
-      final IdentityClassData lastClassData = myIdentityArray[idx];
-      if (lastClassData != null) {
-        final ClassData data = lastClassData.getClassData(name);
-        if (data != null) return data;
-      }
-
-      final ClassData data = myClasses.get(name);
-      myIdentityArray[idx] = new IdentityClassData(name, data);
-      return data;
-    }
-
-    public void put(String name, ClassData data) {
-      myClasses.put(name, data);
-    }
-
-    public HashMap<String, ClassData> asMap() {
-      return new HashMap<String, ClassData>(myClasses);
-    }
-
-    public Collection<String> names() {
-      return myClasses.keySet();
-    }
-
-    private static Map<String, ClassData> createClassesMap() {
-      if (OptionsUtil.THREAD_SAFE_STORAGE) {
-        return new ConcurrentHashMap<String, ClassData>(DEFAULT_CAPACITY);
-      }
-      return new HashMap<String, ClassData>(DEFAULT_CAPACITY);
-    }
-  }
-
-  private static class IdentityClassData {
-    private final String myClassName;
-    private final ClassData myClassData;
-
-    private IdentityClassData(String className, ClassData classData) {
-      myClassName = className;
-      myClassData = classData;
-    }
-
-    public ClassData getClassData(String name) {
-      if (name == myClassName) {
-        return myClassData;
-      }
-      return null;
-    }
-  }
-
 }
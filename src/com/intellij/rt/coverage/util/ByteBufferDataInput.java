@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>DataInput</code> implementation that reads directly from a buffer, e.g. a memory mapped file.
+ * Unlike <code>DataInputStream</code>, no data is copied into intermediate stream buffers.
+ */
+public class ByteBufferDataInput implements DataInput {
+  /** Must be the same as in {@link CoverageIOUtil}. */
+  private static final String LONGER_THAN_64K_MARKER = "LONGER_THAN_64K";
+
+  private final ByteBuffer myBuffer;
+
+  public ByteBufferDataInput(ByteBuffer buffer) {
+    myBuffer = buffer;
+  }
+
+  private void ensureRemaining(int bytes) throws EOFException {
+    if (myBuffer.remaining() < bytes) throw new EOFException();
+  }
+
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    ensureRemaining(len);
+    myBuffer.get(b, off, len);
+  }
+
+  public int skipBytes(int n) {
+    final int skipped = Math.max(0, Math.min(n, myBuffer.remaining()));
+    myBuffer.position(myBuffer.position() + skipped);
+    return skipped;
+  }
+
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  public byte readByte() throws IOException {
+    ensureRemaining(1);
+    return myBuffer.get();
+  }
+
+  public int readUnsignedByte() throws IOException {
+    ensureRemaining(1);
+    return myBuffer.get() & 0xFF;
+  }
+
+  public short readShort() throws IOException {
+    ensureRemaining(2);
+    return myBuffer.getShort();
+  }
+
+  public int readUnsignedShort() throws IOException {
+    ensureRemaining(2);
+    return myBuffer.getShort() & 0xFFFF;
+  }
+
+  public char readChar() throws IOException {
+    ensureRemaining(2);
+    return myBuffer.getChar();
+  }
+
+  public int readInt() throws IOException {
+    ensureRemaining(4);
+    return myBuffer.getInt();
+  }
+
+  public long readLong() throws IOException {
+    ensureRemaining(8);
+    return myBuffer.getLong();
+  }
+
+  public float readFloat() throws IOException {
+    ensureRemaining(4);
+    return myBuffer.getFloat();
+  }
+
+  public double readDouble() throws IOException {
+    ensureRemaining(8);
+    return myBuffer.getDouble();
+  }
+
+  /**
+   * Read a line of bytes, each byte is converted to a char as in {@link java.io.DataInputStream#readLine()}.
+   *
+   * @return null if the end of the buffer is reached before any byte is read
+   */
+  public String readLine() {
+    if (!myBuffer.hasRemaining()) return null;
+    final StringBuilder result = new StringBuilder();
+    while (myBuffer.hasRemaining()) {
+      final int c = myBuffer.get() & 0xFF;
+      if (c == '\n') break;
+      if (c == '\r') {
+        if (myBuffer.hasRemaining() && myBuffer.get(myBuffer.position()) == '\n') {
+          myBuffer.get();
+        }
+        break;
+      }
+      result.append((char) c);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Decode a string written by {@link CoverageIOUtil#writeUTF} directly from the buffer.
+   * @see CoverageIOUtil#readUTFFast
+   */
+  public String readUTFFast() throws IOException {
+    final int length = readUnsignedByte();
+    if (length == 0xFF) {
+      final String result = readUTF();
+      if (!LONGER_THAN_64K_MARKER.equals(result)) return result;
+      return readLongString();
+    }
+    ensureRemaining(length);
+    final char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) myBuffer.get();
+    }
+    return new String(chars);
+  }
+
+  private String readLongString() throws IOException {
+    final int length = readInt();
+    if (length == -1) return null;
+    ensureRemaining(2 * length);
+    final char[] chars = new char[length];
+    myBuffer.asCharBuffer().get(chars);
+    myBuffer.position(myBuffer.position() + 2 * length);
+    return new String(chars);
+  }
+
+  /**
+   * Decode a string in modified UTF-8 format directly from the buffer.
+   * @see java.io.DataInputStream#readUTF(DataInput)
+   */
+  public String readUTF() throws IOException {
+    final int length = readUnsignedShort();
+    ensureRemaining(length);
+    final char[] chars = new char[length];
+    final int end = myBuffer.position() + length;
+    int count = 0;
+    while (myBuffer.position() < end) {
+      final int c = myBuffer.get() & 0xFF;
+      switch (c >> 4) {
+        case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+          chars[count++] = (char) c;
+          break;
+        case 12: case 13: {
+          if (myBuffer.position() + 1 > end) throw new UTFDataFormatException("Malformed input: partial character at end");
+          final int c2 = myBuffer.get();
+          if ((c2 & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed input around byte " + myBuffer.position());
+          chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+          break;
+        }
+        case 14: {
+          if (myBuffer.position() + 2 > end) throw new UTFDataFormatException("Malformed input: partial character at end");
+          final int c2 = myBuffer.get();
+          final int c3 = myBuffer.get();
+          if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("Malformed input around byte " + myBuffer.position());
+          }
+          chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+          break;
+        }
+        default:
+          throw new UTFDataFormatException("Malformed input around byte " + myBuffer.position());
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
@@ -18,22 +18,27 @@ package com.intellij.rt.coverage.util;
 
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntProcedure;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public abstract class ClassListSection extends ReportSection {
-  protected abstract void loadClass(DataInputStream in, ClassData classData, int version) throws IOException;
+  /** Offsets of class records within the section data from the last save, class index to offset. */
+  private TIntIntHashMap myClassOffsets;
+
+  protected abstract void loadClass(DataInput in, ClassData classData, int version) throws IOException;
 
   protected abstract void saveClass(ClassData classData, DataOutput out, int index) throws IOException;
 
 
   @Override
-  public void load(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict, int version) throws IOException {
+  public void load(ProjectData projectData, DataInput in, TIntObjectHashMap<ClassData> dict, int version) throws IOException {
     int classId = CoverageIOUtil.readINT(in);
     while (classId != -1) {
       final ClassData classData = dict.get(classId);
@@ -43,12 +48,17 @@ public abstract class ClassListSection extends ReportSection {
   }
 
   @Override
-  protected void saveInternal(final ProjectData projectData, final DataOutput out, TObjectIntHashMap<String> dict) throws IOException {
+  protected void saveInternal(final ProjectData projectData, final DataOutputStream out, TObjectIntHashMap<String> dict) throws IOException {
+    myClassOffsets = new TIntIntHashMap();
     try {
       dict.forEachEntry(new TObjectIntProcedure<String>() {
         public boolean execute(String className, int index) {
           try {
+            final int offset = out.size();
             saveClass(projectData.getClassData(className), out, index);
+            if (out.size() > offset) {
+              myClassOffsets.put(index, offset);
+            }
           } catch (IOException e) {
             throw new RuntimeException(e);
           }
@@ -64,4 +74,22 @@ public abstract class ClassListSection extends ReportSection {
     }
     CoverageIOUtil.writeINT(out, -1);
   }
+
+  @Override
+  protected void saveIndex(ReportIndex index, int dataOffset) {
+    index.addSection(getId(), getVersion(), dataOffset, myClassOffsets);
+  }
+
+  /**
+   * Load data of a single class using the report index.
+   *
+   * @param in input positioned at the class record
+   */
+  void loadIndexedClass(DataInput in, ClassData classData, int classIndex, int version) throws IOException {
+    final int classId = CoverageIOUtil.readINT(in);
+    if (classId != classIndex) {
+      throw new IOException("Corrupted report index: expected class " + classIndex + " but found " + classId);
+    }
+    loadClass(in, classData, version);
+  }
 }
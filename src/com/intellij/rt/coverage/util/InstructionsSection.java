@@ -26,7 +26,7 @@ import com.intellij.rt.coverage.data.instructions.LineInstructions;
 import com.intellij.rt.coverage.data.instructions.SwitchInstructions;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.List;
@@ -54,13 +54,13 @@ public class InstructionsSection extends ClassListSection {
   }
 
   @Override
-  public void load(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict, int version) throws IOException {
+  public void load(ProjectData projectData, DataInput in, TIntObjectHashMap<ClassData> dict, int version) throws IOException {
     projectData.setInstructionsCoverage(true);
     super.load(projectData, in, dict, version);
   }
 
   @Override
-  protected void loadClass(DataInputStream in, ClassData classData, int version) throws IOException {
+  protected void loadClass(DataInput in, ClassData classData, int version) throws IOException {
     final LineData[] lines = (LineData[]) classData.getLines();
     final LineInstructions[] instructions = new LineInstructions[lines.length];
     for (LineData lineData : lines) {
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.CoverageData;
+import com.intellij.rt.coverage.data.ProjectData;
+import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Read-only view of an indexed report, which loads a <code>ClassData</code> on the first request.
+ * Only the class names dictionary is read on creation, so memory and time scale with the number of queried classes.
+ * <p>
+ * Methods that iterate over all classes load the whole report.
+ * This data must not be used for collecting coverage, only for reading and merging into other data.
+ *
+ * @see ProjectDataLoader#loadIndexed(File)
+ */
+public class LazyProjectData extends ProjectData {
+  private static final long serialVersionUID = 1L;
+
+  // the mapped report is not serializable, lazy data is not meant to be serialized
+  private final transient File myFile;
+  private final transient ByteBuffer myBuffer;
+  private final transient ReportIndex myIndex;
+  private final transient String[] myNames;
+  private final transient TObjectIntHashMap<String> myClassIndices;
+  private final transient List<ReportIndex.SectionIndex> mySections = new ArrayList<ReportIndex.SectionIndex>();
+  private final Map<String, String> mySources = new HashMap<String, String>();
+  private transient int myNotLoadedClasses;
+  private transient Map<Integer, ReportSection> mySectionsCache;
+
+  LazyProjectData(File file, ByteBuffer buffer, ReportIndex index) throws IOException {
+    myFile = file;
+    myBuffer = buffer;
+    myIndex = index;
+    myNames = ProjectDataLoader.readClassNames(new ByteBufferDataInput(buffer.duplicate()));
+    if (myNames.length != index.getClassCount()) {
+      throw new IOException("Report index does not match the report: " + index.getClassCount() + " classes indexed, but " + myNames.length + " found");
+    }
+    myNotLoadedClasses = myNames.length;
+    myClassIndices = new TObjectIntHashMap<String>(myNames.length);
+    for (int i = 0; i < myNames.length; i++) {
+      myClassIndices.put(myNames[i], i);
+    }
+
+    final Map<Integer, ReportSection> sections = ReportSectionsUtil.getSections(this);
+    for (ReportIndex.SectionIndex sectionIndex : index.getSections()) {
+      final ReportSection section = sections.get(sectionIndex.myId);
+      if (!(section instanceof ClassListSection)) {
+        ErrorReporter.reportError("Unknown section id " + sectionIndex.myId + ". Please try to update coverage agent.");
+      } else if (sectionIndex.myVersion > section.getVersion()) {
+        ErrorReporter.reportError("Section version " + sectionIndex.myVersion + " is greater than agent maximum support version "
+            + section.getVersion() + "\n" + "Please try to update coverage agent.");
+      } else {
+        if (section instanceof InstructionsSection) {
+          setInstructionsCoverage(true);
+        }
+        mySections.add(sectionIndex);
+      }
+    }
+  }
+
+  /**
+   * Names of all classes in the report. Use this method to select classes before loading them.
+   */
+  public List<String> getClassNames() {
+    return Collections.unmodifiableList(Arrays.asList(myNames));
+  }
+
+  /**
+   * Load classes from the report file into a separate project data. The loaded classes are not stored in this view,
+   * so a large report can be processed in parts with memory bounded by the size of a part.
+   *
+   * @param classNames names of the classes to load, names that are not in the report are ignored
+   */
+  public synchronized ProjectData loadClasses(Collection<String> classNames) {
+    final ProjectData projectData = createDetachedCopy();
+    final Map<Integer, ReportSection> sections = ReportSectionsUtil.getSections(projectData);
+    for (String name : classNames) {
+      if (!myClassIndices.containsKey(name)) continue;
+      final int classIndex = myClassIndices.get(name);
+      final ClassData classData = projectData.getOrCreateClassData(myNames[classIndex]);
+      final ClassData loaded = super.getClassData(name);
+      final String source = loaded != null ? loaded.getSource() : mySources.get(name);
+      if (source != null) {
+        classData.setSource(source);
+      }
+      readClass(classIndex, classData, sections);
+    }
+    return projectData;
+  }
+
+  /**
+   * Set class source that is applied when the class is loaded.
+   */
+  public synchronized void setSource(String className, String source) {
+    final ClassData classData = super.getClassData(className);
+    if (classData != null) {
+      classData.setSource(source);
+    } else if (myClassIndices.containsKey(className)) {
+      mySources.put(className, source);
+    }
+  }
+
+  @Override
+  public synchronized ClassData getClassData(String name) {
+    final ClassData classData = super.getClassData(name);
+    if (classData != null) return classData;
+    return loadClass(name);
+  }
+
+  @Override
+  public synchronized ClassData getOrCreateClassData(String name) {
+    loadClass(name);
+    return super.getOrCreateClassData(name);
+  }
+
+  @Override
+  public synchronized int getClassesNumber() {
+    loadAll();
+    return super.getClassesNumber();
+  }
+
+  @Override
+  public synchronized Map<String, ClassData> getClasses() {
+    loadAll();
+    return super.getClasses();
+  }
+
+  @Override
+  public synchronized Collection<ClassData> getClassesCollection() {
+    loadAll();
+    return super.getClassesCollection();
+  }
+
+  @Override
+  public synchronized void merge(CoverageData data) {
+    loadAll();
+    super.merge(data);
+  }
+
+  private void loadAll() {
+    if (myNotLoadedClasses == 0) return;
+    for (String name : myNames) {
+      if (super.getClassData(name) == null) {
+        loadClass(name);
+      }
+    }
+  }
+
+  /**
+   * Load class data and all its sections from the report into this view.
+   *
+   * @return loaded class or null if there is no such class in the report
+   */
+  private ClassData loadClass(String name) {
+    if (!myClassIndices.containsKey(name) || super.getClassData(name) != null) return null;
+    final int classIndex = myClassIndices.get(name);
+    final ClassData classData = super.getOrCreateClassData(myNames[classIndex]);
+    myNotLoadedClasses--;
+    final String source = mySources.remove(name);
+    if (source != null) {
+      classData.setSource(source);
+    }
+    if (mySectionsCache == null) {
+      mySectionsCache = ReportSectionsUtil.getSections(this);
+    }
+    readClass(classIndex, classData, mySectionsCache);
+    return classData;
+  }
+
+  /**
+   * Read a class record and the class records of all indexed sections.
+   *
+   * @param sections section instances that are bound to the project data which contains <code>classData</code>
+   */
+  private void readClass(int classIndex, ClassData classData, Map<Integer, ReportSection> sections) {
+    try {
+      final ByteBufferDataInput in = createInput(myIndex.getClassOffset(classIndex));
+      final int classId = CoverageIOUtil.readINT(in);
+      if (classId != classIndex) {
+        throw new IOException("Corrupted report index: expected class " + classIndex + " but found " + classId);
+      }
+      ProjectDataLoader.loadLines(in, classData, myNames);
+      for (ReportIndex.SectionIndex sectionIndex : mySections) {
+        if (!sectionIndex.myOffsets.containsKey(classIndex)) continue;
+        final ClassListSection section = (ClassListSection) sections.get(sectionIndex.myId);
+        final ByteBufferDataInput sectionIn = createInput(sectionIndex.myOffsets.get(classIndex));
+        section.loadIndexedClass(sectionIn, classData, classIndex, sectionIndex.myVersion);
+      }
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to load class " + classData.getName() + " from file: " + myFile.getAbsolutePath(), e);
+    }
+  }
+
+  private ByteBufferDataInput createInput(int offset) {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(offset);
+    return new ByteBufferDataInput(buffer);
+  }
+}
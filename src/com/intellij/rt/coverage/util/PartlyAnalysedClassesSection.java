@@ -19,7 +19,7 @@ package com.intellij.rt.coverage.util;
 import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.ProjectData;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
@@ -33,7 +33,7 @@ import java.io.IOException;
  */
 public class PartlyAnalysedClassesSection extends ClassListSection {
   @Override
-  protected void loadClass(DataInputStream in, ClassData classData, int version) throws IOException {
+  protected void loadClass(DataInput in, ClassData classData, int version) throws IOException {
     if (classData != null) {
       classData.setFullyAnalysed(false);
     }
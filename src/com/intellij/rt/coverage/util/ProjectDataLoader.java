@@ -22,6 +22,14 @@ import com.intellij.rt.coverage.data.ProjectData;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author anna
@@ -30,16 +38,91 @@ import java.io.*;
 public class ProjectDataLoader {
   public static final int REPORT_VERSION = 1;
 
+  /** Suffix of the merge journal directory of a data file, where snapshots of processes wait to be merged into it. */
+  public static final String JOURNAL_SUFFIX = ".journal";
+  /** Journal file listing the snapshots of a committed merge which has not been completed yet. */
+  public static final String JOURNAL_MARKER = "fold.marker";
+  /** Journal file with the merged data of a committed merge which has not replaced the data file yet. */
+  public static final String JOURNAL_FOLDED_DATA = "fold.data";
+  private static final String SNAPSHOT_SUFFIX = ".ic";
+
+  /**
+   * Load a data file under its lock, including the journal snapshots that have not been merged into it yet.
+   */
   public static ProjectData loadLocked(final File sessionDataFile) {
     CoverageIOUtil.FileLock lock = null;
     try {
       lock = CoverageIOUtil.FileLock.lock(sessionDataFile);
-      return load(sessionDataFile);
+      return loadWithJournal(sessionDataFile);
     } finally {
       CoverageIOUtil.FileLock.unlock(lock);
     }
   }
 
+  /**
+   * Load a data file together with the snapshots of its merge journal that have not been merged into it yet,
+   * for example, when the process which appended a snapshot could not lock the data file.
+   * The journal is not changed, the snapshots are merged into the data file by the next process that saves coverage.
+   * Source maps of the pending snapshots are not applied.
+   * <p>
+   * The data file must be locked, so that the journal is not merged concurrently.
+   */
+  public static ProjectData loadWithJournal(File sessionDataFile) {
+    final File journal = getJournalDir(sessionDataFile);
+    final File[] snapshots = journal.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().endsWith(SNAPSHOT_SUFFIX);
+      }
+    });
+    if (snapshots == null || snapshots.length == 0) return load(sessionDataFile);
+    File dataFile = sessionDataFile;
+    List<String> merged = Collections.emptyList();
+    final File marker = new File(journal, JOURNAL_MARKER);
+    if (marker.exists()) {
+      try {
+        merged = readJournalMarker(marker);
+      } catch (IOException e) {
+        ErrorReporter.reportError("Failed to read merge journal marker " + marker.getPath(), e);
+        return load(sessionDataFile);
+      }
+      final File foldedData = new File(journal, JOURNAL_FOLDED_DATA);
+      if (foldedData.exists()) {
+        dataFile = foldedData;
+      }
+    }
+    final ProjectData projectData = load(dataFile);
+    for (File snapshot : snapshots) {
+      if (merged.contains(snapshot.getName())) continue;
+      try {
+        projectData.merge(loadOrFail(snapshot));
+      } catch (IOException e) {
+        ErrorReporter.reportError("Failed to load coverage data from journal snapshot: " + snapshot.getAbsolutePath(), e);
+      }
+    }
+    return projectData;
+  }
+
+  public static File getJournalDir(File sessionDataFile) {
+    return new File(sessionDataFile.getAbsoluteFile().getParentFile(), sessionDataFile.getName() + JOURNAL_SUFFIX);
+  }
+
+  /**
+   * @return names of the snapshots listed in the marker of a committed journal merge
+   */
+  public static List<String> readJournalMarker(File marker) throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(marker)));
+    try {
+      final int count = CoverageIOUtil.readINT(in);
+      final List<String> result = new ArrayList<String>(count);
+      for (int i = 0; i < count; i++) {
+        result.add(CoverageIOUtil.readUTFFast(in));
+      }
+      return result;
+    } finally {
+      CoverageIOUtil.close(in);
+    }
+  }
+
   public static ProjectData load(File sessionDataFile) {
     final ProjectData projectInfo = new ProjectData();
     DataInputStream in = null;
@@ -48,83 +131,227 @@ public class ProjectDataLoader {
     }
     try {
       in = new DataInputStream(new BufferedInputStream(new FileInputStream(sessionDataFile)));
-      final TIntObjectHashMap<ClassData> dict = new TIntObjectHashMap<ClassData>(1000, 0.99f);
-      final int classCount = CoverageIOUtil.readINT(in);
-      for (int c = 0; c < classCount; c++) {
-        final ClassData classInfo = projectInfo.getOrCreateClassData(StringsPool.getFromPool(CoverageIOUtil.readUTFFast(in)));
-        dict.put(c, classInfo);
-      }
-      for (int c = 0; c < classCount; c++) {
-        final ClassData classInfo = dict.get(CoverageIOUtil.readINT(in));
-        final int methCount = CoverageIOUtil.readINT(in);
-        final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
-        int maxLine = -1;
-        for (int m = 0; m < methCount; m++) {
-          final String methodSig = expand(in, dict);
-          final int lineCount = CoverageIOUtil.readINT(in);
-          for (int l = 0; l < lineCount; l++) {
-            final int line = CoverageIOUtil.readINT(in);
-            LineData lineInfo = lines.get(line);
-            if (lineInfo == null) {
-              lineInfo = new LineData(line, StringsPool.getFromPool(methodSig));
-              lines.put(line, lineInfo);
-              if (line > maxLine) maxLine = line;
-            }
-            classInfo.registerMethodSignature(lineInfo);
-            String testName = CoverageIOUtil.readUTFFast(in);
-            if (testName != null && testName.length() > 0) {
-              lineInfo.setTestName(testName);
-            }
-            final int hits = CoverageIOUtil.readINT(in);
-            lineInfo.setHits(hits);
-            if (hits > 0) {
-              final int jumpsNumber = CoverageIOUtil.readINT(in);
-              for (int j = 0; j < jumpsNumber; j++) {
-                lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
-                lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
-              }
-              final int switchesNumber = CoverageIOUtil.readINT(in);
-              for (int s = 0; s < switchesNumber; s++) {
-                final int defaultHit = CoverageIOUtil.readINT(in);
-                final int keysLength = CoverageIOUtil.readINT(in);
-                final int[] keys = new int[keysLength];
-                final int[] keysHits = new int[keysLength];
-                for (int k = 0; k < keysLength; k++) {
-                  keys[k] = CoverageIOUtil.readINT(in);
-                  keysHits[k] = CoverageIOUtil.readINT(in);
-                }
-                lineInfo.setDefaultHits(s, keys, defaultHit);
-                lineInfo.setSwitchHits(s, keys, keysHits);
-              }
-            }
-            lineInfo.fillArrays();
-          }
-        }
-        classInfo.setLines(com.intellij.rt.coverage.util.LinesUtil.calcLineArray(maxLine, lines));
-      }
-      loadExtraInfo(projectInfo, in, dict);
+      load(projectInfo, in);
     } catch (Exception e) {
       ErrorReporter.reportError("Failed to load coverage data from file: " + sessionDataFile.getAbsolutePath(), e);
       return projectInfo;
     }
     finally {
-      try {
-        in.close();
+      close(in, sessionDataFile);
+    }
+    return projectInfo;
+  }
+
+  /**
+   * Load coverage data, failing if the file cannot be read completely instead of returning the data read so far.
+   */
+  public static ProjectData loadOrFail(File sessionDataFile) throws IOException {
+    final ProjectData projectInfo = new ProjectData();
+    if (sessionDataFile.length() == 0) {
+      return projectInfo;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sessionDataFile)));
+    try {
+      load(projectInfo, in);
+    } catch (RuntimeException e) {
+      // corrupted data may lead to an arbitrary error
+      final IOException exception = new IOException("Corrupted coverage data: " + e.getMessage());
+      exception.initCause(e);
+      throw exception;
+    } finally {
+      close(in, sessionDataFile);
+    }
+    return projectInfo;
+  }
+
+  /**
+   * Load coverage data reading it directly from a memory mapped file.
+   * This avoids copying data through stream buffers, which is noticeable for large reports.
+   * Files that cannot be mapped as a single buffer are loaded with {@link #load(File)}.
+   */
+  public static ProjectData loadMapped(File sessionDataFile) {
+    if (sessionDataFile.length() > Integer.MAX_VALUE) {
+      return load(sessionDataFile);
+    }
+    final ProjectData projectInfo = new ProjectData();
+    if (sessionDataFile.length() == 0) {
+      return projectInfo;
+    }
+    MappedByteBuffer buffer = null;
+    try {
+      buffer = map(sessionDataFile);
+      load(projectInfo, new ByteBufferDataInput(buffer));
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to load coverage data from file: " + sessionDataFile.getAbsolutePath(), e);
+    } finally {
+      // all the loaded data is copied from the buffer
+      if (buffer != null) unmap(buffer);
+    }
+    return projectInfo;
+  }
+
+  /**
+   * Load coverage data lazily if the report contains an index: only the class names are read here,
+   * while a <code>ClassData</code> is loaded on the first request. Useful when just a part of a large report is queried.
+   * Reports without an index are loaded with {@link #loadMapped(File)}.
+   * The report file stays mapped until the returned data is garbage collected, so it cannot be deleted
+   * or replaced on Windows meanwhile.
+   *
+   * @see LazyProjectData
+   */
+  public static ProjectData loadIndexed(File sessionDataFile) {
+    if (sessionDataFile.length() == 0 || sessionDataFile.length() > Integer.MAX_VALUE) {
+      return loadMapped(sessionDataFile);
+    }
+    try {
+      final ByteBuffer buffer = map(sessionDataFile);
+      final ReportIndex index = ReportIndex.load(buffer);
+      if (index != null) {
+        return new LazyProjectData(sessionDataFile, buffer, index);
       }
-      catch (IOException e) {
-        ErrorReporter.reportError("Failed to close file: " + sessionDataFile.getAbsolutePath(), e);
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to load coverage data index from file: " + sessionDataFile.getAbsolutePath(), e);
+    }
+    return loadMapped(sessionDataFile);
+  }
+
+  private static MappedByteBuffer map(File sessionDataFile) throws IOException {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(sessionDataFile, "r");
+      final FileChannel channel = file.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      close(file, sessionDataFile);
+    }
+  }
+
+  /**
+   * Release the mapping of a file without waiting for the buffer to be garbage collected, so that the file is not locked
+   * on Windows. The buffer must not be accessed afterwards.
+   * This is done via JDK internals, the mapping is left to the garbage collector if they are not accessible.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9+
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+      unsafeField.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafeField.get(null), buffer);
+      return;
+    } catch (Throwable ignored) {
+    }
+    try {
+      // Java 8 and earlier
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
       }
+    } catch (Throwable ignored) {
+    }
+  }
+
+  private static String readUTFFast(DataInput in) throws IOException {
+    if (in instanceof ByteBufferDataInput) {
+      return ((ByteBufferDataInput) in).readUTFFast();
+    }
+    return CoverageIOUtil.readUTFFast(in);
+  }
+
+  private static void load(ProjectData projectInfo, DataInput in) throws IOException {
+    final TIntObjectHashMap<ClassData> dict = new TIntObjectHashMap<ClassData>(1000, 0.99f);
+    final String[] names = readClassNames(in);
+    for (int c = 0; c < names.length; c++) {
+      dict.put(c, projectInfo.getOrCreateClassData(names[c]));
+    }
+    for (int c = 0; c < names.length; c++) {
+      final ClassData classInfo = dict.get(CoverageIOUtil.readINT(in));
+      loadLines(in, classInfo, names);
+    }
+    loadExtraInfo(projectInfo, in, dict);
+  }
+
+  static String[] readClassNames(DataInput in) throws IOException {
+    final int classCount = CoverageIOUtil.readINT(in);
+    final String[] names = new String[classCount];
+    for (int c = 0; c < classCount; c++) {
+      names[c] = StringsPool.getFromPool(readUTFFast(in));
+    }
+    return names;
+  }
+
+  /**
+   * Load lines of a class record. The class index at the beginning of the record must be read before this call.
+   *
+   * @param names class names dictionary
+   */
+  static void loadLines(DataInput in, ClassData classInfo, String[] names) throws IOException {
+    final int methCount = CoverageIOUtil.readINT(in);
+    final TIntObjectHashMap<LineData> lines = new TIntObjectHashMap<LineData>(4, 0.99f);
+    int maxLine = -1;
+    for (int m = 0; m < methCount; m++) {
+      final String methodSig = expand(in, names);
+      final int lineCount = CoverageIOUtil.readINT(in);
+      for (int l = 0; l < lineCount; l++) {
+        final int line = CoverageIOUtil.readINT(in);
+        LineData lineInfo = lines.get(line);
+        if (lineInfo == null) {
+          lineInfo = new LineData(line, StringsPool.getFromPool(methodSig));
+          lines.put(line, lineInfo);
+          if (line > maxLine) maxLine = line;
+        }
+        classInfo.registerMethodSignature(lineInfo);
+        String testName = readUTFFast(in);
+        if (testName != null && testName.length() > 0) {
+          lineInfo.setTestName(testName);
+        }
+        final int hits = CoverageIOUtil.readINT(in);
+        lineInfo.setHits(hits);
+        if (hits > 0) {
+          final int jumpsNumber = CoverageIOUtil.readINT(in);
+          for (int j = 0; j < jumpsNumber; j++) {
+            lineInfo.setTrueHits(j, CoverageIOUtil.readINT(in));
+            lineInfo.setFalseHits(j, CoverageIOUtil.readINT(in));
+          }
+          final int switchesNumber = CoverageIOUtil.readINT(in);
+          for (int s = 0; s < switchesNumber; s++) {
+            final int defaultHit = CoverageIOUtil.readINT(in);
+            final int keysLength = CoverageIOUtil.readINT(in);
+            final int[] keys = new int[keysLength];
+            final int[] keysHits = new int[keysLength];
+            for (int k = 0; k < keysLength; k++) {
+              keys[k] = CoverageIOUtil.readINT(in);
+              keysHits[k] = CoverageIOUtil.readINT(in);
+            }
+            lineInfo.setDefaultHits(s, keys, defaultHit);
+            lineInfo.setSwitchHits(s, keys, keysHits);
+          }
+        }
+        lineInfo.fillArrays();
+      }
+    }
+    classInfo.setLines(com.intellij.rt.coverage.util.LinesUtil.calcLineArray(maxLine, lines));
+  }
+
+  private static void close(Closeable closeable, File sessionDataFile) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    }
+    catch (IOException e) {
+      ErrorReporter.reportError("Failed to close file: " + sessionDataFile.getAbsolutePath(), e);
     }
-    return projectInfo;
   }
 
-  private static String expand(DataInputStream in, final TIntObjectHashMap<ClassData> dict) throws IOException {
-    return CoverageIOUtil.processWithDictionary(CoverageIOUtil.readUTFFast(in), new CoverageIOUtil.Consumer() {
+  private static String expand(DataInput in, final String[] names) throws IOException {
+    return CoverageIOUtil.processWithDictionary(readUTFFast(in), new CoverageIOUtil.Consumer() {
       protected String consume(String type) {
         if (type.length() > 0 && Character.isDigit(type.charAt(0))) {
           try {
             final int typeIdx = Integer.parseInt(type);
-            return (dict.get(typeIdx)).getName();
+            return names[typeIdx];
           } catch (NumberFormatException ignored) {
           }
         }
@@ -133,7 +360,7 @@ public class ProjectDataLoader {
     });
   }
 
-  private static void loadExtraInfo(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict) throws IOException {
+  private static void loadExtraInfo(ProjectData projectData, DataInput in, TIntObjectHashMap<ClassData> dict) throws IOException {
     final int version;
     try {
       version = CoverageIOUtil.readINT(in);
@@ -146,7 +373,7 @@ public class ProjectDataLoader {
           + REPORT_VERSION + "\n" + "Please try to update coverage agent.");
       return;
     }
-    final String infoString = CoverageIOUtil.readUTFFast(in);
+    final String infoString = readUTFFast(in);
     ReportSectionsUtil.loadSections(projectData, in, dict);
   }
 }
\ No newline at end of file
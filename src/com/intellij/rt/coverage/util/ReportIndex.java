@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.util;
+
+import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
+import org.jetbrains.coverage.gnu.trove.TIntIntProcedure;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Offsets of class records in a report file, which makes it possible to load classes on demand.
+ * <p>
+ * The index is written after the report sections, so loaders that are not aware of it stop reading before the index.
+ * The file ends with a fixed size trailer: index offset and a magic number.
+ *
+ * @see LazyProjectData
+ */
+public class ReportIndex {
+  private static final int MAGIC = 0x49434958;
+  private static final int VERSION = 0;
+  private static final int TRAILER_SIZE = 8;
+
+  private final int[] myClassOffsets;
+  private final List<SectionIndex> mySections = new ArrayList<SectionIndex>();
+
+  public ReportIndex(int classCount) {
+    myClassOffsets = new int[classCount];
+  }
+
+  /**
+   * @param classIndex index of the class in the report dictionary
+   * @param offset     offset of the class record in the report file
+   */
+  public void setClassOffset(int classIndex, int offset) {
+    myClassOffsets[classIndex] = offset;
+  }
+
+  int getClassCount() {
+    return myClassOffsets.length;
+  }
+
+  int getClassOffset(int classIndex) {
+    return myClassOffsets[classIndex];
+  }
+
+  List<SectionIndex> getSections() {
+    return Collections.unmodifiableList(mySections);
+  }
+
+  void addSection(int id, int version, final int dataOffset, TIntIntHashMap relativeOffsets) {
+    final TIntIntHashMap offsets = new TIntIntHashMap(relativeOffsets.size());
+    relativeOffsets.forEachEntry(new TIntIntProcedure() {
+      public boolean execute(int classIndex, int offset) {
+        offsets.put(classIndex, dataOffset + offset);
+        return true;
+      }
+    });
+    mySections.add(new SectionIndex(id, version, offsets));
+  }
+
+  /**
+   * Write the index to the end of the report.
+   * The index is not written if the report is too large for int offsets.
+   */
+  public void save(final DataOutputStream out) throws IOException {
+    final int indexOffset = out.size();
+    if (indexOffset == Integer.MAX_VALUE) return;
+    CoverageIOUtil.writeINT(out, VERSION);
+    CoverageIOUtil.writeINT(out, myClassOffsets.length);
+    for (int offset : myClassOffsets) {
+      CoverageIOUtil.writeINT(out, offset);
+    }
+    CoverageIOUtil.writeINT(out, mySections.size());
+    for (SectionIndex section : mySections) {
+      CoverageIOUtil.writeINT(out, section.myId);
+      CoverageIOUtil.writeINT(out, section.myVersion);
+      CoverageIOUtil.writeINT(out, section.myOffsets.size());
+      final IOException[] exception = new IOException[1];
+      section.myOffsets.forEachEntry(new TIntIntProcedure() {
+        public boolean execute(int classIndex, int offset) {
+          try {
+            CoverageIOUtil.writeINT(out, classIndex);
+            CoverageIOUtil.writeINT(out, offset);
+            return true;
+          } catch (IOException e) {
+            exception[0] = e;
+            return false;
+          }
+        }
+      });
+      if (exception[0] != null) throw exception[0];
+    }
+    if (out.size() == Integer.MAX_VALUE) return;
+    out.writeInt(indexOffset);
+    out.writeInt(MAGIC);
+  }
+
+  /**
+   * Read the index from the end of the report.
+   *
+   * @return report index or null if the report has no index
+   */
+  static ReportIndex load(ByteBuffer buffer) throws IOException {
+    final int limit = buffer.limit();
+    if (limit < TRAILER_SIZE || buffer.getInt(limit - 4) != MAGIC) return null;
+    final int indexOffset = buffer.getInt(limit - TRAILER_SIZE);
+    if (indexOffset <= 0 || indexOffset >= limit - TRAILER_SIZE) return null;
+
+    final ByteBuffer indexBuffer = buffer.duplicate();
+    indexBuffer.position(indexOffset);
+    indexBuffer.limit(limit - TRAILER_SIZE);
+    final DataInput in = new ByteBufferDataInput(indexBuffer);
+    if (CoverageIOUtil.readINT(in) > VERSION) return null;
+
+    final ReportIndex index = new ReportIndex(CoverageIOUtil.readINT(in));
+    for (int i = 0; i < index.myClassOffsets.length; i++) {
+      index.myClassOffsets[i] = CoverageIOUtil.readINT(in);
+    }
+    final int sectionsCount = CoverageIOUtil.readINT(in);
+    for (int s = 0; s < sectionsCount; s++) {
+      final int id = CoverageIOUtil.readINT(in);
+      final int version = CoverageIOUtil.readINT(in);
+      final int classCount = CoverageIOUtil.readINT(in);
+      final TIntIntHashMap offsets = new TIntIntHashMap(classCount);
+      for (int c = 0; c < classCount; c++) {
+        final int classIndex = CoverageIOUtil.readINT(in);
+        offsets.put(classIndex, CoverageIOUtil.readINT(in));
+      }
+      index.mySections.add(new SectionIndex(id, version, offsets));
+    }
+    return index;
+  }
+
+  static class SectionIndex {
+    final int myId;
+    final int myVersion;
+    /** Class index to offset of the class record in the report file. */
+    final TIntIntHashMap myOffsets;
+
+    private SectionIndex(int id, int version, TIntIntHashMap offsets) {
+      myId = id;
+      myVersion = version;
+      myOffsets = offsets;
+    }
+  }
+}
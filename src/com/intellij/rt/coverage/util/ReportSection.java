@@ -49,19 +49,41 @@ public abstract class ReportSection {
    *
    * @param version version of the section in the agent that generated the report, may be lower than the current version
    */
-  public abstract void load(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict, int version) throws IOException;
+  public abstract void load(ProjectData projectData, DataInput in, TIntObjectHashMap<ClassData> dict, int version) throws IOException;
 
-  protected abstract void saveInternal(ProjectData projectData, DataOutput out, TObjectIntHashMap<String> dict) throws IOException;
+  /**
+   * @param out stream positioned at the beginning of the section data, its size is an offset within the section
+   */
+  protected abstract void saveInternal(ProjectData projectData, DataOutputStream out, TObjectIntHashMap<String> dict) throws IOException;
+
+  /**
+   * Register the saved data in the report index.
+   *
+   * @param dataOffset offset of the section data in the report file
+   */
+  protected void saveIndex(ReportIndex index, int dataOffset) {
+  }
 
   /**
    * Save section data. Identifier, size and version are saved before the data.
    */
   public final void save(ProjectData projectData, DataOutputStream out, TObjectIntHashMap<String> dict) throws IOException {
+    save(projectData, out, dict, null);
+  }
+
+  /**
+   * Save section data and register it in the index if it is not null.
+   * The output stream must be written from the beginning of the report file, so that its size is an offset in the file.
+   */
+  public final void save(ProjectData projectData, DataOutputStream out, TObjectIntHashMap<String> dict, ReportIndex index) throws IOException {
     final ByteArrayOutputStream tmpOut = new ByteArrayOutputStream();
     saveInternal(projectData, new DataOutputStream(tmpOut), dict);
     CoverageIOUtil.writeINT(out, getId());
     CoverageIOUtil.writeINT(out, tmpOut.size());
     CoverageIOUtil.writeINT(out, getVersion());
+    if (index != null) {
+      saveIndex(index, out.size());
+    }
     tmpOut.writeTo(out);
   }
 }
@@ -21,7 +21,7 @@ import com.intellij.rt.coverage.data.ProjectData;
 import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 import org.jetbrains.coverage.gnu.trove.TObjectIntHashMap;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -34,7 +34,7 @@ public class ReportSectionsUtil {
   public static final int INSTRUCTIONS_SECTION_ID = 2;
   public static final int PARTLY_ANALYSED_CLASSES_SECTION_ID = 3;
 
-  private static Map<Integer, ReportSection> getSections(ProjectData projectData) {
+  static Map<Integer, ReportSection> getSections(ProjectData projectData) {
     final Map<Integer, ReportSection> result = new LinkedHashMap<Integer, ReportSection>();
     result.put(UNCOVERED_BRANCHES_SECTION_ID, new UncoveredBranchesSection());
     result.put(INSTRUCTIONS_SECTION_ID, new InstructionsSection(projectData));
@@ -42,7 +42,7 @@ public class ReportSectionsUtil {
     return result;
   }
 
-  public static void loadSections(ProjectData projectData, DataInputStream in, TIntObjectHashMap<ClassData> dict) throws IOException {
+  public static void loadSections(ProjectData projectData, DataInput in, TIntObjectHashMap<ClassData> dict) throws IOException {
     final int numberOfSections = CoverageIOUtil.readINT(in);
 
     final Map<Integer, ReportSection> sections = getSections(projectData);
@@ -68,10 +68,14 @@ public class ReportSectionsUtil {
   }
 
   public static void saveSections(final ProjectData projectData, DataOutputStream out, TObjectIntHashMap<String> dict) throws IOException {
+    saveSections(projectData, out, dict, null);
+  }
+
+  public static void saveSections(final ProjectData projectData, DataOutputStream out, TObjectIntHashMap<String> dict, ReportIndex index) throws IOException {
     final List<ReportSection> sections = getEngagedSections(projectData);
     CoverageIOUtil.writeINT(out, sections.size());
     for (ReportSection section : sections) {
-      section.save(projectData, out, dict);
+      section.save(projectData, out, dict, index);
     }
   }
 
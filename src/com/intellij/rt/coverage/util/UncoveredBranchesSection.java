@@ -20,7 +20,7 @@ import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
@@ -45,7 +45,7 @@ public class UncoveredBranchesSection extends ClassListSection {
   }
 
   @Override
-  protected void loadClass(DataInputStream in, ClassData classData, int version) throws IOException {
+  protected void loadClass(DataInput in, ClassData classData, int version) throws IOException {
     for (Object object : classData.getLines()) {
       final LineData line = (LineData) object;
       if (line == null || line.getHits() > 0) continue;
@@ -16,90 +16,212 @@
 
 package com.intellij.rt.coverage.data;
 
-import org.jetbrains.coverage.gnu.trove.TIntArrayList;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends test discovery data to a socket.
+ * <p>
+ * Messages are serialized on the calling thread into memory and put into a bounded queue. A dedicated thread
+ * takes all the queued messages at once and writes them to the socket channel with a single gathering write,
+ * so that a slow receiver does not stall the tests until the queue is full.
+ * If the data cannot be sent, the sender stops and further messages are dropped, so that the tests are never blocked
+ * by a queue that nobody drains.
+ */
 @SuppressWarnings("unused")
 public class SocketTestDiscoveryProtocolDataListener extends TestDiscoveryProtocolDataListener {
   private static final int SOCKET_BUFFER_SIZE = 128 * 1024;
+  private static final int MAX_BATCH_SIZE = 64;
   @SuppressWarnings("WeakerAccess")
   public static final String HOST_PROP = "test.discovery.data.host";
   @SuppressWarnings("WeakerAccess")
   public static final String PORT_PROP = "test.discovery.data.port";
   @SuppressWarnings("WeakerAccess")
   public static final String DATA_VERSION = "test.discovery.data.version";
+  /** Maximal number of messages waiting to be sent. */
+  @SuppressWarnings("WeakerAccess")
+  public static final String QUEUE_SIZE_PROP = "test.discovery.data.queue.size";
+  /** Log the sending statistics when the tests are finished. */
+  @SuppressWarnings("WeakerAccess")
+  public static final String STATISTICS_PROP = "test.discovery.data.statistics";
+  private static final long OFFER_TIMEOUT_MS = 100;
 
   private static final byte DEFAULT_VERSION = 1;
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
 
-  private final Socket mySocket;
-  private final BlockingQueue<ByteBuffer> myData = new ArrayBlockingQueue<ByteBuffer>(10);
+  private final SocketChannel myChannel;
+  private final BlockingQueue<ByteBuffer> myData;
   private final NameEnumerator.Incremental incrementalNameEnumerator = new NameEnumerator.Incremental();
-  private final DataOutputStream dos;
-  private final OutputStream os;
+  private final ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+  private final DataOutputStream dos = new DataOutputStream(myBuffer);
+  private final Thread mySender;
+  private final boolean myLogStatistics = "true".equals(System.getProperty(STATISTICS_PROP, "false"));
+  private volatile Exception mySendError;
+  /** Set when the sender thread does not take messages from the queue anymore. */
+  private volatile boolean mySenderStopped;
+
+  private long myBlockedCount;
+  private long myBlockedTime;
+  private long mySentMessages;
+  private long mySentBatches;
+  private long mySentBytes;
 
   public SocketTestDiscoveryProtocolDataListener() throws IOException {
-    super(Byte.parseByte(System.getProperty(DATA_VERSION, String.valueOf(DEFAULT_VERSION))));
-    String host = System.getProperty(HOST_PROP, "127.0.0.1");
-    int port = Integer.parseInt(System.getProperty(PORT_PROP));
-    mySocket = new Socket(host, port);
-    mySocket.setSendBufferSize(SOCKET_BUFFER_SIZE);
-    mySocket.setTcpNoDelay(true);
-    os = mySocket.getOutputStream();
-    dos = new DataOutputStream(os);
+    this(System.getProperty(HOST_PROP, "127.0.0.1"), Integer.parseInt(System.getProperty(PORT_PROP)),
+        Byte.parseByte(System.getProperty(DATA_VERSION, String.valueOf(DEFAULT_VERSION))),
+        Integer.parseInt(System.getProperty(QUEUE_SIZE_PROP, "256")));
+  }
+
+  // For tests
+  SocketTestDiscoveryProtocolDataListener(String host, int port, byte version, int queueSize) throws IOException {
+    super(version);
+    myData = new ArrayBlockingQueue<ByteBuffer>(queueSize);
+    myChannel = SocketChannel.open(new InetSocketAddress(host, port));
+    myChannel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+    myChannel.socket().setTcpNoDelay(true);
+    mySender = new Thread(new Runnable() {
+      public void run() {
+        send();
+      }
+    }, "Test discovery data sender");
+    mySender.setDaemon(true);
+    mySender.start();
     start(dos);
+    enqueue();
   }
 
-  public void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) {
+  public synchronized void testFinished(String className, String methodName, Map<Integer, boolean[]> classToVisitedMethods, Map<Integer, int[]> classToMethodNames, List<int[]> openedFiles) {
     try {
       writeTestFinished(dos, className, methodName, classToVisitedMethods, classToMethodNames, openedFiles);
+      enqueue();
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  public void testsFinished() {
+  public synchronized void testsFinished() {
     try {
       finish(dos);
+      enqueue();
+      putToQueue(END);
+      mySender.join();
+      if (mySendError != null) {
+        mySendError.printStackTrace();
+      }
+      if (myLogStatistics) {
+        ErrorReporter.logInfo("Test discovery data: " + mySentMessages + " messages, " + mySentBytes + " bytes sent in "
+            + mySentBatches + " batches; senders waited for a full queue " + myBlockedCount + " times, "
+            + 1. * myBlockedTime / CoverageIOUtil.GIGA + "s");
+      }
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } finally {
       try {
-        dos.close();
-        os.close();
-        mySocket.close();
+        myChannel.close();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
 
-  public void addMetadata(Map<String, String> metadata) throws IOException {
+  public synchronized void addMetadata(Map<String, String> metadata) throws IOException {
     writeMetadata(dos, metadata);
+    enqueue();
   }
 
-  public void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
+  public synchronized void addClassMetadata(List<ClassMetadata> metadata) throws IOException {
     writeClassMetadata(dos, metadata);
+    enqueue();
   }
 
   public NameEnumerator.Incremental getNameEnumerator() {
     return incrementalNameEnumerator;
   }
 
-  private static class VisitedMethods {
-    private final int classId;
-    private final TIntArrayList methodIds = new TIntArrayList(1);
+  /**
+   * Put the serialized data into the sending queue, waiting if the queue is full.
+   * The data is dropped if the sender has stopped.
+   */
+  private void enqueue() throws IOException {
+    dos.flush();
+    if (myBuffer.size() == 0) return;
+    if (mySenderStopped) {
+      myBuffer.reset();
+      return;
+    }
+    final ByteBuffer message = ByteBuffer.wrap(myBuffer.toByteArray());
+    myBuffer.reset();
+    try {
+      putToQueue(message);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sending test discovery data");
+    }
+  }
+
+  private void putToQueue(ByteBuffer message) throws InterruptedException {
+    if (mySenderStopped || myData.offer(message)) return;
+    final long start = System.nanoTime();
+    // the sender may stop while the queue is full, so the wait is rechecked periodically
+    while (!myData.offer(message, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      if (mySenderStopped) return;
+    }
+    myBlockedCount++;
+    myBlockedTime += System.nanoTime() - start;
+  }
+
+  private void send() {
+    final List<ByteBuffer> batch = new ArrayList<ByteBuffer>(MAX_BATCH_SIZE);
+    try {
+      while (true) {
+        batch.add(myData.take());
+        myData.drainTo(batch, MAX_BATCH_SIZE - 1);
+        final boolean end = batch.get(batch.size() - 1) == END;
+        if (end) batch.remove(batch.size() - 1);
+        if (!batch.isEmpty()) {
+          write(batch.toArray(new ByteBuffer[0]));
+        }
+        batch.clear();
+        if (end) return;
+      }
+    } catch (InterruptedException ignored) {
+    } catch (IOException e) {
+      mySendError = e;
+    } catch (RuntimeException e) {
+      mySendError = e;
+    } finally {
+      // further messages are dropped, so that tests are not blocked by the full queue
+      mySenderStopped = true;
+      myData.clear();
+    }
+  }
 
-    private VisitedMethods(int classId) {
-      this.classId = classId;
+  private void write(ByteBuffer[] buffers) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    final long size = remaining;
+    while (remaining > 0) {
+      remaining -= myChannel.write(buffers);
     }
+    mySentMessages += buffers.length;
+    mySentBatches++;
+    mySentBytes += size;
   }
 }
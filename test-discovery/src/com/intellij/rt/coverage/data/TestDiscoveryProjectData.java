@@ -72,6 +72,13 @@ public class TestDiscoveryProjectData {
   private final ConcurrentMap<Integer, boolean[]> myClassToVisitedMethods = new ConcurrentHashMap<Integer, boolean[]>();
   private final ConcurrentMap<Integer, int[]> myClassToMethodNames = new ConcurrentHashMap<Integer, int[]>();
   final ConcurrentMap<Integer, ClassMetadata> classesToMetadata = new ConcurrentHashMap<Integer, ClassMetadata>();
+  /**
+   * Visited methods arrays of classes used since the current test start, see {@link #touch(boolean[])}.
+   * Arrays do not override equals and hashCode, so this is an identity set.
+   */
+  private final ConcurrentMap<boolean[], Boolean> myDirtyClasses = new ConcurrentHashMap<boolean[], Boolean>();
+  /** Class ids of the current visited methods arrays, guarded by this. */
+  private final Map<boolean[], Integer> myVisitedMethodsToClass = new IdentityHashMap<boolean[], Integer>();
   private final TestDiscoveryDataListener myDataListener;
 
   // called from instrumented code during class's static init
@@ -84,6 +91,14 @@ public class TestDiscoveryProjectData {
     }
   }
 
+  // called from instrumented code when a method is visited for the first time since the test start
+  public static void touch(boolean[] methodFlags) {
+    final ConcurrentMap<boolean[], Boolean> dirtyClasses = ourProjectData.myDirtyClasses;
+    if (!dirtyClasses.containsKey(methodFlags)) {
+      dirtyClasses.put(methodFlags, Boolean.TRUE);
+    }
+  }
+
   private static Long ourTraceTime = 0L;
   private static Long ourCleanupTime = 0L;
 
@@ -101,16 +116,19 @@ public class TestDiscoveryProjectData {
       //override previous data so different loaded classes would work with different arrays 
       //the last loaded class wins but at least no ArrayIndexOutOfBound would be possible due to different class versions
       myClassToVisitedMethods.put(classId, methodFlags);
+      myVisitedMethodsToClass.remove(previousMethodFlags);
     }
 
+    myVisitedMethodsToClass.put(methodFlags, classId);
     myClassToMethodNames.put(classId, NameEnumerator.enumerate(methodNames, myNameEnumerator));
     return methodFlags;
   }
 
   public synchronized void testDiscoveryEnded(final String className, final String methodName) {
     try {
-      myDataListener.testFinished(className, methodName, myClassToVisitedMethods, myClassToMethodNames, enumerateFiles(myOpenFilesPerTest));
-      for (Map.Entry<Integer, boolean[]> e : myClassToVisitedMethods.entrySet()) {
+      final Map<Integer, boolean[]> visitedMethods = collectDirtyClasses();
+      myDataListener.testFinished(className, methodName, visitedMethods, myClassToMethodNames, enumerateFiles(myOpenFilesPerTest));
+      for (Map.Entry<Integer, boolean[]> e : visitedMethods.entrySet()) {
         for (boolean isUsed : e.getValue()) {
           if (isUsed) {
             ClassMetadata cm = classesToMetadata.remove(e.getKey());
@@ -126,6 +144,20 @@ public class TestDiscoveryProjectData {
     }
   }
 
+  /**
+   * @return visited methods of the classes used since the test start, arrays of reloaded classes are skipped
+   */
+  private Map<Integer, boolean[]> collectDirtyClasses() {
+    final Map<Integer, boolean[]> result = new HashMap<Integer, boolean[]>();
+    for (boolean[] methodFlags : myDirtyClasses.keySet()) {
+      final Integer classId = myVisitedMethodsToClass.get(methodFlags);
+      if (classId != null) {
+        result.put(classId, methodFlags);
+      }
+    }
+    return result;
+  }
+
   private List<int[]> enumerateFiles(Collection<String> openedFiles) {
     List<int[]> files = new ArrayList<int[]>(openedFiles.size());
     for (String file : openedFiles) {
@@ -153,8 +185,10 @@ public class TestDiscoveryProjectData {
   }
 
   private void cleanup() {
-    for (Object e : myClassToVisitedMethods.entrySet()) {
-      boolean[] used = (boolean[]) ((Map.Entry) e).getValue();
+    for (Iterator<boolean[]> it = myDirtyClasses.keySet().iterator(); it.hasNext(); ) {
+      boolean[] used = it.next();
+      // remove before clearing, so that a method visited concurrently marks the class dirty again
+      it.remove();
       for (int i = 0, len = used.length; i < len; ++i) {
         if (used[i]) used[i] = false;
       }
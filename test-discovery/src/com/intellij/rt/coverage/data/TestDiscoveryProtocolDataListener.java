@@ -17,8 +17,10 @@
 package com.intellij.rt.coverage.data;
 
 import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntArrayList;
 import org.jetbrains.coverage.gnu.trove.TIntIntHashMap;
 import org.jetbrains.coverage.gnu.trove.TIntIntIterator;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
 import java.io.DataOutput;
 import java.io.IOException;
@@ -38,9 +40,22 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
 
   public static final int METADATA_MARKER = 0x05;
   public static final int CLASS_METADATA_MARKER = 0x06;
+  public static final int CLASS_METHODS_MARKER = 0x07;
+
+  /** Visited methods are written as a bitmap over the class methods list. */
+  public static final int BITMAP_ENCODING = 0;
+  /** Visited methods are written as a list of gaps between their indices in the class methods list. */
+  public static final int SPARSE_ENCODING = 1;
+  /** The difference with the previously written bitmap of the class is written as a list of gaps. */
+  public static final int DELTA_ENCODING = 2;
 
   protected final byte myVersion;
 
+  /** Class methods lists known to the reader, compared by identity. */
+  private final TIntObjectHashMap<int[]> mySentClassMethods = new TIntObjectHashMap<int[]>();
+  /** Bitmaps of visited methods that were written last per class, base for {@link #DELTA_ENCODING}. */
+  private final TIntObjectHashMap<byte[]> myPreviousBitmaps = new TIntObjectHashMap<byte[]>();
+
   public TestDiscoveryProtocolDataListener(byte version) {
     this.myVersion = version;
   }
@@ -57,10 +72,19 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
     // Also send enumerated file path chunks
     writeDictionaryIncrementIfNeeded(output);
 
-    output.writeByte(TEST_FINISHED_MARKER);
-    CoverageIOUtil.writeINT(output, testClassNameId);
-    CoverageIOUtil.writeINT(output, testMethodNameId);
-    writeVisitedMethod(classToVisitedMethods, classToMethodNames, output);
+    if (myVersion >= 4) {
+      final TIntObjectHashMap<byte[]> bitmaps = collectVisitedBitmaps(classToVisitedMethods, classToMethodNames);
+      writeClassMethodsIfNeeded(output, bitmaps, classToMethodNames);
+      output.writeByte(TEST_FINISHED_MARKER);
+      CoverageIOUtil.writeINT(output, testClassNameId);
+      CoverageIOUtil.writeINT(output, testMethodNameId);
+      writeVisitedBitmaps(output, bitmaps);
+    } else {
+      output.writeByte(TEST_FINISHED_MARKER);
+      CoverageIOUtil.writeINT(output, testClassNameId);
+      CoverageIOUtil.writeINT(output, testMethodNameId);
+      writeVisitedMethod(classToVisitedMethods, classToMethodNames, output);
+    }
     writeAffectedFiles(output, openedFiles);
   }
 
@@ -143,6 +167,165 @@ public abstract class TestDiscoveryProtocolDataListener implements TestDiscovery
     }
   }
 
+  /**
+   * Take a snapshot of visited methods as bitmaps over the class methods lists.
+   * Classes without visited methods are skipped.
+   */
+  private static TIntObjectHashMap<byte[]> collectVisitedBitmaps(Map<Integer, boolean[]> classToVisitedMethods,
+                                                                Map<Integer, int[]> classToMethodNames) {
+    final TIntObjectHashMap<byte[]> bitmaps = new TIntObjectHashMap<byte[]>();
+    for (Map.Entry<Integer, boolean[]> o : classToVisitedMethods.entrySet()) {
+      final int[] methodNames = classToMethodNames.get(o.getKey());
+      if (methodNames == null) continue;
+      final boolean[] used = o.getValue();
+      final byte[] bitmap = new byte[(methodNames.length + 7) / 8];
+      boolean isUsed = false;
+      for (int i = 0, len = Math.min(used.length, methodNames.length); i < len; ++i) {
+        if (used[i]) {
+          bitmap[i >> 3] |= 1 << (i & 7);
+          isUsed = true;
+        }
+      }
+      if (isUsed) {
+        bitmaps.put(o.getKey(), bitmap);
+      }
+    }
+    return bitmaps;
+  }
+
+  /**
+   * Writes methods lists of classes that are visited for the first time or were reloaded.
+   * Format:
+   * <ul>
+   * <li>Marker - byte</li>
+   * <li>Class.Count (N) - number</li>
+   * <li>Class[1] - number</li>
+   * <li>Class[1].Methods.Count (K) - number</li>
+   * <li>Class[1].Method[1] - number</li>
+   * <li>...</li>
+   * <li>Class[1].Method[K] - number</li>
+   * <li>Class[2] - number</li>
+   * <li>...</li>
+   * </ul>
+   *
+   * @since Version 4
+   */
+  private void writeClassMethodsIfNeeded(DataOutput os, TIntObjectHashMap<byte[]> bitmaps,
+                                         Map<Integer, int[]> classToMethodNames) throws IOException {
+    final TIntArrayList classes = new TIntArrayList();
+    for (int classId : bitmaps.keys()) {
+      if (mySentClassMethods.get(classId) != classToMethodNames.get(classId)) {
+        classes.add(classId);
+      }
+    }
+    if (classes.isEmpty()) return;
+    os.writeByte(CLASS_METHODS_MARKER);
+    CoverageIOUtil.writeINT(os, classes.size());
+    for (int i = 0; i < classes.size(); i++) {
+      final int classId = classes.get(i);
+      final int[] methodNames = classToMethodNames.get(classId);
+      CoverageIOUtil.writeINT(os, classId);
+      CoverageIOUtil.writeINT(os, methodNames.length);
+      for (int methodName : methodNames) {
+        CoverageIOUtil.writeINT(os, methodName);
+      }
+      mySentClassMethods.put(classId, methodNames);
+      myPreviousBitmaps.remove(classId);
+    }
+  }
+
+  /**
+   * Writes visited methods of a test relative to the class methods lists.
+   * Format:
+   * <ul>
+   * <li>Class.Count (N) - number</li>
+   * <li>Class[1] &lt;&lt; 2 | Encoding - number</li>
+   * <li>Class[1].Data - bitmap bytes for {@link #BITMAP_ENCODING},
+   * gaps count and gaps numbers for {@link #SPARSE_ENCODING} and {@link #DELTA_ENCODING}</li>
+   * <li>Class[2] &lt;&lt; 2 | Encoding - number</li>
+   * <li>...</li>
+   * </ul>
+   * The encoding with the smallest size is chosen for each class.
+   *
+   * @since Version 4
+   */
+  private void writeVisitedBitmaps(DataOutput os, TIntObjectHashMap<byte[]> bitmaps) throws IOException {
+    CoverageIOUtil.writeINT(os, bitmaps.size());
+    for (int classId : bitmaps.keys()) {
+      final byte[] bitmap = bitmaps.get(classId);
+      final byte[] previous = myPreviousBitmaps.get(classId);
+      final byte[] delta = previous == null ? null : xor(bitmap, previous);
+      final int sparseSize = sparseSize(bitmap);
+      final int deltaSize = delta == null ? Integer.MAX_VALUE : sparseSize(delta);
+      if (deltaSize < sparseSize && deltaSize < bitmap.length) {
+        CoverageIOUtil.writeINT(os, classId << 2 | DELTA_ENCODING);
+        writeSparse(os, delta);
+      } else if (sparseSize < bitmap.length) {
+        CoverageIOUtil.writeINT(os, classId << 2 | SPARSE_ENCODING);
+        writeSparse(os, bitmap);
+      } else {
+        CoverageIOUtil.writeINT(os, classId << 2 | BITMAP_ENCODING);
+        os.write(bitmap);
+      }
+      myPreviousBitmaps.put(classId, bitmap);
+    }
+  }
+
+  private static byte[] xor(byte[] bitmap, byte[] previous) {
+    final byte[] result = new byte[bitmap.length];
+    for (int i = 0; i < bitmap.length; i++) {
+      result[i] = (byte) (bitmap[i] ^ previous[i]);
+    }
+    return result;
+  }
+
+  private static int sparseSize(byte[] bitmap) {
+    int count = 0;
+    int size = 0;
+    int last = -1;
+    for (int b = 0; b < bitmap.length; b++) {
+      if (bitmap[b] == 0) continue;
+      for (int i = b << 3, end = i + 8; i < end; i++) {
+        if ((bitmap[b] & 1 << (i & 7)) != 0) {
+          count++;
+          size += intSize(i - last - 1);
+          last = i;
+        }
+      }
+    }
+    return size + intSize(count);
+  }
+
+  private static void writeSparse(DataOutput os, byte[] bitmap) throws IOException {
+    int count = 0;
+    for (byte b : bitmap) {
+      count += Integer.bitCount(b & 0xFF);
+    }
+    CoverageIOUtil.writeINT(os, count);
+    int last = -1;
+    for (int b = 0; b < bitmap.length; b++) {
+      if (bitmap[b] == 0) continue;
+      for (int i = b << 3, end = i + 8; i < end; i++) {
+        if ((bitmap[b] & 1 << (i & 7)) != 0) {
+          CoverageIOUtil.writeINT(os, i - last - 1);
+          last = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of bytes that {@link CoverageIOUtil#writeINT} uses for a non-negative value
+   */
+  private static int intSize(int value) {
+    if (value < 192) return 1;
+    int size = 2;
+    for (value >>>= 13; value > 0; value >>>= 7) {
+      size++;
+    }
+    return size;
+  }
+
   /**
    * Writes file metadata map as list of key-value pairs.
    * Format:
@@ -19,6 +19,7 @@ package com.intellij.rt.coverage.data.api;
 import com.intellij.rt.coverage.data.SingleTrFileDiscoveryProtocolDataListener;
 import com.intellij.rt.coverage.data.TestDiscoveryProtocolDataListener;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
+import org.jetbrains.coverage.gnu.trove.TIntObjectHashMap;
 
 import java.io.*;
 import java.util.Arrays;
@@ -37,6 +38,7 @@ public class TestDiscoveryProtocolUtil {
 
     boolean start = true;
     Integer version = null;
+    final VisitedMethodsDecoder decoder = new VisitedMethodsDecoder();
     while (true) {
       final int read = input.read();
       if (read == -1) {
@@ -60,7 +62,11 @@ public class TestDiscoveryProtocolUtil {
         case TestDiscoveryProtocolDataListener.TEST_FINISHED_MARKER:
           reader.debug("test data received");
           assert version != null;
-          readTestData(input, reader, version);
+          readTestData(input, reader, version, decoder);
+          break;
+        case TestDiscoveryProtocolDataListener.CLASS_METHODS_MARKER:
+          reader.debug("class methods received");
+          decoder.readClassMethods(input);
           break;
         case TestDiscoveryProtocolDataListener.NAMES_DICTIONARY_PART_MARKER:
           reader.debug("partial dictionary received");
@@ -136,7 +142,8 @@ public class TestDiscoveryProtocolUtil {
     }
   }
 
-  private static void readTestData(DataInputStream input, TestDiscoveryProtocolReader reader, int protocolVersion) throws IOException {
+  private static void readTestData(DataInputStream input, TestDiscoveryProtocolReader reader, int protocolVersion,
+                                   VisitedMethodsDecoder decoder) throws IOException {
     // read test name
     int testClassName = CoverageIOUtil.readINT(input);
     int testMethodName = CoverageIOUtil.readINT(input);
@@ -144,15 +151,21 @@ public class TestDiscoveryProtocolUtil {
 
     // read used methods
     int classCount = CoverageIOUtil.readINT(input);
-    while (classCount-- > 0) {
-      int classId = CoverageIOUtil.readINT(input);
-      int methodCount = CoverageIOUtil.readINT(input);
-      testDataReader.classProcessingStarted(classId);
-      while (methodCount-- > 0) {
-        int methodId = CoverageIOUtil.readINT(input);
-        testDataReader.processUsedMethod(methodId);
+    if (protocolVersion >= 4) {
+      while (classCount-- > 0) {
+        decoder.readVisitedMethods(input, testDataReader);
+      }
+    } else {
+      while (classCount-- > 0) {
+        int classId = CoverageIOUtil.readINT(input);
+        int methodCount = CoverageIOUtil.readINT(input);
+        testDataReader.classProcessingStarted(classId);
+        while (methodCount-- > 0) {
+          int methodId = CoverageIOUtil.readINT(input);
+          testDataReader.processUsedMethod(methodId);
+        }
+        testDataReader.classProcessingFinished(classId);
       }
-      testDataReader.classProcessingFinished(classId);
     }
 
     if (protocolVersion >= 3) {
@@ -177,4 +190,64 @@ public class TestDiscoveryProtocolUtil {
     }
     testDataReader.processAffectedFile(chunks);
   }
+
+  /**
+   * Restores visited methods from bitmaps, keeps class methods lists and the previous bitmaps of the stream.
+   *
+   * @see TestDiscoveryProtocolDataListener#BITMAP_ENCODING
+   * @see TestDiscoveryProtocolDataListener#SPARSE_ENCODING
+   * @see TestDiscoveryProtocolDataListener#DELTA_ENCODING
+   */
+  private static class VisitedMethodsDecoder {
+    private final TIntObjectHashMap<int[]> myClassMethods = new TIntObjectHashMap<int[]>();
+    private final TIntObjectHashMap<byte[]> myPreviousBitmaps = new TIntObjectHashMap<byte[]>();
+
+    void readClassMethods(DataInputStream input) throws IOException {
+      int classCount = CoverageIOUtil.readINT(input);
+      while (classCount-- > 0) {
+        final int classId = CoverageIOUtil.readINT(input);
+        final int[] methods = new int[CoverageIOUtil.readINT(input)];
+        for (int i = 0; i < methods.length; i++) {
+          methods[i] = CoverageIOUtil.readINT(input);
+        }
+        myClassMethods.put(classId, methods);
+        myPreviousBitmaps.remove(classId);
+      }
+    }
+
+    void readVisitedMethods(DataInputStream input, TestDiscoveryProtocolReader.TestDataReader testDataReader) throws IOException {
+      final int header = CoverageIOUtil.readINT(input);
+      final int classId = header >>> 2;
+      final int encoding = header & 3;
+      final int[] methods = myClassMethods.get(classId);
+      if (methods == null) throw new IOException("Methods of class " + classId + " are unknown");
+      final byte[] bitmap = new byte[(methods.length + 7) / 8];
+      if (encoding == TestDiscoveryProtocolDataListener.BITMAP_ENCODING) {
+        input.readFully(bitmap);
+      } else {
+        int count = CoverageIOUtil.readINT(input);
+        int index = -1;
+        while (count-- > 0) {
+          index += CoverageIOUtil.readINT(input) + 1;
+          bitmap[index >> 3] |= 1 << (index & 7);
+        }
+        if (encoding == TestDiscoveryProtocolDataListener.DELTA_ENCODING) {
+          final byte[] previous = myPreviousBitmaps.get(classId);
+          if (previous == null) throw new IOException("No previous bitmap of class " + classId);
+          for (int i = 0; i < bitmap.length; i++) {
+            bitmap[i] ^= previous[i];
+          }
+        }
+      }
+      myPreviousBitmaps.put(classId, bitmap);
+
+      testDataReader.classProcessingStarted(classId);
+      for (int i = 0; i < methods.length; i++) {
+        if ((bitmap[i >> 3] & 1 << (i & 7)) != 0) {
+          testDataReader.processUsedMethod(methods[i]);
+        }
+      }
+      testDataReader.classProcessingFinished(classId);
+    }
+  }
 }
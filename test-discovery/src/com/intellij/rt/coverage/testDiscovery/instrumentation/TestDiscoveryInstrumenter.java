@@ -84,12 +84,25 @@ public class TestDiscoveryInstrumenter extends ExtraFieldInstrumenter {
     MethodVisitor newMv = new MethodVisitor(Opcodes.API_VERSION, mv) {
       final int myMethodId = myCurrentMethodCount++;
 
+      /**
+       * Marks the method visited, on the first visit since the test start also marks the class dirty:
+       * <code>if (!flags[id]) { flags[id] = true; TestDiscoveryProjectData.touch(flags); }</code>
+       */
       @Override
       public void visitCode() {
+        final Label visited = new Label();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, getInternalClassName(), METHODS_VISITED, METHODS_VISITED_CLASS);
+        pushInstruction(this, myMethodId);
+        visitInsn(Opcodes.BALOAD);
+        visitJumpInsn(Opcodes.IFNE, visited);
+
         mv.visitFieldInsn(Opcodes.GETSTATIC, getInternalClassName(), METHODS_VISITED, METHODS_VISITED_CLASS);
         pushInstruction(this, myMethodId);
         visitInsn(Opcodes.ICONST_1);
         visitInsn(Opcodes.BASTORE);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, getInternalClassName(), METHODS_VISITED, METHODS_VISITED_CLASS);
+        visitMethodInsn(Opcodes.INVOKESTATIC, TestDiscoveryProjectData.PROJECT_DATA_OWNER, "touch", "([Z)V", false);
+        visitLabel(visited);
 
         super.visitCode();
       }
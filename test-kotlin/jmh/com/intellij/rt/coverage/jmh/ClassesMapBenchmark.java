@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.ClassesMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent class data lookups, as performed by instrumented classes on initialization.
+ * <code>ConcurrentHashMap</code> is used as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Measurement(iterations = 10)
+@Warmup(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(64)
+@Fork(1)
+public class ClassesMapBenchmark {
+  @Param({"1000", "50000"})
+  int classesCount;
+
+  private String[] myNames;
+  private ClassesMap myClassesMap;
+  private ConcurrentHashMap<String, ClassData> myConcurrentMap;
+
+  @Setup
+  public void setup() {
+    myNames = new String[classesCount];
+    myClassesMap = new ClassesMap();
+    myConcurrentMap = new ConcurrentHashMap<String, ClassData>();
+    for (int i = 0; i < classesCount; i++) {
+      final String name = ("com.example.package" + i % 100 + ".Class" + i).intern();
+      final ClassData classData = new ClassData(name);
+      myNames[i] = name;
+      myClassesMap.putIfAbsent(name, classData);
+      myConcurrentMap.put(name, classData);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadIndex {
+    int myIndex;
+  }
+
+  @Benchmark
+  public void classesMapGet(ThreadIndex index, Blackhole blackhole) {
+    blackhole.consume(myClassesMap.get(nextName(index)));
+  }
+
+  @Benchmark
+  public void concurrentHashMapGet(ThreadIndex index, Blackhole blackhole) {
+    blackhole.consume(myConcurrentMap.get(nextName(index)));
+  }
+
+  private String nextName(ThreadIndex index) {
+    final int i = index.myIndex;
+    index.myIndex = i + 1 == myNames.length ? 0 : i + 1;
+    return myNames[i];
+  }
+}
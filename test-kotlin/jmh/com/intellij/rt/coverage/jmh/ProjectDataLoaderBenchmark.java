@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.jmh;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import com.intellij.rt.coverage.util.classFinder.ClassPathEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares stream based and memory mapped report loading.
+ * The report is generated from the unloaded analysis of the agent classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Measurement(iterations = 10)
+@Warmup(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class ProjectDataLoaderBenchmark {
+  @Param({"false", "true"})
+  boolean isSampling = true;
+
+  private File myReport;
+
+  @Setup
+  public void setup() throws IOException {
+    final ProjectData projectData = new ProjectData();
+    SaveHook.appendUnloadedFullAnalysis(projectData, createClassFinder(), true, isSampling, false, false);
+    myReport = File.createTempFile("benchmark", ".ic");
+    SaveHook.save(projectData, myReport, null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    myReport.delete();
+  }
+
+  @Benchmark
+  public ProjectData streamLoader() {
+    return ProjectDataLoader.load(myReport);
+  }
+
+  @Benchmark
+  public ProjectData mappedLoader() {
+    return ProjectDataLoader.loadMapped(myReport);
+  }
+
+  private static ClassFinder createClassFinder() {
+    final String agentPath = new File(ProjectData.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath();
+    return new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList()) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Collections.singletonList(new ClassPathEntry(agentPath));
+      }
+    };
+  }
+}
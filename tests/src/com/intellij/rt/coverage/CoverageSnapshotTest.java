@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.JumpData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.CoverageSnapshotter;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CoverageSnapshotTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = File.createTempFile("snapshot", "");
+    myDir.delete();
+    myDir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    final File[] files = myDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    myDir.delete();
+    super.tearDown();
+  }
+
+  public void testLineHitsDelta() throws IOException {
+    final ProjectData projectData = new ProjectData();
+    final ClassData a = createClass(projectData, "A");
+    final ClassData b = createClass(projectData, "B");
+    final CoverageSnapshotter snapshotter = new CoverageSnapshotter(projectData, new File(myDir, "coverage.ic"));
+
+    assertNull(snapshotter.snapshot());
+
+    a.touch(1);
+    a.touch(1);
+    final File first = snapshotter.snapshot();
+    assertEquals(new File(myDir, "coverage-snapshot-1.ic").getAbsolutePath(), first.getAbsolutePath());
+    ProjectData snapshot = ProjectDataLoader.load(first);
+    assertEquals(1, snapshot.getClassesNumber());
+    assertEquals(2, getLine(snapshot, "A", 1).getHits());
+
+    a.touch(1);
+    b.touch(2);
+    snapshot = ProjectDataLoader.load(snapshotter.snapshot());
+    assertEquals(2, snapshot.getClassesNumber());
+    assertEquals(1, getLine(snapshot, "A", 1).getHits());
+    assertEquals(0, getLine(snapshot, "A", 2).getHits());
+    assertEquals(1, getLine(snapshot, "B", 2).getHits());
+
+    b.touch(2);
+    snapshot = ProjectDataLoader.load(snapshotter.snapshot());
+    assertEquals(1, snapshot.getClassesNumber());
+    assertNull(snapshot.getClassData("A"));
+    assertEquals(1, getLine(snapshot, "B", 2).getHits());
+  }
+
+  public void testHitsMaskDelta() throws IOException {
+    final ProjectData projectData = new ProjectData();
+    final ClassData a = createClass(projectData, "A");
+    final LineData line = a.getLineData(1);
+    line.setId(0);
+    line.addJump(0);
+    line.getJumpData(0).setId(1, true);
+    line.getJumpData(0).setId(2, false);
+    line.fillArrays();
+    a.createHitsMask(3);
+    final CoverageSnapshotter snapshotter = new CoverageSnapshotter(projectData, new File(myDir, "coverage.ic"));
+
+    a.getHitsMask()[0] += 3;
+    a.getHitsMask()[1] += 2;
+    ProjectData snapshot = ProjectDataLoader.load(snapshotter.snapshot());
+    LineData snapshotLine = getLine(snapshot, "A", 1);
+    assertEquals(3, snapshotLine.getHits());
+    assertEquals(2, snapshotLine.getJumpData(0).getTrueHits());
+    assertEquals(0, snapshotLine.getJumpData(0).getFalseHits());
+
+    a.getHitsMask()[0]++;
+    a.getHitsMask()[2]++;
+    snapshot = ProjectDataLoader.load(snapshotter.snapshot());
+    snapshotLine = getLine(snapshot, "A", 1);
+    assertEquals(1, snapshotLine.getHits());
+    final JumpData jump = snapshotLine.getJumpData(0);
+    assertEquals(0, jump.getTrueHits());
+    assertEquals(1, jump.getFalseHits());
+
+    // live data is not modified by snapshots
+    assertEquals(0, line.getHits());
+    assertEquals(0, line.getJumpData(0).getTrueHits());
+  }
+
+  private static ClassData createClass(ProjectData projectData, String name) {
+    final ClassData classData = projectData.getOrCreateClassData(name);
+    final LineData[] lines = new LineData[3];
+    for (int i = 1; i < lines.length; i++) {
+      lines[i] = new LineData(i, "method()V");
+      classData.registerMethodSignature(lines[i]);
+    }
+    classData.setLines(lines);
+    return classData;
+  }
+
+  private static LineData getLine(ProjectData projectData, String className, int line) {
+    return (LineData) projectData.getClassData(className).getLines()[line];
+  }
+}
@@ -39,6 +39,24 @@ import java.util.Comparator;
  */
 public class CoverageStatusTest extends TestCase {
   private static final String[] EMPTY = new String[0];
+  private static final String NEW_SAMPLING = "-Didea.new.sampling.coverage=true";
+  private static final String WRITE_ONCE = "-Dcoverage.sampling.write.once=true";
+  private static final String BRANCH_HEAVY_EXPECTED = "1:NONE\n" +
+      "3:FULL\n" +
+      "4:FULL\n" +
+      "5:FULL\n" +
+      "7:FULL\n" +
+      "11:FULL\n" +
+      "12:NONE\n" +
+      "15:FULL\n" +
+      "17:FULL\n" +
+      "18:FULL\n" +
+      "20:FULL\n" +
+      "21:FULL\n" +
+      "23:FULL\n" +
+      "25:FULL\n" +
+      "26:NONE\n" +
+      "28:FULL\n";
   private File myDataFile;
   private File myClassFile;
 
@@ -146,6 +164,55 @@ public class CoverageStatusTest extends TestCase {
     doTest("longClass", expectedBuilder.toString());
   }
 
+  public void testLongClassSamplingWithLineMaskField() throws Exception {
+    StringBuilder expectedBuilder = new StringBuilder("1:NONE\n" +
+        "3:FULL\n");
+    for (int line = 32004; line < 34004; line++) {
+      expectedBuilder.append(line).append(":FULL\n");
+    }
+    doTest("longClass", expectedBuilder.toString(), true, "-Dcoverage.sampling.line.mask.field=true");
+  }
+
+  public void testSimpleSamplingWithLineMaskField() throws Exception {
+    doTest("simple", "1:NONE\n" +
+            "3:FULL\n" +
+            "4:FULL\n" +
+            "5:FULL\n" +
+            "6:FULL\n" +
+            "8:NONE\n" +
+            "11:FULL\n" +
+            "13:FULL\n" +
+            "14:FULL\n" +
+            "16:NONE\n", true, "-Dcoverage.sampling.line.mask.field=true");
+  }
+
+  public void testBranchHeavyNewSampling() throws Exception {
+    final ClassData classData = doTest("branchHeavy", BRANCH_HEAVY_EXPECTED, true, NEW_SAMPLING);
+    assertEquals(100, classData.getLineData(5).getHits());
+    assertEquals(100, classData.getLineData(15).getHits());
+    assertEquals(25, classData.getLineData(20).getHits());
+  }
+
+  public void testBranchHeavySamplingWriteOnce() throws Exception {
+    assertCoveredOnce(doTest("branchHeavy", BRANCH_HEAVY_EXPECTED, true, NEW_SAMPLING, WRITE_ONCE));
+  }
+
+  public void testBranchHeavySamplingWriteOnceByteMask() throws Exception {
+    assertCoveredOnce(doTest("branchHeavy", BRANCH_HEAVY_EXPECTED, true, NEW_SAMPLING, WRITE_ONCE,
+        "-Dcoverage.sampling.byte.mask=true"));
+  }
+
+  /**
+   * Lines executed many times are stored once, so every covered line must have exactly one hit.
+   */
+  private static void assertCoveredOnce(ClassData classData) {
+    for (Object object : classData.getLines()) {
+      if (object == null) continue;
+      final LineData line = (LineData) object;
+      assertEquals("line " + line.getLineNumber(), line.getStatus() == 0 ? 0 : 1, line.getHits());
+    }
+  }
+
   public void testNotNullAssertionsAreIgnored() throws Exception {
     final String testDataPath = getTestPath("notNull");
     myDataFile = new File(testDataPath + File.separator + "Test.ic");
@@ -189,10 +256,10 @@ public class CoverageStatusTest extends TestCase {
     doTest(className, expected, false);
   }
 
-  private void doTest(final String className, String expected, boolean sampling) throws Exception {
+  private ClassData doTest(final String className, String expected, boolean sampling, String... extraArgs) throws Exception {
     final String testDataPath = prepareForAgentRun(className);
 
-    final ProjectData projectInfo = runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", sampling);
+    final ProjectData projectInfo = runCoverage(testDataPath, myDataFile, "Test(\\$.*)*", "Test", sampling, extraArgs, false, false);
 
     final StringBuilder buf = new StringBuilder();
 
@@ -217,6 +284,7 @@ public class CoverageStatusTest extends TestCase {
     }
 
     assertEquals(expected, buf.toString());
+    return classInfo;
   }
 
   public static ProjectData runCoverage(String testDataPath, File coverageDataFile, final String patterns,
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
+import com.intellij.rt.coverage.util.ByteBufferDataInput;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.LazyProjectData;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import com.intellij.rt.coverage.util.classFinder.ClassPathEntry;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class ProjectDataLoaderTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = File.createTempFile("loader", ".ic");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myFile.delete();
+    super.tearDown();
+  }
+
+  public void testMappedLoaderReadsSameData() throws IOException {
+    createReport();
+    final byte[] expected = saveAndRead(ProjectDataLoader.load(myFile));
+    final byte[] actual = saveAndRead(ProjectDataLoader.loadMapped(myFile));
+    assertTrue(expected.length > 0);
+    assertTrue(Arrays.equals(expected, actual));
+  }
+
+  public void testIndexedLoaderReadsSameData() throws IOException {
+    createReport();
+    final ProjectData indexed = ProjectDataLoader.loadIndexed(myFile);
+    assertTrue(indexed instanceof LazyProjectData);
+    final byte[] expected = saveAndRead(ProjectDataLoader.load(myFile));
+    final byte[] actual = saveAndRead(indexed);
+    assertTrue(Arrays.equals(expected, actual));
+  }
+
+  public void testIndexedLoaderLoadsRequestedClass() throws IOException {
+    createReport();
+    final ProjectData expected = ProjectDataLoader.load(myFile);
+    final LazyProjectData indexed = (LazyProjectData) ProjectDataLoader.loadIndexed(myFile);
+    assertEquals(expected.getClassesNumber(), indexed.getClassNames().size());
+    assertNull(indexed.getClassData("unknown.Class"));
+
+    final String className = ProjectData.class.getName();
+    final LineData[] expectedLines = (LineData[]) expected.getClassData(className).getLines();
+    final LineData[] actualLines = (LineData[]) indexed.getClassData(className).getLines();
+    assertEquals(expectedLines.length, actualLines.length);
+    for (int i = 0; i < expectedLines.length; i++) {
+      if (expectedLines[i] == null) {
+        assertNull(actualLines[i]);
+        continue;
+      }
+      assertEquals(expectedLines[i].getHits(), actualLines[i].getHits());
+      assertEquals(expectedLines[i].getMethodSignature(), actualLines[i].getMethodSignature());
+      assertEquals(expectedLines[i].jumpsCount(), actualLines[i].jumpsCount());
+      assertEquals(expectedLines[i].switchesCount(), actualLines[i].switchesCount());
+    }
+  }
+
+  private void createReport() {
+    final ProjectData projectData = new ProjectData();
+    SaveHook.appendUnloadedFullAnalysis(projectData, createClassFinder(), true, false, false, false);
+    int hits = 0;
+    for (ClassData classData : projectData.getClassesCollection()) {
+      final Object[] lines = classData.getLines();
+      if (lines == null) continue;
+      for (Object line : lines) {
+        if (line != null) ((LineData) line).setHits(hits++ % 3);
+      }
+    }
+    SaveHook.save(projectData, myFile, null);
+  }
+
+  public void testReadUTF() throws IOException {
+    final String[] strings = {"", "ascii", "été", "中文", "a\u0000b"};
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (String s : strings) {
+      out.writeUTF(s);
+      CoverageIOUtil.writeUTF(out, s);
+    }
+    out.close();
+    final ByteBufferDataInput in = new ByteBufferDataInput(ByteBuffer.wrap(bytes.toByteArray()));
+    for (String s : strings) {
+      assertEquals(s, in.readUTF());
+      assertEquals(s, CoverageIOUtil.readUTFFast(in));
+    }
+    try {
+      in.readUnsignedByte();
+      fail("EOFException expected");
+    } catch (EOFException ignored) {
+    }
+  }
+
+  public void testReadUTFFast() throws IOException {
+    final StringBuilder longString = new StringBuilder();
+    while (longString.length() < 70000) {
+      longString.append("long été ");
+    }
+    final String[] strings = {"", "ascii", "été", "中文", "a\u0000b", longString.substring(0, 300), longString.toString()};
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (String s : strings) {
+      CoverageIOUtil.writeUTF(out, s);
+    }
+    out.close();
+    final ByteBufferDataInput in = new ByteBufferDataInput(ByteBuffer.wrap(bytes.toByteArray()));
+    for (String s : strings) {
+      assertEquals(s, in.readUTFFast());
+    }
+    try {
+      in.readUTFFast();
+      fail("EOFException expected");
+    } catch (EOFException ignored) {
+    }
+  }
+
+  public void testReadLine() {
+    final ByteBufferDataInput in = new ByteBufferDataInput(ByteBuffer.wrap("a\nb\r\n\rc".getBytes()));
+    assertEquals("a", in.readLine());
+    assertEquals("b", in.readLine());
+    assertEquals("", in.readLine());
+    assertEquals("c", in.readLine());
+    assertNull(in.readLine());
+  }
+
+  private byte[] saveAndRead(ProjectData projectData) throws IOException {
+    final File file = File.createTempFile("loader", ".ic");
+    try {
+      SaveHook.save(projectData, file, null);
+      final FileInputStream is = new FileInputStream(file);
+      try {
+        return CoverageIOUtil.readBytes(is);
+      } finally {
+        is.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static ClassFinder createClassFinder() {
+    final String agentPath = new File(ProjectData.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath();
+    return new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList()) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Collections.singletonList(new ClassPathEntry(agentPath));
+      }
+    };
+  }
+}
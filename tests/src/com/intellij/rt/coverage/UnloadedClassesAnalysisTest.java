@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.instrumentation.SaveHook;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.classFinder.ClassFinder;
+import com.intellij.rt.coverage.util.classFinder.ClassPathEntry;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+public class UnloadedClassesAnalysisTest extends TestCase {
+  public void testParallelTracingAnalysisIsSameAsSequential() throws Exception {
+    doTest(false);
+  }
+
+  public void testParallelSamplingAnalysisIsSameAsSequential() throws Exception {
+    doTest(true);
+  }
+
+  public void testCachedTracingAnalysisIsSameAsUncached() throws Exception {
+    doCacheTest(false);
+  }
+
+  public void testCachedSamplingAnalysisIsSameAsUncached() throws Exception {
+    doCacheTest(true);
+  }
+
+  private static void doTest(boolean isSampling) throws Exception {
+    final byte[] sequential = analyse(isSampling, 1, null);
+    final byte[] parallel = analyse(isSampling, 4, null);
+    assertTrue(sequential.length > 0);
+    assertTrue(Arrays.equals(sequential, parallel));
+  }
+
+  private static void doCacheTest(boolean isSampling) throws Exception {
+    final File cacheFile = File.createTempFile("unloaded", ".cache");
+    try {
+      assertTrue(cacheFile.delete());
+      final byte[] uncached = analyse(isSampling, 1, null);
+      final byte[] cold = analyse(isSampling, 1, cacheFile);
+      assertTrue(cacheFile.length() > 0);
+      final byte[] warm = analyse(isSampling, 4, cacheFile);
+      assertTrue(Arrays.equals(uncached, cold));
+      assertTrue(Arrays.equals(uncached, warm));
+    } finally {
+      cacheFile.delete();
+    }
+  }
+
+  private static byte[] analyse(boolean isSampling, int threads, File cacheFile) throws IOException {
+    final ProjectData projectData = new ProjectData();
+    projectData.setInstructionsCoverage(!isSampling);
+    SaveHook.appendUnloadedFullAnalysis(projectData, createClassFinder(), true, isSampling, false, false, threads, cacheFile);
+    final File file = File.createTempFile("unloaded", ".ic");
+    try {
+      SaveHook.save(projectData, file, null);
+      final FileInputStream is = new FileInputStream(file);
+      try {
+        return CoverageIOUtil.readBytes(is);
+      } finally {
+        is.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Agent classes are used as a sample of unloaded classes.
+   */
+  private static ClassFinder createClassFinder() {
+    final String agentPath = new File(ProjectData.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath();
+    return new ClassFinder(Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList()) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Collections.singletonList(new ClassPathEntry(agentPath));
+      }
+    };
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ClassesMapTest extends TestCase {
+  public void testGetAndPut() {
+    final ClassesMap map = new ClassesMap();
+    final int count = 10000;
+    for (int i = 0; i < count; i++) {
+      final String name = "Class" + i;
+      assertNull(map.putIfAbsent(name, new ClassData(name)));
+    }
+    assertEquals(count, map.size());
+    assertEquals(count, map.values().size());
+    for (int i = 0; i < count; i++) {
+      // not the same string instance as the key
+      final String name = new String("Class" + i);
+      final ClassData classData = map.get(name);
+      assertNotNull(classData);
+      assertEquals(name, classData.getName());
+      assertSame(classData, map.putIfAbsent(name, new ClassData(name)));
+    }
+    assertNull(map.get("Class" + count));
+    assertEquals(count, map.asMap().size());
+  }
+
+  public void testConcurrentInserts() throws Exception {
+    final ClassesMap map = new ClassesMap();
+    final int threadsCount = 8;
+    final int count = 5000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread[] threads = new Thread[threadsCount];
+    for (int t = 0; t < threadsCount; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < count; i++) {
+              final String name = "Class" + i;
+              final ClassData data = new ClassData(name);
+              final ClassData existing = map.putIfAbsent(name, data);
+              final ClassData actual = map.get(name);
+              if (actual == null || actual != (existing == null ? data : existing)) {
+                throw new AssertionError("Wrong data for " + name);
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(error.get());
+    assertEquals(count, map.size());
+    final Set<String> names = new HashSet<String>();
+    for (ClassData classData : map.values()) {
+      names.add(classData.getName());
+    }
+    assertEquals(count, names.size());
+  }
+}
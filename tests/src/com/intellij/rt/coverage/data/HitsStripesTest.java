@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+public class HitsStripesTest extends TestCase {
+  public void testStripesAreFoldedIntoLineHits() {
+    final ClassData classData = createClassData();
+    classData.getHitsMask()[0] = 1;
+    final int[][] stripes = classData.getHitsStripes();
+    assertTrue(stripes.length >= 1);
+    stripes[0][0] += 2;
+    stripes[stripes.length - 1][1] += 3;
+
+    final int[] collected = classData.collectHitsMask();
+    assertEquals(3, collected[0]);
+    assertEquals(3, collected[1]);
+    assertEquals(1, classData.getHitsMask()[0]);
+
+    classData.applyBranches();
+    assertEquals(3, classData.getLineData(1).getHits());
+    assertEquals(3, classData.getLineData(2).getHits());
+    assertEquals(0, stripes[0][0]);
+  }
+
+  public void testStripesGrowWithHitsMask() {
+    final ClassData classData = createClassData();
+    classData.getHitsStripes()[0][1] = 4;
+    classData.createHitsMask(5);
+    final int[][] stripes = classData.getHitsStripes();
+    assertTrue(stripes[0].length >= 5);
+    assertEquals(4, stripes[0][1]);
+  }
+
+  private static ClassData createClassData() {
+    final ClassData classData = new ClassData("A");
+    final LineData line1 = new LineData(1, "a()V");
+    line1.setId(0);
+    final LineData line2 = new LineData(2, "a()V");
+    line2.setId(1);
+    classData.setLines(new LineData[]{null, line1, line2});
+    classData.createHitsMask(2);
+    return classData;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.data;
+
+import junit.framework.TestCase;
+
+public class LineByteMaskTest extends TestCase {
+  public void testCoveredLinesGetHit() {
+    final ClassData classData = new ClassData("A");
+    final LineData[] lines = createLines();
+    classData.initLineByteMask(lines);
+    classData.setLines(lines);
+    classData.getLineByteMask()[2] = 1;
+
+    classData.applyLinesMask();
+    assertEquals(0, classData.getLineData(1).getHits());
+    assertEquals(1, classData.getLineData(2).getHits());
+  }
+
+  public void testExistingHitsArePreserved() {
+    final ClassData classData = new ClassData("A");
+    final LineData[] lines = createLines();
+    lines[1].setHits(5);
+    lines[2].setHits(3);
+    classData.setLines(lines);
+    classData.initLineByteMask(createLines());
+    classData.getLineByteMask()[2] = 1;
+
+    classData.applyLinesMask();
+    assertEquals(5, classData.getLineData(1).getHits());
+    assertEquals(3, classData.getLineData(2).getHits());
+  }
+
+  public void testMaskGrowsWithLines() {
+    final ClassData classData = new ClassData("A");
+    classData.initLineByteMask(createLines());
+    classData.getLineByteMask()[1] = 1;
+    classData.initLineByteMask(new LineData[5]);
+    assertEquals(5, classData.getLineByteMask().length);
+    assertEquals(1, classData.getLineByteMask()[1]);
+  }
+
+  private static LineData[] createLines() {
+    return new LineData[]{null, new LineData(1, "a()V"), new LineData(2, "a()V")};
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.data.api.TestDiscoveryProtocolReader;
+import com.intellij.rt.coverage.data.api.TestDiscoveryProtocolUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SocketTestDiscoveryProtocolDataListenerTest {
+  private static final int TESTS_COUNT = 1000;
+
+  @Test
+  public void testAllMessagesAreReceivedInOrderWithSlowReceiver() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0);
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    final boolean[] finished = new boolean[1];
+    final Thread receiver = new Thread(new Runnable() {
+      public void run() {
+        try {
+          final Socket socket = serverSocket.accept();
+          // let the sender queue fill up
+          Thread.sleep(200);
+          final InputStream inputStream = socket.getInputStream();
+          TestDiscoveryProtocolUtil.readSequentially(inputStream, new CollectingReader(received, finished));
+          socket.close();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }, "test-discovery-socket-receiver");
+    receiver.start();
+
+    try {
+      final SocketTestDiscoveryProtocolDataListener listener =
+          new SocketTestDiscoveryProtocolDataListener("127.0.0.1", serverSocket.getLocalPort(), (byte) 3, 2);
+      final Map<Integer, boolean[]> visitedMethods = new HashMap<Integer, boolean[]>();
+      final Map<Integer, int[]> methodNames = new HashMap<Integer, int[]>();
+      for (int i = 0; i < TESTS_COUNT; i++) {
+        listener.testFinished("Test", "test" + i, visitedMethods, methodNames, Collections.<int[]>emptyList());
+      }
+      listener.testsFinished();
+      receiver.join(10000);
+    } finally {
+      serverSocket.close();
+    }
+
+    Assert.assertTrue(finished[0]);
+    Assert.assertEquals(TESTS_COUNT, received.size());
+    for (int i = 0; i < TESTS_COUNT; i++) {
+      Assert.assertEquals("Test.test" + i, received.get(i));
+    }
+  }
+
+  @Test
+  public void testTestsAreNotBlockedWhenConnectionIsClosed() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0);
+    final Thread receiver = new Thread(new Runnable() {
+      public void run() {
+        try {
+          final Socket socket = serverSocket.accept();
+          socket.getInputStream().read(new byte[1024]);
+          // reset the connection, so that the following writes fail
+          socket.setSoLinger(true, 0);
+          socket.close();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }, "test-discovery-socket-receiver");
+    receiver.start();
+
+    final Exception[] error = new Exception[1];
+    final Thread tests = new Thread(new Runnable() {
+      public void run() {
+        try {
+          final SocketTestDiscoveryProtocolDataListener listener =
+              new SocketTestDiscoveryProtocolDataListener("127.0.0.1", serverSocket.getLocalPort(), (byte) 3, 2);
+          final Map<Integer, boolean[]> visitedMethods = new HashMap<Integer, boolean[]>();
+          final Map<Integer, int[]> methodNames = new HashMap<Integer, int[]>();
+          for (int i = 0; i < 50 * TESTS_COUNT; i++) {
+            listener.testFinished("Test", "test" + i, visitedMethods, methodNames, Collections.<int[]>emptyList());
+          }
+          listener.testsFinished();
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    }, "test-discovery-tests");
+    try {
+      tests.start();
+      tests.join(30000);
+      Assert.assertFalse("Tests are blocked by the stopped sender", tests.isAlive());
+      Assert.assertNull(error[0]);
+    } finally {
+      receiver.join(10000);
+      serverSocket.close();
+    }
+  }
+
+  private static class CollectingReader implements TestDiscoveryProtocolReader {
+    private final Map<Integer, String> myNames = new HashMap<Integer, String>();
+    private final List<String> myTests;
+    private final boolean[] myFinished;
+
+    private CollectingReader(List<String> tests, boolean[] finished) {
+      myTests = tests;
+      myFinished = finished;
+    }
+
+    public void testDiscoveryDataProcessingStarted(int version) {
+    }
+
+    public void testDiscoveryDataProcessingFinished() {
+      myFinished[0] = true;
+    }
+
+    public MetadataReader createMetadataReader() {
+      return null;
+    }
+
+    public ClassMetadataReader createClassMetadataReader() {
+      return null;
+    }
+
+    public NameEnumeratorReader createNameEnumeratorReader() {
+      return new NameEnumeratorReader() {
+        public void enumerate(String name, int id) {
+          myNames.put(id, name);
+        }
+      };
+    }
+
+    public TestDataReader createTestDataReader(int classId, int methodId) {
+      myTests.add(myNames.get(classId) + "." + myNames.get(methodId));
+      return new TestDataReader() {
+        public void classProcessingStarted(int classId) {
+        }
+
+        public void processUsedMethod(int methodId) {
+        }
+
+        public void classProcessingFinished(int classId) {
+        }
+
+        public void testDataProcessed() {
+        }
+
+        public void processAffectedFile(int[] chunks) {
+        }
+      };
+    }
+
+    public void debug(String message) {
+    }
+
+    public void error(String message) {
+      Assert.fail(message);
+    }
+
+    public void error(Exception error) {
+      Assert.fail(error.getMessage());
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.data;
+
+import com.intellij.rt.coverage.data.api.SimpleDecodingTestDiscoveryProtocolReader;
+import com.intellij.rt.coverage.data.api.TestDiscoveryProtocolUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.*;
+
+public class VisitedMethodsEncodingTest {
+  private static final int TESTS_COUNT = 200;
+
+  @Test
+  public void testBitmapEncodingIsDecodedSameAsPlain() throws Exception {
+    final byte[] plain = write(3);
+    final byte[] bitmaps = write(4);
+    Assert.assertEquals(read(plain), read(bitmaps));
+    Assert.assertTrue(bitmaps.length < plain.length);
+  }
+
+  /**
+   * Tests visit random methods of a few classes, some tests repeat the previous one.
+   * In the middle one class is reloaded with a different methods list.
+   */
+  private static byte[] write(int version) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final SingleTrFileDiscoveryProtocolDataListener listener =
+        new SingleTrFileDiscoveryProtocolDataListener(new DataOutputStream(bytes), version);
+    final NameEnumerator enumerator = listener.getNameEnumerator();
+    final Map<Integer, boolean[]> visitedMethods = new HashMap<Integer, boolean[]>();
+    final Map<Integer, int[]> methodNames = new HashMap<Integer, int[]>();
+    for (int c = 0; c < 5; c++) {
+      addClass(enumerator, visitedMethods, methodNames, "Class" + c, 10 + 40 * c);
+    }
+    final Random random = new Random(42);
+    for (int t = 0; t < TESTS_COUNT; t++) {
+      if (t == TESTS_COUNT / 2) {
+        addClass(enumerator, visitedMethods, methodNames, "Class1", 300);
+      }
+      if (t % 3 != 0) {
+        for (boolean[] used : visitedMethods.values()) {
+          Arrays.fill(used, false);
+          final boolean sparse = random.nextBoolean();
+          for (int i = 0; i < used.length; i++) {
+            used[i] = random.nextInt(sparse ? 20 : 2) == 0;
+          }
+        }
+      }
+      listener.testFinished("Test", "test" + t, visitedMethods, methodNames, Collections.<int[]>emptyList());
+    }
+    listener.testsFinished();
+    return bytes.toByteArray();
+  }
+
+  private static void addClass(NameEnumerator enumerator, Map<Integer, boolean[]> visitedMethods,
+                               Map<Integer, int[]> methodNames, String className, int methodsCount) {
+    final int classId = enumerator.enumerate(className);
+    final int[] names = new int[methodsCount];
+    for (int i = 0; i < methodsCount; i++) {
+      names[i] = enumerator.enumerate("method" + i);
+    }
+    visitedMethods.put(classId, new boolean[methodsCount]);
+    methodNames.put(classId, names);
+  }
+
+  private static List<String> read(byte[] bytes) throws Exception {
+    final List<String> result = new ArrayList<String>();
+    TestDiscoveryProtocolUtil.readSequentially(new ByteArrayInputStream(bytes), new SimpleDecodingTestDiscoveryProtocolReader() {
+      @Override
+      protected void processData(String testClassName, String testMethodName, String className, String methodName) {
+        result.add(testMethodName + ":" + className + "." + methodName);
+      }
+
+      @Override
+      protected void processClassMetadataData(ClassMetadata metadata) {
+      }
+
+      public void processMetadataEntry(String key, String value) {
+      }
+
+      @Override
+      public void error(String message) {
+        Assert.fail(message);
+      }
+    });
+    Collections.sort(result);
+    Assert.assertFalse(result.isEmpty());
+    return result;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+public class ClassHierarchyCacheTest extends TestCase {
+  private final ClassLoader myLoader = getClass().getClassLoader();
+
+  public void testTypeInfo() throws IOException {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(10);
+    final ClassHierarchyCache.TypeInfo info = cache.get("java/util/ArrayList", myLoader);
+    assertEquals("java/util/AbstractList", info.getSuperName());
+    assertTrue(Arrays.asList(info.getInterfaces()).contains("java/util/List"));
+    assertEquals(0, info.getAccess() & Opcodes.ACC_INTERFACE);
+    assertTrue((cache.get("java/util/List", myLoader).getAccess() & Opcodes.ACC_INTERFACE) != 0);
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(2);
+    final ClassHierarchyCache.TypeInfo list = cache.get("java/util/List", myLoader);
+    cache.get("java/util/Map", myLoader);
+    assertSame(list, cache.get("java/util/List", myLoader));
+    cache.get("java/util/Set", myLoader);
+    assertEquals(1, cache.getEvictions());
+    assertSame(list, cache.get("java/util/List", myLoader));
+    assertEquals(2, cache.getHits());
+    cache.get("java/util/Map", myLoader);
+    assertEquals(4, cache.getMisses());
+  }
+
+  public void testHitsDoNotLock() throws Exception {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(10);
+    cache.get("java/util/List", myLoader);
+    final Exception[] error = new Exception[1];
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 10000; j++) {
+              cache.get("java/util/List", myLoader);
+            }
+          } catch (IOException e) {
+            error[0] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(error[0]);
+    assertEquals(threads.length * 10000, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(0, cache.getContentions());
+  }
+
+  public void testClassLoadersHaveSeparateSegments() throws IOException {
+    final ClassHierarchyCache cache = new ClassHierarchyCache(1);
+    final ClassLoader otherLoader = new URLClassLoader(new URL[0], myLoader);
+    cache.get("java/util/List", myLoader);
+    cache.get("java/util/Map", otherLoader);
+    cache.get("java/util/List", myLoader);
+    cache.get("java/util/Map", otherLoader);
+    assertEquals(2, cache.getHits());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  public void testMissingClass() {
+    try {
+      new ClassHierarchyCache(10).get("missing/Class", myLoader);
+      fail("Class must not be found");
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class ClassInitializationAnalyzerTest extends TestCase {
+  public void testSubclassCreatedInSuperclassInitializer() throws Exception {
+    assertTrue(createAnalyzer().mayBeUsedBeforeInitialization(readClass(B.class)));
+  }
+
+  public void testSubclassCreatedInInterfaceInitializer() throws Exception {
+    assertTrue(createAnalyzer().mayBeUsedBeforeInitialization(readClass(WithInterface.class)));
+  }
+
+  public void testClassWithSafeSupertypes() throws Exception {
+    final ClassInitializationAnalyzer analyzer = createAnalyzer();
+    assertFalse(analyzer.mayBeUsedBeforeInitialization(readClass(Safe.class)));
+    assertFalse(analyzer.mayBeUsedBeforeInitialization(readClass(SafeChild.class)));
+  }
+
+  public void testInterfaceIsNotAnalysed() throws Exception {
+    assertTrue(createAnalyzer().mayBeUsedBeforeInitialization(readClass(I.class)));
+  }
+
+  public void testSubclassCreatedInSuperclassInitializerIsCovered() throws Exception {
+    final ProjectData projectData = runInstrumented(B.class, A.class, B.class);
+    assertCovered(projectData, B.class);
+  }
+
+  public void testClassWithoutInitializationChecksIsCovered() throws Exception {
+    final ProjectData projectData = runInstrumented(SafeChild.class, Safe.class, SafeChild.class);
+    assertCovered(projectData, Safe.class);
+    assertCovered(projectData, SafeChild.class);
+  }
+
+  private static void assertCovered(ProjectData projectData, Class<?> aClass) {
+    final ClassData classData = projectData.getClassData(aClass.getName());
+    assertNotNull(classData);
+    classData.applyLinesMask();
+    int covered = 0;
+    for (Object line : classData.getLines()) {
+      if (line != null && ((LineData) line).getHits() > 0) covered++;
+    }
+    assertTrue(covered > 0);
+  }
+
+  /**
+   * Instrument <code>classes</code> in sampling mode, each with initialization checks only if analyzer requires them,
+   * and create an instance of <code>mainClass</code>.
+   */
+  private static ProjectData runInstrumented(Class<?> mainClass, Class<?>... classes) throws Exception {
+    final ProjectData projectData = ProjectData.createProjectData(null, null, false, true,
+        Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), null);
+    final ClassInitializationAnalyzer analyzer = createAnalyzer();
+    final Map<String, byte[]> instrumented = new HashMap<String, byte[]>();
+    for (Class<?> aClass : classes) {
+      final ClassReader cr = readClass(aClass);
+      final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+      final boolean lazyInit = analyzer.mayBeUsedBeforeInitialization(cr);
+      final ClassVisitor visitor = CoverageClassfileTransformer.createInstrumenter(projectData, aClass.getName(), cr, cw,
+          null, true, false, false, lazyInit);
+      cr.accept(visitor, ClassReader.EXPAND_FRAMES);
+      instrumented.put(aClass.getName(), cw.toByteArray());
+    }
+    final ClassLoader loader = new ClassLoader(ClassInitializationAnalyzerTest.class.getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        final byte[] bytes = instrumented.remove(name);
+        if (bytes != null) return defineClass(name, bytes, 0, bytes.length);
+        final Class<?> loaded = findLoadedClass(name);
+        if (loaded != null) return loaded;
+        return super.loadClass(name, resolve);
+      }
+    };
+    ((Runnable) loader.loadClass(mainClass.getName()).newInstance()).run();
+    return projectData;
+  }
+
+  private static ClassInitializationAnalyzer createAnalyzer() {
+    return new ClassInitializationAnalyzer() {
+      @Override
+      protected ClassReader getClassReader(String className) throws IOException {
+        final InputStream is = ClassInitializationAnalyzerTest.class.getClassLoader().getResourceAsStream(className + ".class");
+        if (is == null) throw new IOException("Class " + className + " not found");
+        try {
+          return new ClassReader(is);
+        } finally {
+          is.close();
+        }
+      }
+    };
+  }
+
+  private static ClassReader readClass(Class<?> aClass) throws IOException {
+    final InputStream is = aClass.getClassLoader().getResourceAsStream(aClass.getName().replace('.', '/') + ".class");
+    try {
+      return new ClassReader(CoverageIOUtil.readBytes(is));
+    } finally {
+      is.close();
+    }
+  }
+
+  public static class A {
+    static B b = new B();
+  }
+
+  public static class B extends A implements Runnable {
+    private int myValue;
+
+    public B() {
+      // called before B static initializer
+      myValue = 42;
+    }
+
+    public void run() {
+      myValue++;
+    }
+  }
+
+  public interface I {
+    Object INSTANCE = new WithInterface();
+  }
+
+  public static class WithInterface implements I {
+  }
+
+  public static class Safe {
+    static final int[] VALUES = {1, 2, 3};
+    static String ourName = String.valueOf(VALUES.length);
+
+    int sum() {
+      int result = 0;
+      for (int value : VALUES) {
+        result += value;
+      }
+      return result;
+    }
+  }
+
+  public static class SafeChild extends Safe implements Runnable {
+    public void run() {
+      sum();
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+public class CoveredClassesDeinstrumenterTest extends TestCase {
+  private ProjectData myProjectData;
+  private CoverageClassfileTransformer myTransformer;
+  private final List<Class<?>> myLoadedClasses = new ArrayList<Class<?>>();
+  private final List<Class<?>> myRetransformedClasses = new ArrayList<Class<?>>();
+  private CoveredClassesDeinstrumenter myDeinstrumenter;
+
+  @Override
+  protected void setUp() throws Exception {
+    myProjectData = ProjectData.createProjectData(null, null, false, true,
+        Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), null);
+    myTransformer = new CoverageClassfileTransformer(myProjectData, false,
+        Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), null);
+    myDeinstrumenter = new CoveredClassesDeinstrumenter(myProjectData, createInstrumentation(), myTransformer);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myDeinstrumenter.stop();
+  }
+
+  public void testFullyCoveredClassIsDeinstrumented() throws Exception {
+    final byte[] instrumented = transform(Covered.class);
+    final Class<?> aClass = load(Covered.class, instrumented);
+    assertEquals(5, call(aClass));
+    final int[] hits = getHits(Covered.class);
+    assertAllCovered(hits);
+
+    assertEquals(1, myDeinstrumenter.deinstrumentCoveredClasses());
+    assertEquals(Collections.<Class<?>>singletonList(aClass), myRetransformedClasses);
+    assertTrue(myTransformer.isDeinstrumented(aClass.getClassLoader(), Covered.class.getName()));
+
+    // retransformation must not add or remove members
+    final byte[] deinstrumented = transform(Covered.class, aClass.getClassLoader());
+    assertEquals(getMembers(instrumented), getMembers(deinstrumented));
+
+    // stands for the retransformed class, so it is not registered as another loaded class
+    final Class<?> retransformed = define(Covered.class, deinstrumented);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(5, call(retransformed));
+    }
+    assertTrue(Arrays.equals(hits, getHits(Covered.class)));
+
+    assertEquals(0, myDeinstrumenter.deinstrumentCoveredClasses());
+    assertEquals(1, myRetransformedClasses.size());
+  }
+
+  public void testSameNamedClassOfOtherLoaderKeepsProbes() throws Exception {
+    final Class<?> aClass = load(Covered.class, transform(Covered.class));
+    call(aClass);
+    assertEquals(1, myDeinstrumenter.deinstrumentCoveredClasses());
+
+    // e.g. a redeployed application defines the class again
+    final Class<?> redefined = load(Covered.class, transform(Covered.class));
+    assertFalse(myTransformer.isDeinstrumented(redefined.getClassLoader(), Covered.class.getName()));
+    final int[] hits = getHits(Covered.class);
+    call(redefined);
+    assertFalse(Arrays.equals(hits, getHits(Covered.class)));
+
+    // the class of the new loader is retransformed separately
+    assertEquals(1, myDeinstrumenter.deinstrumentCoveredClasses());
+    assertEquals(Arrays.<Class<?>>asList(aClass, redefined), myRetransformedClasses);
+    assertTrue(myTransformer.isDeinstrumented(redefined.getClassLoader(), Covered.class.getName()));
+  }
+
+  public void testPartiallyCoveredClassIsNotDeinstrumented() throws Exception {
+    final Class<?> aClass = load(PartiallyCovered.class, transform(PartiallyCovered.class));
+    assertEquals(2, call(aClass));
+    assertFalse(myProjectData.getClassData(PartiallyCovered.class.getName()).isLineMaskCovered());
+
+    assertEquals(0, myDeinstrumenter.deinstrumentCoveredClasses());
+    assertTrue(myRetransformedClasses.isEmpty());
+    assertFalse(myTransformer.isDeinstrumented(aClass.getClassLoader(), PartiallyCovered.class.getName()));
+    assertEquals(getMembers(transform(PartiallyCovered.class)), getMembers(transform(PartiallyCovered.class)));
+  }
+
+  /**
+   * Instrumentation that records retransformed classes. The test transforms them again to emulate retransformation.
+   */
+  private Instrumentation createInstrumentation() {
+    return (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Instrumentation.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if (name.equals("getAllLoadedClasses")) return myLoadedClasses.toArray(new Class[0]);
+        if (name.equals("isModifiableClass") || name.equals("isRetransformClassesSupported")) return true;
+        if (name.equals("retransformClasses")) {
+          myRetransformedClasses.addAll(Arrays.asList((Class<?>[]) args[0]));
+          return null;
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  private byte[] transform(Class<?> aClass) throws IOException {
+    return transform(aClass, getClass().getClassLoader());
+  }
+
+  /**
+   * @param loader loader which defines the transformed class
+   * @return transformed class, or the original class if the transformer does not change it
+   */
+  private byte[] transform(Class<?> aClass, ClassLoader loader) throws IOException {
+    final ClassReader cr = readClass(aClass);
+    final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    final ClassVisitor visitor = myTransformer.createClassVisitor(aClass.getName(), loader, cr, cw);
+    if (visitor == null) return cr.b;
+    cr.accept(visitor, ClassReader.EXPAND_FRAMES);
+    return cw.toByteArray();
+  }
+
+  private Class<?> load(Class<?> aClass, byte[] bytes) throws ClassNotFoundException {
+    final Class<?> result = define(aClass, bytes);
+    myLoadedClasses.add(result);
+    return result;
+  }
+
+  private Class<?> define(final Class<?> aClass, final byte[] bytes) throws ClassNotFoundException {
+    final ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (name.equals(aClass.getName())) {
+          final Class<?> loaded = findLoadedClass(name);
+          return loaded != null ? loaded : defineClass(name, bytes, 0, bytes.length);
+        }
+        return super.loadClass(name, resolve);
+      }
+    };
+    return loader.loadClass(aClass.getName());
+  }
+
+  private static Object call(Class<?> aClass) throws Exception {
+    return ((Callable<?>) aClass.newInstance()).call();
+  }
+
+  private int[] getHits(Class<?> aClass) {
+    final ClassData classData = myProjectData.getClassData(aClass.getName());
+    classData.applyLinesMask();
+    final List<Integer> hits = new ArrayList<Integer>();
+    for (Object line : classData.getLines()) {
+      if (line != null) hits.add(((LineData) line).getHits());
+    }
+    final int[] result = new int[hits.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = hits.get(i);
+    }
+    return result;
+  }
+
+  private static void assertAllCovered(int[] hits) {
+    assertTrue(hits.length > 0);
+    for (int hit : hits) {
+      assertTrue(hit > 0);
+    }
+  }
+
+  /**
+   * @return access flags, names and descriptors of all fields and methods of the class
+   */
+  private static Set<String> getMembers(byte[] bytes) {
+    final Set<String> members = new TreeSet<String>();
+    new ClassReader(bytes).accept(new ClassVisitor(Opcodes.API_VERSION) {
+      @Override
+      public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        members.add("field " + access + " " + name + " " + descriptor);
+        return null;
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        members.add("method " + access + " " + name + descriptor);
+        return null;
+      }
+    }, ClassReader.SKIP_CODE);
+    return members;
+  }
+
+  private static ClassReader readClass(Class<?> aClass) throws IOException {
+    final InputStream is = aClass.getClassLoader().getResourceAsStream(aClass.getName().replace('.', '/') + ".class");
+    try {
+      return new ClassReader(CoverageIOUtil.readBytes(is));
+    } finally {
+      is.close();
+    }
+  }
+
+  public static class Covered implements Callable<Integer> {
+    private int myValue = 2;
+
+    public Integer call() {
+      final int result = myValue * 2;
+      return result + 1;
+    }
+  }
+
+  public static class PartiallyCovered implements Callable<Integer> {
+    static boolean ourFlag;
+
+    public Integer call() {
+      if (ourFlag) {
+        return 1;
+      }
+      return 2;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.data.ClassData;
+import com.intellij.rt.coverage.data.LineData;
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ProjectDataLoader;
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class MergeJournalTest extends TestCase {
+  private File myDir;
+  private File myDataFile;
+  private MergeJournal myJournal;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = File.createTempFile("journal", "test");
+    myDir.delete();
+    myDir.mkdirs();
+    myDataFile = new File(myDir, "coverage.ic");
+    myJournal = new MergeJournal(myDataFile, null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(myDir);
+    super.tearDown();
+  }
+
+  public void testFold() throws Exception {
+    myJournal.append(createData(1));
+    myJournal.append(createData(2));
+    myJournal.append(createData(3));
+    myJournal.fold(new ProjectData());
+    assertEquals(6, getHits(myDataFile));
+    assertEquals(0, listSnapshots().length);
+
+    myJournal.append(createData(4));
+    myJournal.fold(new ProjectData());
+    assertEquals(10, getHits(myDataFile));
+  }
+
+  public void testNothingIsFoldedTwice() throws Exception {
+    myJournal.append(createData(1));
+    myJournal.fold(new ProjectData());
+    myJournal.fold(new ProjectData());
+    assertEquals(1, getHits(myDataFile));
+  }
+
+  public void testSnapshotsAreKeptWhenSaveFails() throws Exception {
+    myJournal.append(createData(1));
+    myJournal.append(createData(2));
+    // a non-empty directory in place of the merged data file makes the save fail
+    final File foldedData = new File(myJournal.getJournalDir(), "fold.data");
+    assertTrue(new File(foldedData, "file").mkdirs());
+    myJournal.fold(new ProjectData());
+    assertFalse(myDataFile.exists());
+    assertEquals(2, listSnapshots().length);
+
+    delete(foldedData);
+    myJournal.fold(new ProjectData());
+    assertEquals(3, getHits(myDataFile));
+    assertEquals(0, listSnapshots().length);
+  }
+
+  public void testSnapshotsAreKeptOnLockTimeout() throws Exception {
+    SaveHook.save(createData(10), myDataFile, null);
+    myJournal.append(createData(1));
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myDataFile);
+    try {
+      assertFalse(myJournal.fold(new ProjectData(), 100));
+    } finally {
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+    assertEquals(10, getHits(myDataFile));
+    assertEquals(1, listSnapshots().length);
+
+    // the pending snapshot is a part of the loaded data until it is folded
+    assertEquals(11, getHits(ProjectDataLoader.loadLocked(myDataFile)));
+    myJournal.append(createData(2));
+    assertTrue(myJournal.fold(new ProjectData(), 1000));
+    assertEquals(13, getHits(myDataFile));
+    assertEquals(13, getHits(ProjectDataLoader.loadLocked(myDataFile)));
+  }
+
+  public void testCommittedFoldIsLoaded() throws Exception {
+    SaveHook.save(createData(10), myDataFile, null);
+    myJournal.append(createData(1));
+    myJournal.append(createData(2));
+    final File[] snapshots = listSnapshots();
+    SaveHook.save(createData(13), new File(myJournal.getJournalDir(), "fold.data"), null);
+    writeMarker(snapshots);
+    myJournal.append(createData(4));
+
+    assertEquals(17, getHits(ProjectDataLoader.loadLocked(myDataFile)));
+    myJournal.fold(new ProjectData());
+    assertEquals(17, getHits(myDataFile));
+  }
+
+  public void testCorruptedSnapshotIsQuarantined() throws Exception {
+    myJournal.append(createData(1));
+    final File corrupted = new File(myJournal.getJournalDir(), "snapshot-corrupted.ic");
+    final FileOutputStream os = new FileOutputStream(corrupted);
+    os.write(new byte[]{5, 0, 3, 'a'});
+    os.close();
+    myJournal.fold(new ProjectData());
+
+    assertEquals(1, getHits(myDataFile));
+    assertFalse(corrupted.exists());
+    assertEquals(0, listSnapshots().length);
+    final File[] quarantined = new File(myJournal.getJournalDir(), "corrupted").listFiles();
+    assertNotNull(quarantined);
+    assertEquals(1, quarantined.length);
+    assertEquals(4, quarantined[0].length());
+  }
+
+  /**
+   * The process crashed after the data file had been replaced but before the snapshots were deleted.
+   */
+  public void testCrashAfterDataFileReplaced() throws Exception {
+    myJournal.append(createData(1));
+    myJournal.append(createData(2));
+    final File[] snapshots = listSnapshots();
+    SaveHook.save(createData(3), myDataFile, null);
+    writeMarker(snapshots);
+
+    myJournal.fold(new ProjectData());
+    assertEquals(3, getHits(myDataFile));
+    assertEquals(0, listSnapshots().length);
+    assertFalse(new File(myJournal.getJournalDir(), "fold.marker").exists());
+  }
+
+  /**
+   * The process crashed after the fold was committed but before the data file was replaced.
+   */
+  public void testCrashBeforeDataFileReplaced() throws Exception {
+    SaveHook.save(createData(10), myDataFile, null);
+    myJournal.append(createData(1));
+    myJournal.append(createData(2));
+    final File[] snapshots = listSnapshots();
+    SaveHook.save(createData(13), new File(myJournal.getJournalDir(), "fold.data"), null);
+    writeMarker(snapshots);
+
+    myJournal.fold(new ProjectData());
+    assertEquals(13, getHits(myDataFile));
+    assertEquals(0, listSnapshots().length);
+  }
+
+  /**
+   * The process crashed before the fold was committed, so the merged data must be discarded.
+   */
+  public void testCrashBeforeCommit() throws Exception {
+    SaveHook.save(createData(10), myDataFile, null);
+    myJournal.append(createData(1));
+    SaveHook.save(createData(11), new File(myJournal.getJournalDir(), "fold.data"), null);
+
+    myJournal.fold(new ProjectData());
+    assertEquals(11, getHits(myDataFile));
+    assertEquals(0, listSnapshots().length);
+    assertFalse(new File(myJournal.getJournalDir(), "fold.data").exists());
+  }
+
+  private void writeMarker(File[] snapshots) throws IOException {
+    final DataOutputStream os = new DataOutputStream(new FileOutputStream(new File(myJournal.getJournalDir(), "fold.marker")));
+    try {
+      CoverageIOUtil.writeINT(os, snapshots.length);
+      for (File snapshot : snapshots) {
+        CoverageIOUtil.writeUTF(os, snapshot.getName());
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  private File[] listSnapshots() {
+    return myJournal.getJournalDir().listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(".ic");
+      }
+    });
+  }
+
+  private static ProjectData createData(int hits) {
+    final ProjectData projectData = new ProjectData();
+    final ClassData classData = projectData.getOrCreateClassData("A");
+    final LineData lineData = new LineData(1, "foo()V");
+    lineData.setHits(hits);
+    classData.setLines(new LineData[]{null, lineData});
+    return projectData;
+  }
+
+  private static int getHits(File dataFile) throws IOException {
+    return getHits(ProjectDataLoader.loadOrFail(dataFile));
+  }
+
+  private static int getHits(ProjectData projectData) {
+    return projectData.getClassData("A").getLineData(1).getHits();
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import junit.framework.TestCase;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+public class TransformationMetricsTest extends TestCase {
+  private static final long MS = 1000000;
+
+  private final ClassHierarchyCache myCache = new ClassHierarchyCache(10);
+  private final TransformationMetrics myMetrics = new TransformationMetrics(myCache);
+
+  public void testCounters() throws IOException {
+    myMetrics.classTransformed(null, 100, 2 * MS);
+    myMetrics.classTransformed(getClass().getClassLoader(), 5000, 3 * MS);
+    myMetrics.classTransformed(getClass().getClassLoader(), 100000, 4 * MS);
+    myMetrics.classSkipped();
+    myMetrics.classExcluded();
+    myMetrics.classExcluded();
+    myMetrics.classFailed();
+    myMetrics.parsed(MS);
+    myMetrics.filtered(2 * MS);
+    myMetrics.instrumented(3 * MS);
+    myMetrics.written(4 * MS);
+    myMetrics.commonSuperClassComputed(5 * MS);
+    myMetrics.commonSuperClassComputed(MS);
+    myCache.get("java/util/List", getClass().getClassLoader());
+    myCache.get("java/util/List", getClass().getClassLoader());
+
+    assertEquals(3, myMetrics.getTransformedClasses());
+    assertEquals(1, myMetrics.getSkippedClasses());
+    assertEquals(2, myMetrics.getExcludedClasses());
+    assertEquals(1, myMetrics.getFailedClasses());
+    assertEquals(1, myMetrics.getParseTime());
+    assertEquals(2, myMetrics.getFilterTime());
+    assertEquals(3, myMetrics.getInstrumentationTime());
+    assertEquals(4, myMetrics.getWriteTime());
+    assertEquals(6, myMetrics.getCommonSuperClassTime());
+    assertEquals(2, myMetrics.getCommonSuperClassCalls());
+    assertEquals(1, myMetrics.getHierarchyCacheHits());
+    assertEquals(1, myMetrics.getHierarchyCacheMisses());
+    assertEquals(Arrays.asList(
+        "bootstrap: 1 classes in 2ms",
+        getClass().getClassLoader().getClass().getName() + ": 2 classes in 7ms"),
+        Arrays.asList(myMetrics.getClassLoaderStatistics()));
+    assertEquals(Arrays.asList(
+        "< 1KB: 1 classes in 2ms",
+        "< 4KB: 0 classes in 0ms",
+        "< 16KB: 1 classes in 3ms",
+        "< 64KB: 0 classes in 0ms",
+        ">= 64KB: 1 classes in 4ms"),
+        Arrays.asList(myMetrics.getClassSizeHistogram()));
+    assertTrue(myMetrics.getReport(), myMetrics.getReport().startsWith(
+        "Classes: 3 transformed, 1 skipped, 2 excluded, 1 failed\n" +
+        "Time: parse 1ms, filter 2ms, instrumentation 3ms, write 4ms, getCommonSuperClass 6ms in 2 calls\n"));
+  }
+
+  public void testDump() throws IOException {
+    myMetrics.classTransformed(null, 100, MS);
+    myMetrics.classFailed();
+    final File file = File.createTempFile("metrics", ".txt");
+    try {
+      myMetrics.dump(file);
+      assertEquals(myMetrics.getReport(), readFile(file));
+
+      // the file is rewritten with the current values
+      myMetrics.classSkipped();
+      myMetrics.dump(file);
+      final String report = readFile(file);
+      assertEquals(myMetrics.getReport(), report);
+      assertTrue(report, report.startsWith("Classes: 1 transformed, 1 skipped, 0 excluded, 1 failed\n"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testMetricsOfSameNameAreRegisteredSeparately() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final TransformationMetrics other = new TransformationMetrics(myCache);
+    final ObjectName name = myMetrics.register("Transformer");
+    try {
+      final ObjectName otherName = other.register("Transformer");
+      try {
+        assertNotNull(name);
+        assertNotNull(otherName);
+        assertFalse(name.equals(otherName));
+        assertSame(name, myMetrics.register("Transformer"));
+
+        myMetrics.classSkipped();
+        assertEquals(1L, server.getAttribute(name, "SkippedClasses"));
+        assertEquals(0L, server.getAttribute(otherName, "SkippedClasses"));
+      } finally {
+        other.unregister();
+      }
+      assertFalse(server.isRegistered(otherName));
+      assertTrue(server.isRegistered(name));
+    } finally {
+      myMetrics.unregister();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  private static String readFile(File file) throws IOException {
+    final InputStream is = new FileInputStream(file);
+    try {
+      return new String(CoverageIOUtil.readBytes(is));
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -112,8 +112,8 @@ public class ExplicitTestDiscoveryInstrumentationTest {
 
   @Test
   public void testClassesWithSameQName() throws Exception {
-    final byte[] foo1Bytes = generateClassWithSingleStaticMethods("bar1");
-    final byte[] foo2Bytes = generateClassWithSingleStaticMethods("baz1", "baz2");
+    final byte[] foo1Bytes = generateClassWithSingleStaticMethods("Foo", "bar1");
+    final byte[] foo2Bytes = generateClassWithSingleStaticMethods("Foo", "baz1", "baz2");
 
     ClassLoader l1 = new ClassLoader(ClassLoader.getSystemClassLoader()) {{
       byte[] bytes = doTransform("Foo", foo1Bytes, this);
@@ -142,12 +142,38 @@ public class ExplicitTestDiscoveryInstrumentationTest {
     l2.loadClass("Foo").getDeclaredMethod("baz2").invoke(null);
   }
 
+  @Test
+  public void testUsedMethodsAreClearedOnTestStart() throws Exception {
+    final byte[] barBytes = generateClassWithSingleStaticMethods("Bar", "bar1", "bar2");
+    ClassLoader loader = new ClassLoader(ClassLoader.getSystemClassLoader()) {{
+      byte[] bytes = doTransform("Bar", barBytes, this);
+      defineClass("Bar", bytes, 0, bytes.length);
+    }};
+    Class<?> bar = loader.loadClass("Bar");
+    TestDiscoveryProjectData data = TestDiscoveryProjectData.getProjectData();
+
+    // the second test checks that a class cleared at the test start is tracked again
+    for (int i = 0; i < 2; i++) {
+      data.testDiscoveryStarted("Test", "test" + i);
+      bar.getDeclaredMethod("bar1").invoke(null);
+      boolean[] barUsedMethods = TestDiscoveryProjectDataTestAccessor.getClass2UsedMethodsMap().get("Bar");
+      assertTrue(barUsedMethods[0]);
+      assertFalse(barUsedMethods[1]);
+      data.testDiscoveryEnded("Test", "test" + i);
+    }
+
+    data.testDiscoveryStarted("Test", "test2");
+    boolean[] barUsedMethods = TestDiscoveryProjectDataTestAccessor.getClass2UsedMethodsMap().get("Bar");
+    assertFalse(barUsedMethods[0]);
+    assertFalse(barUsedMethods[1]);
+  }
+
   @Nullable
-  private byte[] generateClassWithSingleStaticMethods(String... methodNames) {
+  private byte[] generateClassWithSingleStaticMethods(String className, String... methodNames) {
     ClassWriter cw = new ClassWriter(0);
     cw.visit(Opcodes.V1_5,
         Opcodes.ACC_PUBLIC,
-        "Foo",
+        className,
         null,
         "java/lang/Object",
         null);
@@ -49,7 +49,7 @@ public class SocketWriterTestDiscoveryIntegrationTest {
 
   @Parameters(name = "V{0}")
   public static Object[] versions() {
-    return new Object[]{1, 2, 3};
+    return new Object[]{1, 2, 3, 4};
   }
 
   @Parameter
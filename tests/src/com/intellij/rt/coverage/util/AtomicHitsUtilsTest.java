@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+public class AtomicHitsUtilsTest extends TestCase {
+  private static final int THREADS = 8;
+  private static final int INCREMENTS = 100000;
+
+  public void testNoHitsAreLostUnderContention() throws Exception {
+    final int[] hits = new int[2];
+    final Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < INCREMENTS; j++) {
+            AtomicHitsUtils.increment(hits, 1);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, hits[0]);
+    assertEquals(THREADS * INCREMENTS, hits[1]);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class ClassNamePatternMatcherTest extends TestCase {
+  private static final String[] NAMES = {
+      "com.acme.Foo", "com.acme.Foo$Inner", "com.acme.impl.Bar", "com.acmex.Foo", "com.acme", "com.Acme.Foo",
+      "org.example.FooTest", "org.example.Foo", "org.example.sub.BarTest", "org.Foo", "a", "", "ab", "abb", "ac", "b"
+  };
+
+  public void testEmpty() {
+    final ClassNamePatternMatcher matcher = new ClassNamePatternMatcher(Collections.<Pattern>emptyList());
+    assertTrue(matcher.isEmpty());
+    assertFalse(matcher.matches("com.acme.Foo"));
+  }
+
+  public void testPrefixPatterns() {
+    doTest("com\\.acme\\..*", "org\\.example\\.Foo", "com\\.acme\\.impl\\..*");
+  }
+
+  public void testRootPrefix() {
+    doTest(".*");
+  }
+
+  public void testRegexPatterns() {
+    doTest("org\\.example\\..*Test", "com\\.acme\\.Foo\\$.*", "(?i)com\\.acme\\..*", "ab*", "ab?c", "a|b", "ab+", "com\\.acme\\.Foo$");
+  }
+
+  public void testMixedPatterns() {
+    doTest("com\\.acme\\..*", "org\\..*\\.sub\\..*", "a", "ab.*", "com.acme.Foo", "[a-c]b*");
+  }
+
+  public void testPackages() {
+    final ClassNamePatternMatcher matcher = createMatcher("com\\.acme\\..*", "org\\.example\\..*Test", "net\\.Foo");
+    assertTrue(matcher.mayMatchPackage("com"));
+    assertTrue(matcher.mayMatchPackage("com.acme"));
+    assertTrue(matcher.mayMatchPackage("com.acme.impl"));
+    assertFalse(matcher.mayMatchPackage("com.other"));
+    assertTrue(matcher.mayMatchPackage("org.example.sub"));
+    assertFalse(matcher.mayMatchPackage("org.other"));
+    assertTrue(matcher.mayMatchPackage("net"));
+    assertFalse(matcher.mayMatchPackage("net.sub"));
+    assertFalse(matcher.mayMatchPackage("io"));
+
+    assertTrue(matcher.matchesPackage("com.acme"));
+    assertTrue(matcher.matchesPackage("com.acme.impl"));
+    assertFalse(matcher.matchesPackage("com"));
+    assertFalse(matcher.matchesPackage("org.example"));
+  }
+
+  public void testAlternationMayMatchAnyPackage() {
+    assertTrue(createMatcher("com\\.Foo|org\\.Bar").mayMatchPackage("net"));
+  }
+
+  private static void doTest(String... regexps) {
+    final List<Pattern> patterns = createPatterns(regexps);
+    final ClassNamePatternMatcher matcher = new ClassNamePatternMatcher(patterns);
+    assertFalse(matcher.isEmpty());
+    for (String name : NAMES) {
+      final boolean matches = ClassNameUtil.matchesPatterns(name, patterns);
+      assertEquals(name, matches, matcher.matches(name));
+      for (int i = name.indexOf('.'); i > 0; i = name.indexOf('.', i + 1)) {
+        final String packageName = name.substring(0, i);
+        if (!matcher.mayMatchPackage(packageName)) assertFalse(name, matches);
+        if (matcher.matchesPackage(packageName)) assertTrue(name, matches);
+      }
+    }
+  }
+
+  private static ClassNamePatternMatcher createMatcher(String... regexps) {
+    return new ClassNamePatternMatcher(createPatterns(regexps));
+  }
+
+  private static List<Pattern> createPatterns(String... regexps) {
+    final List<Pattern> patterns = new ArrayList<Pattern>();
+    for (String regex : regexps) {
+      patterns.add(Pattern.compile(regex));
+    }
+    return patterns;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FileLockTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = File.createTempFile("lock", ".ic");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myFile.delete();
+    new File(myFile.getPath() + ".lck").delete();
+    super.tearDown();
+  }
+
+  public void testLockIsExclusiveWithinProcess() throws Exception {
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile);
+    assertNotNull(lock);
+    assertNull(tryLockInOtherThread());
+    CoverageIOUtil.FileLock.unlock(lock);
+
+    final CoverageIOUtil.FileLock otherLock = tryLockInOtherThread();
+    assertNotNull(otherLock);
+    CoverageIOUtil.FileLock.unlock(otherLock);
+  }
+
+  public void testBlockingLockWaitsForUnlock() throws Exception {
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile);
+    final AtomicReference<CoverageIOUtil.FileLock> acquired = new AtomicReference<CoverageIOUtil.FileLock>();
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        acquired.set(CoverageIOUtil.FileLock.lock(myFile));
+      }
+    };
+    thread.start();
+    thread.join(200);
+    assertNull(acquired.get());
+
+    CoverageIOUtil.FileLock.unlock(lock);
+    thread.join();
+    assertNotNull(acquired.get());
+    CoverageIOUtil.FileLock.unlock(acquired.get());
+  }
+
+  public void testDoubleUnlockIsIgnored() {
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile);
+    CoverageIOUtil.FileLock.unlock(lock);
+    CoverageIOUtil.FileLock.unlock(lock);
+    final CoverageIOUtil.FileLock first = CoverageIOUtil.FileLock.tryLock(myFile);
+    assertNotNull(first);
+    assertNull(CoverageIOUtil.FileLock.tryLock(myFile));
+    CoverageIOUtil.FileLock.unlock(first);
+  }
+
+  public void testLockFileIsDeletedOnUnlock() {
+    final File lockFile = new File(myFile.getPath() + ".lck");
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile);
+    assertTrue(lockFile.exists());
+    CoverageIOUtil.FileLock.unlock(lock);
+    assertFalse(lockFile.exists());
+  }
+
+  public void testStaleLockFileDoesNotBlock() throws Exception {
+    final File lockFile = new File(myFile.getPath() + ".lck");
+    assertTrue(lockFile.createNewFile());
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile, 1000, 10);
+    assertNotNull(lock);
+    CoverageIOUtil.FileLock.unlock(lock);
+  }
+
+  public void testLockWaitIsBounded() throws Exception {
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile);
+    final AtomicReference<CoverageIOUtil.FileLock> acquired = new AtomicReference<CoverageIOUtil.FileLock>();
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        acquired.set(CoverageIOUtil.FileLock.lock(myFile, 100, 10));
+      }
+    };
+    thread.start();
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    assertNull(acquired.get());
+    CoverageIOUtil.FileLock.unlock(lock);
+  }
+
+  public void testLockHeldByOtherProcessIsWaitedFor() throws Exception {
+    final Process process = startLockHolder(500);
+    try {
+      final long start = System.currentTimeMillis();
+      // the attempts period is ignored as the lock is waited for in a blocking call
+      final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile, 60000, 60000);
+      assertNotNull(lock);
+      assertTrue(System.currentTimeMillis() - start < 30000);
+      CoverageIOUtil.FileLock.unlock(lock);
+    } finally {
+      process.destroy();
+    }
+  }
+
+  public void testLockHeldByOtherProcessWaitIsBounded() throws Exception {
+    final Process process = startLockHolder(60000);
+    try {
+      final long start = System.currentTimeMillis();
+      assertNull(CoverageIOUtil.FileLock.lock(myFile, 300, 100));
+      final long time = System.currentTimeMillis() - start;
+      assertTrue(String.valueOf(time), time >= 300 && time < 30000);
+      assertNull(CoverageIOUtil.FileLock.tryLock(myFile));
+    } finally {
+      process.destroy();
+      process.waitFor();
+    }
+    final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(myFile, 30000, 100);
+    assertNotNull(lock);
+    CoverageIOUtil.FileLock.unlock(lock);
+  }
+
+  /**
+   * Start a process that holds the lock of the test file for a given time.
+   * Returns when the lock is acquired.
+   */
+  private Process startLockHolder(long holdTimeMs) throws IOException {
+    final Process process = new ProcessBuilder(
+        new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+        "-cp", System.getProperty("java.class.path"), LockHolder.class.getName(),
+        myFile.getAbsolutePath(), String.valueOf(holdTimeMs)).redirectErrorStream(true).start();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    assertEquals("locked", reader.readLine());
+    return process;
+  }
+
+  public static class LockHolder {
+    public static void main(String[] args) throws Exception {
+      final CoverageIOUtil.FileLock lock = CoverageIOUtil.FileLock.lock(new File(args[0]));
+      System.out.println(lock == null ? "failed" : "locked");
+      System.out.flush();
+      Thread.sleep(Long.parseLong(args[1]));
+      CoverageIOUtil.FileLock.unlock(lock);
+    }
+  }
+
+  private CoverageIOUtil.FileLock tryLockInOtherThread() throws InterruptedException {
+    final AtomicReference<CoverageIOUtil.FileLock> result = new AtomicReference<CoverageIOUtil.FileLock>();
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        result.set(CoverageIOUtil.FileLock.tryLock(myFile));
+      }
+    };
+    thread.start();
+    thread.join();
+    return result.get();
+  }
+}
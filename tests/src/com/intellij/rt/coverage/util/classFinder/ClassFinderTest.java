@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Pattern;
+
+public class ClassFinderTest extends TestCase {
+  public void testFoundClassesAreReadFromTheirEntries() throws IOException {
+    final List<Pattern> includes = Arrays.asList(Pattern.compile("com\\.intellij\\.rt\\.coverage\\.data\\..*"),
+        Pattern.compile("org\\.jetbrains\\.coverage\\.org\\.objectweb\\.asm\\.ClassReader"));
+    final ClassFinder classFinder = new ClassFinder(includes, Collections.<Pattern>emptyList()) {
+      @Override
+      protected Collection<ClassPathEntry> getClassPathEntries() {
+        return Arrays.asList(getEntry(ProjectData.class), getEntry(ClassReader.class));
+      }
+    };
+    assertNull(classFinder.getClassBytes(ProjectData.class.getName()));
+
+    final Map<String, byte[]> found = new HashMap<String, byte[]>();
+    classFinder.iterateMatchedClasses(new ClassEntry.Consumer() {
+      public void consume(ClassEntry classEntry) {
+        try {
+          found.put(classEntry.getClassName(), classEntry.getClassBytes());
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    assertTrue(found.containsKey(ProjectData.class.getName()));
+    assertTrue(found.containsKey(ClassReader.class.getName()));
+    for (Map.Entry<String, byte[]> entry : found.entrySet()) {
+      assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), classFinder.getClassBytes(entry.getKey())));
+    }
+  }
+
+  public void testArchiveIsOpenedOncePerScan() throws IOException {
+    final File jar = File.createTempFile("classes", ".jar");
+    try {
+      final String className = ProjectData.class.getName();
+      final byte[] bytes = readClass(ProjectData.class);
+      final JarOutputStream os = new JarOutputStream(new FileOutputStream(jar));
+      try {
+        os.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+        os.write(bytes);
+        os.closeEntry();
+      } finally {
+        os.close();
+      }
+      final ClassFinder classFinder = new ClassFinder(Collections.singletonList(Pattern.compile(".*")), Collections.<Pattern>emptyList()) {
+        @Override
+        protected Collection<ClassPathEntry> getClassPathEntries() {
+          return Collections.singletonList(new ClassPathEntry(jar.getAbsolutePath()));
+        }
+      };
+      final List<String> found = new ArrayList<String>();
+      classFinder.iterateMatchedClasses(new ClassEntry.Consumer() {
+        public void consume(ClassEntry classEntry) {
+          found.add(classEntry.getClassName());
+        }
+      });
+      assertEquals(Collections.singletonList(className), found);
+
+      // the archive opened by the scan is still open, so the class is read even after the file is removed
+      if (jar.delete()) {
+        assertTrue(Arrays.equals(bytes, classFinder.getClassBytes(className)));
+        classFinder.closeArchives();
+        try {
+          classFinder.getClassBytes(className);
+          fail();
+        } catch (IOException ignored) {
+        }
+      } else {
+        classFinder.closeArchives();
+        assertTrue(Arrays.equals(bytes, classFinder.getClassBytes(className)));
+        classFinder.closeArchives();
+      }
+    } finally {
+      jar.delete();
+    }
+  }
+
+  private static byte[] readClass(Class<?> aClass) throws IOException {
+    final InputStream is = aClass.getClassLoader().getResourceAsStream(aClass.getName().replace('.', '/') + ".class");
+    try {
+      return CoverageIOUtil.readBytes(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static ClassPathEntry getEntry(Class<?> aClass) {
+    return new ClassPathEntry(new File(aClass.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath());
+  }
+}
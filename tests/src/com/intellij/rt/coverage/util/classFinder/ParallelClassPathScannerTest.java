@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import com.intellij.rt.coverage.data.ProjectData;
+import junit.framework.TestCase;
+import org.jetbrains.coverage.gnu.trove.THashMap;
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class ParallelClassPathScannerTest extends TestCase {
+  private static final ClassFilter ALL_CLASSES = new ClassFilter() {
+    public boolean shouldInclude(String className) {
+      return true;
+    }
+  };
+
+  public void testParallelScanIsSameAsSequential() throws IOException {
+    // a directory or a jar of agent classes and jars of libraries
+    final List<ClassPathEntry> entries = Arrays.asList(getEntry(ProjectData.class), getEntry(ClassReader.class), getEntry(THashMap.class));
+
+    final List<String> sequentialNames = new ArrayList<String>();
+    final List<byte[]> sequentialBytes = new ArrayList<byte[]>();
+    for (ClassPathEntry entry : entries) {
+      entry.iterateMatchedClasses(ALL_CLASSES, collect(sequentialNames, sequentialBytes));
+    }
+
+    final List<String> parallelNames = new ArrayList<String>();
+    final List<byte[]> parallelBytes = new ArrayList<byte[]>();
+    new ParallelClassPathScanner(4).iterateMatchedClasses(entries, ALL_CLASSES, collect(parallelNames, parallelBytes),
+        new HashMap<String, ClassPathEntry>());
+
+    assertFalse(sequentialNames.isEmpty());
+    assertEquals(sequentialNames, parallelNames);
+    for (int i = 0; i < sequentialBytes.size(); i++) {
+      assertTrue(sequentialNames.get(i), Arrays.equals(sequentialBytes.get(i), parallelBytes.get(i)));
+    }
+  }
+
+  private static ClassEntry.Consumer collect(final List<String> names, final List<byte[]> bytes) {
+    return new ClassEntry.Consumer() {
+      public void consume(ClassEntry classEntry) {
+        names.add(classEntry.getClassName());
+        try {
+          bytes.add(classEntry.getClassBytes());
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+
+  private static ClassPathEntry getEntry(Class<?> aClass) {
+    return new ClassPathEntry(new File(aClass.getProtectionDomain().getCodeSource().getLocation().getPath()).getAbsolutePath());
+  }
+}
@@ -0,0 +1,30 @@
+public class Test {
+  public static void main(String[] args) {
+    int sum = 0;
+    for (int i = 0; i < 100; i++) {
+      sum += classify(i);
+    }
+    System.out.println(sum);
+  }
+
+  static int classify(int i) {
+    if (i < 0) {
+      return -1;
+    }
+    int result;
+    switch (i % 4) {
+      case 0:
+        result = i > 50 ? 1 : 2;
+        break;
+      case 1:
+        result = 3;
+        break;
+      default:
+        result = i % 3 == 0 && i % 5 == 0 ? 4 : 5;
+    }
+    while (result > 10) {
+      result--;
+    }
+    return result;
+  }
+}
@@ -19,18 +19,20 @@ package com.intellij.rt.coverage.instrumentation;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 import com.intellij.rt.coverage.util.CoverageIOUtil;
 import com.intellij.rt.coverage.util.ErrorReporter;
-import org.jetbrains.coverage.gnu.trove.THashMap;
+import com.intellij.rt.coverage.util.OptionsUtil;
 import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
 import org.jetbrains.coverage.org.objectweb.asm.ClassVisitor;
 import org.jetbrains.coverage.org.objectweb.asm.ClassWriter;
 import org.jetbrains.coverage.org.objectweb.asm.Opcodes;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
+import java.lang.ref.WeakReference;
 import java.security.ProtectionDomain;
-import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractIntellijClassfileTransformer implements ClassFileTransformer {
   public interface InclusionPattern {
@@ -38,39 +40,60 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
   }
 
   private final boolean computeFrames = computeFrames();
-  private final WeakHashMap<ClassLoader, Map<String, ClassReader>> classReaders = new WeakHashMap<ClassLoader, Map<String, ClassReader>>();
+  private final ClassHierarchyCache hierarchyCache = new ClassHierarchyCache(OptionsUtil.HIERARCHY_CACHE_SIZE);
+  /** Null when metrics are disabled. */
+  private final TransformationMetrics metrics;
+  private final WeakHashMap<ClassLoader, ClassInitializationAnalyzer> initializationAnalyzers = new WeakHashMap<ClassLoader, ClassInitializationAnalyzer>();
 
-  private long ourTime;
-  private int ourClassCount;
+  private final AtomicLong ourTime = new AtomicLong();
+  private final AtomicInteger ourClassCount = new AtomicInteger();
 
   protected AbstractIntellijClassfileTransformer() {
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       public void run() {
-        double allTime = 1. * ourTime / CoverageIOUtil.GIGA;
+        double allTime = 1. * ourTime.get() / CoverageIOUtil.GIGA;
+        int classCount = ourClassCount.get();
         ErrorReporter.logInfo("Class transformation time: " + allTime + "s for " +
-            ourClassCount + " classes or " + allTime / ourClassCount + "s per class"
+            classCount + " classes or " + allTime / classCount + "s per class"
         );
+        ErrorReporter.logInfo(hierarchyCache.getStatistics());
       }
     }));
+    if (OptionsUtil.TRANSFORMATION_METRICS) {
+      metrics = new TransformationMetrics(hierarchyCache);
+      metrics.register(getClass().getSimpleName());
+      if (OptionsUtil.TRANSFORMATION_METRICS_FILE != null) {
+        metrics.scheduleDump(new File(OptionsUtil.TRANSFORMATION_METRICS_FILE), OptionsUtil.TRANSFORMATION_METRICS_PERIOD_MS);
+      }
+    } else {
+      metrics = null;
+    }
   }
 
   public final byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classFileBuffer) {
     long s = System.nanoTime();
+    byte[] result = null;
     try {
-      return transformInner(loader, className, classFileBuffer);
+      return result = transformInner(loader, className, classFileBuffer);
     } finally {
-      ourClassCount++;
-      ourTime += System.nanoTime() - s;
+      long time = System.nanoTime() - s;
+      ourClassCount.incrementAndGet();
+      ourTime.addAndGet(time);
+      if (metrics != null && result != null) {
+        metrics.classTransformed(loader, classFileBuffer.length, time);
+      }
     }
   }
 
   private byte[] transformInner(ClassLoader loader, String className, byte[] classFileBuffer) {
     if (isStopped()) {
+      if (metrics != null) metrics.classSkipped();
       return null;
     }
 
     try {
       if (className == null) {
+        if (metrics != null) metrics.classSkipped();
         return null;
       }
       if (className.endsWith(".class")) {
@@ -88,22 +111,29 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
           || className.startsWith("jdk.")
           || className.startsWith("org.jetbrains.coverage.gnu.trove.")
           || className.startsWith("org.jetbrains.coverage.org.objectweb.")) {
+        if (metrics != null) metrics.classSkipped();
         return null;
       }
 
-      if (shouldExclude(className)) return null;
+      long s = metrics != null ? System.nanoTime() : 0;
+      if (shouldExclude(className)) {
+        if (metrics != null) metrics.classExcluded();
+        return null;
+      }
 
       visitClassLoader(loader);
 
       InclusionPattern inclusionPattern = getInclusionPattern();
-      if (inclusionPattern == null) {
-        if (loader != null) {
-          return instrument(classFileBuffer, className, loader, computeFrames);
-        }
-      } else if (inclusionPattern.accept(className)) {
+      boolean included = inclusionPattern == null ? loader != null : inclusionPattern.accept(className);
+      if (metrics != null) {
+        metrics.filtered(System.nanoTime() - s);
+        if (!included) metrics.classExcluded();
+      }
+      if (included) {
         return instrument(classFileBuffer, className, loader, computeFrames);
       }
     } catch (Throwable e) {
+      if (metrics != null) metrics.classFailed();
       ErrorReporter.reportError("Error during class instrumentation: " + className, e);
     }
     return null;
@@ -111,7 +141,13 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
 
   //public for test
   public byte[] instrument(final byte[] classfileBuffer, String className, ClassLoader loader, boolean computeFrames) {
+    long s = metrics != null ? System.nanoTime() : 0;
     final ClassReader cr = new ClassReader(classfileBuffer);
+    if (metrics != null) {
+      long parsed = System.nanoTime();
+      metrics.parsed(parsed - s);
+      s = parsed;
+    }
     final ClassWriter cw;
     if (computeFrames) {
       final int version = getClassFileVersion(cr);
@@ -122,9 +158,24 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     }
 
     final ClassVisitor cv = createClassVisitor(className, loader, cr, cw);
-    if (cv == null) return null;
+    if (cv == null) {
+      if (metrics != null) metrics.classSkipped();
+      return null;
+    }
     cr.accept(cv, ClassReader.EXPAND_FRAMES);
-    return cw.toByteArray();
+    if (metrics == null) return cw.toByteArray();
+    long instrumented = System.nanoTime();
+    metrics.instrumented(instrumented - s);
+    final byte[] result = cw.toByteArray();
+    metrics.written(System.nanoTime() - instrumented);
+    return result;
+  }
+
+  /**
+   * @return detailed transformation metrics or null if they are disabled
+   */
+  public TransformationMetrics getMetrics() {
+    return metrics;
   }
 
   protected abstract ClassVisitor createClassVisitor(String className, ClassLoader loader, ClassReader cr, ClassVisitor cw);
@@ -166,9 +217,19 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
     }
 
     protected String getCommonSuperClass(String type1, String type2) {
+      if (metrics == null) return computeCommonSuperClass(type1, type2);
+      long s = System.nanoTime();
+      try {
+        return computeCommonSuperClass(type1, type2);
+      } finally {
+        metrics.commonSuperClassComputed(System.nanoTime() - s);
+      }
+    }
+
+    private String computeCommonSuperClass(String type1, String type2) {
       try {
-        ClassReader info1 = getOrLoadClassReader(type1, classLoader);
-        ClassReader info2 = getOrLoadClassReader(type2, classLoader);
+        ClassHierarchyCache.TypeInfo info1 = hierarchyCache.get(type1, classLoader);
+        ClassHierarchyCache.TypeInfo info2 = hierarchyCache.get(type2, classLoader);
         String
             superType = checkImplementInterface(type1, type2, info1, info2);
         if (superType != null) return superType;
@@ -202,7 +263,7 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       }
     }
 
-    private String checkImplementInterface(String type1, String type2, ClassReader info1, ClassReader info2) throws IOException {
+    private String checkImplementInterface(String type1, String type2, ClassHierarchyCache.TypeInfo info1, ClassHierarchyCache.TypeInfo info2) throws IOException {
       if ((info1.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
         if (typeImplements(type2, info2, type1)) {
           return type1;
@@ -212,60 +273,61 @@ public abstract class AbstractIntellijClassfileTransformer implements ClassFileT
       return null;
     }
 
-    private StringBuilder typeAncestors(String type, ClassReader info) throws IOException {
+    private StringBuilder typeAncestors(String type, ClassHierarchyCache.TypeInfo info) throws IOException {
       StringBuilder b = new StringBuilder();
       while (!JAVA_LANG_OBJECT.equals(type)) {
         b.append(';').append(type);
         type = info.getSuperName();
-        info = getOrLoadClassReader(type, classLoader);
+        info = hierarchyCache.get(type, classLoader);
       }
       return b;
     }
 
 
-    private boolean typeImplements(String type, ClassReader classReader, String interfaceName) throws IOException {
+    private boolean typeImplements(String type, ClassHierarchyCache.TypeInfo info, String interfaceName) throws IOException {
       while (!JAVA_LANG_OBJECT.equals(type)) {
-        String[] interfaces = classReader.getInterfaces();
+        String[] interfaces = info.getInterfaces();
         for (String itf1 : interfaces) {
           if (itf1.equals(interfaceName)) {
             return true;
           }
         }
         for (String itf : interfaces) {
-          if (typeImplements(itf, getOrLoadClassReader(itf, classLoader), interfaceName)) {
+          if (typeImplements(itf, hierarchyCache.get(itf, classLoader), interfaceName)) {
             return true;
           }
         }
-        type = classReader.getSuperName();
-        classReader = getOrLoadClassReader(type, classLoader);
+        type = info.getSuperName();
+        info = hierarchyCache.get(type, classLoader);
       }
       return false;
     }
   }
 
-  private synchronized ClassReader getOrLoadClassReader(String className, ClassLoader classLoader) throws IOException {
-    Map<String, ClassReader> loaderClassReaders = classReaders.get(classLoader);
-    if (loaderClassReaders == null) {
-      classReaders.put(classLoader, loaderClassReaders = new THashMap<String, ClassReader>());
-    }
-    ClassReader classReader = loaderClassReaders.get(className);
-    if (classReader == null) {
-      InputStream is = null;
-      try {
-        String resource = className + ".class";
-        is = classLoader == null
-            ? ClassLoader.getSystemResourceAsStream(resource)
-            : classLoader.getResourceAsStream(resource);
-        if (is == null) {
-          throw new IOException("Class " + className + " not found");
-        }
-        loaderClassReaders.put(className, classReader = new ClassReader(is));
-      } finally {
-        if (is != null) {
-          is.close();
+  /**
+   * @return analyzer of classes initialization which reads supertypes with <code>classLoader</code>
+   */
+  protected synchronized ClassInitializationAnalyzer getInitializationAnalyzer(ClassLoader classLoader) {
+    ClassInitializationAnalyzer analyzer = initializationAnalyzers.get(classLoader);
+    if (analyzer == null) {
+      // analyzer must not retain the class loader, as it is a value of the weak map
+      final WeakReference<ClassLoader> loaderRef = new WeakReference<ClassLoader>(classLoader);
+      analyzer = new ClassInitializationAnalyzer() {
+        @Override
+        protected ClassReader getClassReader(String className) throws IOException {
+          // analyzer caches its results, so class bytes are not cached here
+          return ClassHierarchyCache.loadClassReader(className, loaderRef.get());
         }
-      }
+      };
+      initializationAnalyzers.put(classLoader, analyzer);
     }
-    return classReader;
+    return analyzer;
+  }
+
+  /**
+   * @return cache of supertypes used for frames computation
+   */
+  public ClassHierarchyCache getHierarchyCache() {
+    return hierarchyCache;
   }
 }
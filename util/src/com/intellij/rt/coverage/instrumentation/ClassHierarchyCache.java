@@ -0,0 +1,255 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import org.jetbrains.coverage.org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of supertypes and access flags of classes that are read for frames computation.
+ * <p>
+ * Each class loader has its own segment, so that the transformation of classes in different loaders does not contend.
+ * Segments and cached classes are looked up without locks. A segment is locked only to add a class, and classes
+ * are evicted in approximate LRU order: a class that has been requested since the previous eviction round
+ * gets a second chance. Class files are read outside of any lock. Only the hierarchy data is kept, not the class bytes.
+ */
+public class ClassHierarchyCache {
+  private final int myMaxSegmentSize;
+  /** Segments of class loaders, which are weakly referenced, so that the cache does not keep them. */
+  private final ConcurrentHashMap<LoaderKey, Segment> mySegments = new ConcurrentHashMap<LoaderKey, Segment>();
+  private final ReferenceQueue<ClassLoader> myCollectedLoaders = new ReferenceQueue<ClassLoader>();
+  private final Segment myBootstrapSegment;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+  private final AtomicLong myContentions = new AtomicLong();
+
+  /**
+   * @param maxSegmentSize maximal number of classes kept for a single class loader
+   */
+  public ClassHierarchyCache(int maxSegmentSize) {
+    myMaxSegmentSize = Math.max(1, maxSegmentSize);
+    myBootstrapSegment = new Segment();
+  }
+
+  /**
+   * @param className internal name of a class
+   * @param classLoader loader to read the class file with, or null for the system class loader
+   * @throws IOException if the class cannot be found
+   */
+  public TypeInfo get(String className, ClassLoader classLoader) throws IOException {
+    final Segment segment = getSegment(classLoader);
+    TypeInfo info = segment.get(className);
+    if (info != null) {
+      myHits.incrementAndGet();
+      return info;
+    }
+    myMisses.incrementAndGet();
+    // concurrent misses of the same class may read it twice, which is cheaper than waiting under the lock
+    info = new TypeInfo(loadClassReader(className, classLoader));
+    segment.put(className, info);
+    return info;
+  }
+
+  private Segment getSegment(ClassLoader classLoader) {
+    if (classLoader == null) return myBootstrapSegment;
+    final Segment segment = mySegments.get(new LoaderKey(classLoader, null));
+    if (segment != null) return segment;
+    Reference<? extends ClassLoader> collected;
+    while ((collected = myCollectedLoaders.poll()) != null) {
+      mySegments.remove(collected);
+    }
+    final Segment newSegment = new Segment();
+    final Segment existing = mySegments.putIfAbsent(new LoaderKey(classLoader, myCollectedLoaders), newSegment);
+    return existing != null ? existing : newSegment;
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public long getEvictions() {
+    return myEvictions.get();
+  }
+
+  /**
+   * @return number of segment updates that had to wait for another thread
+   */
+  public long getContentions() {
+    return myContentions.get();
+  }
+
+  public String getStatistics() {
+    final long hits = getHits();
+    final long total = hits + getMisses();
+    return "Class hierarchy cache: " + hits + " hits of " + total + " requests ("
+        + (total == 0 ? 0 : 100 * hits / total) + "%), "
+        + getEvictions() + " evictions, " + getContentions() + " contended accesses";
+  }
+
+  /**
+   * @param className internal name of a class
+   * @param classLoader loader to read the class file with, or null for the system class loader
+   * @throws IOException if the class cannot be found
+   */
+  public static ClassReader loadClassReader(String className, ClassLoader classLoader) throws IOException {
+    final String resource = className + ".class";
+    final InputStream is = classLoader == null
+        ? ClassLoader.getSystemResourceAsStream(resource)
+        : classLoader.getResourceAsStream(resource);
+    if (is == null) {
+      throw new IOException("Class " + className + " not found");
+    }
+    try {
+      return new ClassReader(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  public static class TypeInfo {
+    private final int myAccess;
+    private final String mySuperName;
+    private final String[] myInterfaces;
+
+    TypeInfo(ClassReader cr) {
+      myAccess = cr.getAccess();
+      mySuperName = cr.getSuperName();
+      myInterfaces = cr.getInterfaces();
+    }
+
+    public int getAccess() {
+      return myAccess;
+    }
+
+    public String getSuperName() {
+      return mySuperName;
+    }
+
+    public String[] getInterfaces() {
+      return myInterfaces;
+    }
+  }
+
+  /**
+   * Weak reference to a class loader, which is equal to the references to the same loader.
+   */
+  private static class LoaderKey extends WeakReference<ClassLoader> {
+    private final int myHash;
+
+    LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+      super(loader, queue);
+      myHash = System.identityHashCode(loader);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof LoaderKey)) return false;
+      final ClassLoader loader = get();
+      return loader != null && loader == ((LoaderKey) o).get();
+    }
+  }
+
+  private static class Entry {
+    private final String myClassName;
+    private final TypeInfo myInfo;
+    /** Whether the class has been requested since the previous eviction round. */
+    private volatile boolean myReferenced;
+
+    Entry(String className, TypeInfo info) {
+      myClassName = className;
+      myInfo = info;
+    }
+  }
+
+  private class Segment {
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, Entry> myInfos = new ConcurrentHashMap<String, Entry>();
+    /** Cached classes in eviction order, guarded by the lock. */
+    private final LinkedList<Entry> myEvictionQueue = new LinkedList<Entry>();
+
+    TypeInfo get(String className) {
+      final Entry entry = myInfos.get(className);
+      if (entry == null) return null;
+      // avoid writing to the shared entry on every hit
+      if (!entry.myReferenced) {
+        entry.myReferenced = true;
+      }
+      return entry.myInfo;
+    }
+
+    void put(String className, TypeInfo info) {
+      lock();
+      try {
+        if (myInfos.containsKey(className)) return;
+        final Entry entry = new Entry(className, info);
+        myInfos.put(className, entry);
+        myEvictionQueue.add(entry);
+        while (myEvictionQueue.size() > myMaxSegmentSize) {
+          evict();
+        }
+      } finally {
+        myLock.unlock();
+      }
+    }
+
+    /**
+     * Remove the first class in the queue that has not been requested since it was checked last time.
+     */
+    private void evict() {
+      while (true) {
+        final Entry entry = myEvictionQueue.removeFirst();
+        if (entry.myReferenced) {
+          entry.myReferenced = false;
+          myEvictionQueue.addLast(entry);
+        } else {
+          myInfos.remove(entry.myClassName);
+          myEvictions.incrementAndGet();
+          return;
+        }
+      }
+    }
+
+    private void lock() {
+      if (!myLock.tryLock()) {
+        myContentions.incrementAndGet();
+        myLock.lock();
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import org.jetbrains.coverage.gnu.trove.THashMap;
+import org.jetbrains.coverage.org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Checks whether methods of a class may be called before its static initializer starts.
+ * <p>
+ * While a class is being initialized, its superclass and superinterfaces are initialized before
+ * the class <code>&lt;clinit&gt;</code> is executed. A static initializer of a supertype may call back
+ * into the class, e.g. create its instance, as shown in the {@link ExtraFieldInstrumenter} example.
+ * This is the only way to execute class code before its <code>&lt;clinit&gt;</code>: other threads wait
+ * until the initialization is completed, and any other access triggers the initialization first.
+ * <p>
+ * So the class methods are safe if static initializers of all its supertypes cannot execute foreign code.
+ * A static initializer is considered safe if it does not create objects and does not call methods, except
+ * JDK classes, and uses static fields of its own class or JDK classes only.
+ * JDK classes are expected not to instantiate user classes, unless reflection or service loading is used.
+ * All supertypes that cannot be read are considered unsafe.
+ */
+public abstract class ClassInitializationAnalyzer {
+  private final Map<String, Boolean> myResults = new THashMap<String, Boolean>();
+
+  /**
+   * @param className internal name of a class
+   * @throws IOException if the class cannot be found
+   */
+  protected abstract ClassReader getClassReader(String className) throws IOException;
+
+  /**
+   * @return true if any method of the class may be called before the class static initializer
+   */
+  public synchronized boolean mayBeUsedBeforeInitialization(ClassReader cr) {
+    if ((cr.getAccess() & Opcodes.ACC_INTERFACE) != 0) return true;
+    return supertypesMayRunForeignCode(cr);
+  }
+
+  private boolean supertypesMayRunForeignCode(ClassReader cr) {
+    if (mayRunForeignCode(cr.getSuperName())) return true;
+    for (String anInterface : cr.getInterfaces()) {
+      if (mayRunForeignCode(anInterface)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if initialization of the type may execute code outside of this type and JDK
+   */
+  private boolean mayRunForeignCode(String type) {
+    if (type == null || isJdkClass(type)) return false;
+    Boolean result = myResults.get(type);
+    if (result == null) {
+      // conservative value in case of cyclic hierarchy
+      myResults.put(type, Boolean.TRUE);
+      result = computeMayRunForeignCode(type);
+      myResults.put(type, result);
+    }
+    return result;
+  }
+
+  private boolean computeMayRunForeignCode(String type) {
+    final ClassReader cr;
+    try {
+      cr = getClassReader(type);
+    } catch (IOException e) {
+      return true;
+    }
+    if (supertypesMayRunForeignCode(cr)) return true;
+    final ClassInitializerVisitor visitor = new ClassInitializerVisitor(type);
+    cr.accept(visitor, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return visitor.myRunsForeignCode;
+  }
+
+  private static boolean isJdkClass(String type) {
+    return type.startsWith("java/") || type.startsWith("jdk/") || type.startsWith("sun/");
+  }
+
+  private static boolean isReflectiveClass(String type) {
+    return type.equals("java/lang/Class")
+        || type.equals("java/lang/ClassLoader")
+        || type.equals("java/util/ServiceLoader")
+        || type.startsWith("java/lang/reflect/")
+        || type.startsWith("java/lang/invoke/");
+  }
+
+  private static class ClassInitializerVisitor extends ClassVisitor {
+    private final String myClassName;
+    private boolean myRunsForeignCode;
+
+    private ClassInitializerVisitor(String className) {
+      super(Opcodes.API_VERSION);
+      myClassName = className;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+      if (!InstrumentationUtils.CLASS_INIT.equals(name)) return null;
+      return new MethodVisitor(Opcodes.API_VERSION) {
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+          if (opcode == Opcodes.NEW) checkOwner(type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+          if (opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC) {
+            if (!myClassName.equals(owner)) checkOwner(owner);
+          }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+          checkOwner(owner);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+          myRunsForeignCode = true;
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+          if (value instanceof ConstantDynamic || value instanceof Handle) {
+            myRunsForeignCode = true;
+          }
+        }
+      };
+    }
+
+    private void checkOwner(String owner) {
+      if (!isJdkClass(owner) || isReflectiveClass(owner)) {
+        myRunsForeignCode = true;
+      }
+    }
+  }
+}
@@ -40,6 +40,9 @@ import org.jetbrains.coverage.org.objectweb.asm.*;
  * }
  * </code>
  * </pre>
+ * When it is known that no method of a class may be called before its static initializer
+ * (see {@link ClassInitializationAnalyzer}), the checks are omitted and the field is initialized
+ * at the start of the static initializer instead, which is generated if absent.
  */
 public abstract class ExtraFieldInstrumenter extends ClassVisitor {
   protected static final int ADDED_CODE_STACK_SIZE = 6;
@@ -56,11 +59,22 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
   private final boolean myJava8AndAbove;
   private final boolean myInterface;
   private final boolean myShouldCoverClinit;
+  private final boolean myLazyInit;
   private boolean mySeenClinit = false;
 
   public ExtraFieldInstrumenter(ClassReader cr, ClassVisitor classVisitor, String className,
                                 String fieldName, String fieldType,
                                 boolean shouldCoverClinit) {
+    this(cr, classVisitor, className, fieldName, fieldType, shouldCoverClinit, true);
+  }
+
+  /**
+   * @param lazyInit whether methods of a class must check that the field is initialized;
+   *                 if false, the field is initialized in <code>&lt;clinit&gt;</code> only. Ignored for interfaces.
+   */
+  public ExtraFieldInstrumenter(ClassReader cr, ClassVisitor classVisitor, String className,
+                                String fieldName, String fieldType,
+                                boolean shouldCoverClinit, boolean lazyInit) {
     super(Opcodes.API_VERSION, classVisitor);
     myFieldName = fieldName;
     myFieldType = fieldType;
@@ -68,6 +82,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
     myInterface = (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
     myJava8AndAbove = (cr.readInt(4) & 0xFFFF) >= Opcodes.V1_8;
     myShouldCoverClinit = shouldCoverClinit;
+    myLazyInit = lazyInit || myInterface;
   }
 
   /**
@@ -87,7 +102,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
                                            final String name) {
     if (mv == null) return null;
     if (InstrumentationUtils.CLASS_INIT.equals(name)) {
-      if (myInterface && (myJava8AndAbove || myShouldCoverClinit)) {
+      if (!myLazyInit || myInterface && (myJava8AndAbove || myShouldCoverClinit)) {
         newMv = new MethodVisitor(Opcodes.API_VERSION, newMv) {
           @Override
           public void visitCode() {
@@ -97,12 +112,12 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
           }
         };
       }
-      if (!myShouldCoverClinit) {
+      if (!myShouldCoverClinit || !myLazyInit) {
         return newMv;
       }
     }
 
-    if (myInterface) return newMv;
+    if (myInterface || !myLazyInit) return newMv;
 
     return new MethodVisitor(Opcodes.API_VERSION, newMv) {
       @Override
@@ -149,9 +164,12 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
       //interface has no clinit method
       //java 11 verifies that constants are initialized in clinit
       //let's generate it!
-      generateExplicitClinitForInterfaces(cv);
+      generateExplicitClinit(cv);
     } else {
       cv.visitField(CLASS_FIELD_ACCESS, myFieldName, myFieldType, null, null);
+      if (!myLazyInit && !mySeenClinit) {
+        generateExplicitClinit(cv);
+      }
     }
   }
 
@@ -159,7 +177,7 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
     generateMembers(this);
   }
 
-  private void generateExplicitClinitForInterfaces(ClassVisitor cv) {
+  private void generateExplicitClinit(ClassVisitor cv) {
     MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, InstrumentationUtils.CLASS_INIT, InstrumentationUtils.CONSTRUCTOR_DESCRIPTOR, null, null);
     initField(mv);
     mv.visitInsn(Opcodes.RETURN);
@@ -174,4 +192,12 @@ public abstract class ExtraFieldInstrumenter extends ClassVisitor {
   public boolean isInterface() {
     return myInterface;
   }
+
+  /**
+   * @return true if the field is initialized in <code>&lt;clinit&gt;</code>,
+   * so <code>&lt;clinit&gt;</code> must be passed to {@link #createMethodVisitor} even if it is not instrumented
+   */
+  public boolean isInitializedInClinit() {
+    return myInterface || !myLazyInit;
+  }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detailed statistics of class transformation, which are collected only when enabled with
+ * <code>coverage.transformation.metrics</code> option, so the transformer has no overhead otherwise.
+ * <p>
+ * Instrumentation time includes frames computation apart from the <code>getCommonSuperClass</code> time,
+ * which is also reported separately, as ASM computes frames while the class is visited.
+ */
+public class TransformationMetrics implements TransformationMetricsMBean {
+  private static final int[] SIZE_BUCKETS = {1024, 4 * 1024, 16 * 1024, 64 * 1024, Integer.MAX_VALUE};
+  private static final long NANOS_IN_MS = 1000000;
+  /** Numbers registered metrics, as several transformers of the same class may exist. */
+  private static final AtomicInteger ourRegistered = new AtomicInteger();
+
+  private final ClassHierarchyCache myHierarchyCache;
+
+  private final AtomicLong myTransformed = new AtomicLong();
+  private final AtomicLong mySkipped = new AtomicLong();
+  private final AtomicLong myExcluded = new AtomicLong();
+  private final AtomicLong myFailed = new AtomicLong();
+
+  private final AtomicLong myParseTime = new AtomicLong();
+  private final AtomicLong myFilterTime = new AtomicLong();
+  private final AtomicLong myInstrumentationTime = new AtomicLong();
+  private final AtomicLong myWriteTime = new AtomicLong();
+  private final AtomicLong myCommonSuperClassTime = new AtomicLong();
+  private final AtomicLong myCommonSuperClassCalls = new AtomicLong();
+
+  private final ConcurrentHashMap<String, Counter> myClassLoaders = new ConcurrentHashMap<String, Counter>();
+  private final Counter[] mySizeHistogram = new Counter[SIZE_BUCKETS.length];
+
+  /** Null when the metrics are not registered. */
+  private volatile ObjectName myObjectName;
+
+  public TransformationMetrics(ClassHierarchyCache hierarchyCache) {
+    myHierarchyCache = hierarchyCache;
+    for (int i = 0; i < mySizeHistogram.length; i++) {
+      mySizeHistogram[i] = new Counter();
+    }
+  }
+
+  void classSkipped() {
+    mySkipped.incrementAndGet();
+  }
+
+  void classExcluded() {
+    myExcluded.incrementAndGet();
+  }
+
+  void classFailed() {
+    myFailed.incrementAndGet();
+  }
+
+  void parsed(long nanos) {
+    myParseTime.addAndGet(nanos);
+  }
+
+  void filtered(long nanos) {
+    myFilterTime.addAndGet(nanos);
+  }
+
+  void instrumented(long nanos) {
+    myInstrumentationTime.addAndGet(nanos);
+  }
+
+  void written(long nanos) {
+    myWriteTime.addAndGet(nanos);
+  }
+
+  void commonSuperClassComputed(long nanos) {
+    myCommonSuperClassCalls.incrementAndGet();
+    myCommonSuperClassTime.addAndGet(nanos);
+  }
+
+  /**
+   * Record a class that is transformed by the transformer.
+   * @param nanos whole transformation time of the class
+   */
+  void classTransformed(ClassLoader loader, int classSize, long nanos) {
+    myTransformed.incrementAndGet();
+    final String loaderName = loader == null ? "bootstrap" : loader.getClass().getName();
+    Counter counter = myClassLoaders.get(loaderName);
+    if (counter == null) {
+      final Counter newCounter = new Counter();
+      counter = myClassLoaders.putIfAbsent(loaderName, newCounter);
+      if (counter == null) counter = newCounter;
+    }
+    counter.add(nanos);
+    int bucket = 0;
+    while (classSize >= SIZE_BUCKETS[bucket]) bucket++;
+    mySizeHistogram[bucket].add(nanos);
+  }
+
+  public long getTransformedClasses() {
+    return myTransformed.get();
+  }
+
+  public long getSkippedClasses() {
+    return mySkipped.get();
+  }
+
+  public long getExcludedClasses() {
+    return myExcluded.get();
+  }
+
+  public long getFailedClasses() {
+    return myFailed.get();
+  }
+
+  public long getParseTime() {
+    return myParseTime.get() / NANOS_IN_MS;
+  }
+
+  public long getFilterTime() {
+    return myFilterTime.get() / NANOS_IN_MS;
+  }
+
+  public long getInstrumentationTime() {
+    return myInstrumentationTime.get() / NANOS_IN_MS;
+  }
+
+  public long getWriteTime() {
+    return myWriteTime.get() / NANOS_IN_MS;
+  }
+
+  public long getCommonSuperClassTime() {
+    return myCommonSuperClassTime.get() / NANOS_IN_MS;
+  }
+
+  public long getCommonSuperClassCalls() {
+    return myCommonSuperClassCalls.get();
+  }
+
+  public long getHierarchyCacheHits() {
+    return myHierarchyCache.getHits();
+  }
+
+  public long getHierarchyCacheMisses() {
+    return myHierarchyCache.getMisses();
+  }
+
+  public String[] getClassLoaderStatistics() {
+    final List<String> result = new ArrayList<String>();
+    for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(myClassLoaders).entrySet()) {
+      result.add(entry.getKey() + ": " + entry.getValue());
+    }
+    return result.toArray(new String[0]);
+  }
+
+  public String[] getClassSizeHistogram() {
+    final String[] result = new String[SIZE_BUCKETS.length];
+    for (int i = 0; i < SIZE_BUCKETS.length; i++) {
+      final String range = i == SIZE_BUCKETS.length - 1
+          ? ">= " + SIZE_BUCKETS[i - 1] / 1024 + "KB"
+          : "< " + SIZE_BUCKETS[i] / 1024 + "KB";
+      result[i] = range + ": " + mySizeHistogram[i];
+    }
+    return result;
+  }
+
+  public String getReport() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("Classes: ").append(getTransformedClasses()).append(" transformed, ")
+        .append(getSkippedClasses()).append(" skipped, ")
+        .append(getExcludedClasses()).append(" excluded, ")
+        .append(getFailedClasses()).append(" failed\n");
+    builder.append("Time: parse ").append(getParseTime()).append("ms, filter ").append(getFilterTime())
+        .append("ms, instrumentation ").append(getInstrumentationTime()).append("ms, write ").append(getWriteTime())
+        .append("ms, getCommonSuperClass ").append(getCommonSuperClassTime()).append("ms in ")
+        .append(getCommonSuperClassCalls()).append(" calls\n");
+    builder.append(myHierarchyCache.getStatistics()).append('\n');
+    builder.append("Class loaders:\n");
+    for (String line : getClassLoaderStatistics()) {
+      builder.append("  ").append(line).append('\n');
+    }
+    builder.append("Class sizes:\n");
+    for (String line : getClassSizeHistogram()) {
+      builder.append("  ").append(line).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Register the metrics in the platform MBean server until shutdown.
+   * The object name has an <code>id</code> key, which is unique among all registered metrics.
+   * @param name value of the name key in the object name
+   * @return the object name of the registered metrics or null if registration failed
+   */
+  public synchronized ObjectName register(String name) {
+    if (myObjectName != null) return myObjectName;
+    try {
+      final ObjectName objectName = new ObjectName("com.intellij.rt.coverage:type=TransformationMetrics,name="
+          + ObjectName.quote(name) + ",id=" + ourRegistered.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      myObjectName = objectName;
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        public void run() {
+          unregister();
+        }
+      }));
+      return objectName;
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to register transformation metrics MBean", e);
+      return null;
+    }
+  }
+
+  /**
+   * Remove the metrics from the platform MBean server if they are registered.
+   */
+  public synchronized void unregister() {
+    if (myObjectName == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(myObjectName);
+    } catch (Exception e) {
+      ErrorReporter.reportError("Failed to unregister transformation metrics MBean", e);
+    } finally {
+      myObjectName = null;
+    }
+  }
+
+  /**
+   * Write the report into the file periodically in a background thread and on shutdown.
+   * @param periodMs report period, the report is written only on shutdown if not positive
+   */
+  public void scheduleDump(final File file, long periodMs) {
+    if (periodMs > 0) {
+      final Timer timer = new Timer("Coverage transformation metrics", true);
+      timer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          dump(file);
+        }
+      }, periodMs, periodMs);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        dump(file);
+      }
+    }));
+  }
+
+  synchronized void dump(File file) {
+    PrintStream os = null;
+    try {
+      os = new PrintStream(new FileOutputStream(file));
+      os.print(getReport());
+    } catch (IOException e) {
+      ErrorReporter.reportError("Failed to write transformation metrics to " + file.getPath(), e);
+    } finally {
+      CoverageIOUtil.close(os);
+    }
+  }
+
+  private static class Counter {
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myTime = new AtomicLong();
+
+    void add(long nanos) {
+      myCount.incrementAndGet();
+      myTime.addAndGet(nanos);
+    }
+
+    @Override
+    public String toString() {
+      return myCount.get() + " classes in " + myTime.get() / NANOS_IN_MS + "ms";
+    }
+  }
+}
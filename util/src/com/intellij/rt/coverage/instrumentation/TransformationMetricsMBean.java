@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.instrumentation;
+
+/**
+ * JMX view of {@link TransformationMetrics}. Times are in milliseconds.
+ */
+public interface TransformationMetricsMBean {
+  long getTransformedClasses();
+
+  long getSkippedClasses();
+
+  long getExcludedClasses();
+
+  long getFailedClasses();
+
+  long getParseTime();
+
+  long getFilterTime();
+
+  long getInstrumentationTime();
+
+  long getWriteTime();
+
+  long getCommonSuperClassTime();
+
+  long getCommonSuperClassCalls();
+
+  long getHierarchyCacheHits();
+
+  long getHierarchyCacheMisses();
+
+  /**
+   * @return transformed classes count and time per class loader type
+   */
+  String[] getClassLoaderStatistics();
+
+  /**
+   * @return transformed classes count and time per class file size range
+   */
+  String[] getClassSizeHistogram();
+
+  String getReport();
+}
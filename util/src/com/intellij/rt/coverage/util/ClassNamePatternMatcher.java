@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches class names against a list of patterns, same as {@link ClassNameUtil#matchesPatterns}, but faster.
+ * <p>
+ * Patterns which are a literal class name or a literal prefix followed by <code>.*</code>, e.g. <code>com\.acme\..*</code>,
+ * are compiled into a prefix tree, so that all of them are checked in a single pass over the class name.
+ * Other patterns are matched as regular expressions, but only if the class name starts with the literal prefix
+ * of the pattern.
+ * <p>
+ * Instances are immutable and may be used from several threads.
+ */
+public class ClassNamePatternMatcher {
+  private static final String META_CHARACTERS = ".[]{}()*+?^$|";
+
+  private final Node myRoot = new Node();
+  private final Pattern[] myRegexps;
+  private final String[] myRegexpPrefixes;
+  private final boolean myIsEmpty;
+
+  public ClassNamePatternMatcher(List<Pattern> patterns) {
+    final List<Pattern> regexps = new ArrayList<Pattern>();
+    final List<String> regexpPrefixes = new ArrayList<String>();
+    for (Pattern pattern : patterns) {
+      final String regex = pattern.pattern();
+      final StringBuilder literal = new StringBuilder();
+      final int end = parseLiteralPrefix(regex, literal);
+      final String rest = regex.substring(end);
+      if (pattern.flags() == 0 && rest.length() == 0) {
+        myRoot.add(literal).myIsName = true;
+      } else if (pattern.flags() == 0 && rest.equals(".*")) {
+        myRoot.add(literal).myIsPrefix = true;
+      } else {
+        regexps.add(pattern);
+        regexpPrefixes.add(getRequiredPrefix(pattern, literal, rest));
+      }
+    }
+    myRegexps = regexps.toArray(new Pattern[0]);
+    myRegexpPrefixes = regexpPrefixes.toArray(new String[0]);
+    myIsEmpty = patterns.isEmpty();
+  }
+
+  public boolean isEmpty() {
+    return myIsEmpty;
+  }
+
+  public boolean matches(String className) {
+    Node node = myRoot;
+    final int length = className.length();
+    for (int i = 0; i < length && node != null; i++) {
+      if (node.myIsPrefix) return true;
+      node = node.get(className.charAt(i));
+    }
+    if (node != null && (node.myIsPrefix || node.myIsName)) return true;
+    for (int i = 0; i < myRegexps.length; i++) {
+      if (className.startsWith(myRegexpPrefixes[i]) && myRegexps[i].matcher(className).matches()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param packageName package name without the trailing dot
+   * @return false if no class in the package or its subpackages may match
+   */
+  public boolean mayMatchPackage(String packageName) {
+    final String prefix = packageName + ".";
+    Node node = myRoot;
+    for (int i = 0; i < prefix.length() && node != null; i++) {
+      if (node.myIsPrefix) return true;
+      node = node.get(prefix.charAt(i));
+    }
+    // a tree path continues into the package
+    if (node != null) return true;
+    for (String regexpPrefix : myRegexpPrefixes) {
+      if (regexpPrefix.startsWith(prefix) || prefix.startsWith(regexpPrefix)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param packageName package name without the trailing dot
+   * @return true if all classes in the package and its subpackages match
+   */
+  public boolean matchesPackage(String packageName) {
+    final String prefix = packageName + ".";
+    Node node = myRoot;
+    for (int i = 0; i < prefix.length() && node != null; i++) {
+      if (node.myIsPrefix) return true;
+      node = node.get(prefix.charAt(i));
+    }
+    return node != null && node.myIsPrefix;
+  }
+
+  /**
+   * Collect the literal characters from the start of the regex until the first meta character or unsupported escape.
+   * @return index of the first not literal character
+   */
+  private static int parseLiteralPrefix(String regex, StringBuilder literal) {
+    int i = 0;
+    while (i < regex.length()) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          literal.append(regex.charAt(i + 1));
+          i += 2;
+          continue;
+        }
+        break;
+      }
+      if (META_CHARACTERS.indexOf(c) >= 0) break;
+      literal.append(c);
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return prefix that any name matched by the pattern starts with
+   */
+  private static String getRequiredPrefix(Pattern pattern, StringBuilder literal, String rest) {
+    if (pattern.flags() != 0 || pattern.pattern().indexOf('|') >= 0) return "";
+    if (rest.startsWith("*") || rest.startsWith("?") || rest.startsWith("{")) {
+      // the quantifier applies to the last literal character
+      return literal.length() == 0 ? "" : literal.substring(0, literal.length() - 1);
+    }
+    return literal.toString();
+  }
+
+  private static class Node {
+    private char[] myChars = new char[0];
+    private Node[] myChildren = new Node[0];
+    /** A pattern matches all names starting with the path to this node. */
+    private boolean myIsPrefix;
+    /** A pattern matches the name equal to the path to this node. */
+    private boolean myIsName;
+
+    Node get(char c) {
+      final int index = Arrays.binarySearch(myChars, c);
+      return index < 0 ? null : myChildren[index];
+    }
+
+    Node add(CharSequence path) {
+      Node node = this;
+      for (int i = 0; i < path.length(); i++) {
+        node = node.getOrCreate(path.charAt(i));
+      }
+      return node;
+    }
+
+    private Node getOrCreate(char c) {
+      int index = Arrays.binarySearch(myChars, c);
+      if (index >= 0) return myChildren[index];
+      index = -index - 1;
+      final char[] chars = new char[myChars.length + 1];
+      final Node[] children = new Node[myChildren.length + 1];
+      System.arraycopy(myChars, 0, chars, 0, index);
+      System.arraycopy(myChildren, 0, children, 0, index);
+      System.arraycopy(myChars, index, chars, index + 1, myChars.length - index);
+      System.arraycopy(myChildren, index, children, index + 1, myChildren.length - index);
+      chars[index] = c;
+      final Node node = new Node();
+      children[index] = node;
+      myChars = chars;
+      myChildren = children;
+      return node;
+    }
+  }
+}
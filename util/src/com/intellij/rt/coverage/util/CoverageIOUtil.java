@@ -17,6 +17,14 @@
 package com.intellij.rt.coverage.util;
 
 import java.io.*;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,30 +43,158 @@ public class CoverageIOUtil {
   private CoverageIOUtil() {
   }
 
+  /**
+   * Inter-process lock of a file based on <code>FileChannel</code> locks.
+   * As the lock is held by the OS, it is released when the process terminates, so a crashed process cannot leave
+   * a stale lock. Channel locks do not synchronize threads of the same process, so an in-process lock is acquired first.
+   * <p>
+   * The lock file is deleted on unlock. As a waiting process may lock an already deleted file, the owner writes
+   * a unique token into the file and checks that the file at the lock path contains it.
+   */
   public final static class FileLock {
+    private static final Map<String, Semaphore> ourProcessLocks = new HashMap<String, Semaphore>();
+    private static final Random ourRandom = new Random();
+    private static Timer ourTimer;
+    /**
+     * Locked region lies beyond the token, so that the token can be read through another handle
+     * where locks are mandatory.
+     */
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
     final File myLock;
+    private final Semaphore myProcessLock;
+    private RandomAccessFile myFile;
+    private InputStream myCheck;
+    private java.nio.channels.FileLock myChannelLock;
 
     private FileLock(final File target) {
       myLock = new File(target.getParentFile(), target.getName() + ".lck");
       if (myLock.getParentFile() != null) {
         myLock.getParentFile().mkdirs();
       }
+      myProcessLock = getProcessLock(myLock);
     }
 
-    private boolean isLocked() {
-      return myLock.exists();
+    private static synchronized Semaphore getProcessLock(File lockFile) {
+      final String path = lockFile.getAbsolutePath();
+      Semaphore lock = ourProcessLocks.get(path);
+      if (lock == null) {
+        lock = new Semaphore(1);
+        ourProcessLocks.put(path, lock);
+      }
+      return lock;
     }
 
-    private boolean tryLock() {
+    /**
+     * @param deadline time until which to wait for the channel lock, or 0 to fail immediately if the file is locked
+     * @return true if the channel lock of the current lock file is acquired
+     */
+    private boolean acquire(long deadline) throws IOException {
+      final RandomAccessFile file = new RandomAccessFile(myLock, "rw");
+      java.nio.channels.FileLock channelLock = null;
       try {
-        return myLock.createNewFile();
-      } catch (IOException e) {
-        return false;
+        channelLock = deadline == 0 ? file.getChannel().tryLock(LOCK_POSITION, 1, false) : lockChannel(file, deadline);
+        if (channelLock == null) return false;
+        // the file may have been deleted by the previous owner after this process opened it
+        final InputStream check = openIfCurrentFile(file);
+        if (check == null) return false;
+        myFile = file;
+        myCheck = check;
+        myChannelLock = channelLock;
+        return true;
+      } finally {
+        if (myFile != file) {
+          if (channelLock != null && channelLock.isValid()) {
+            channelLock.release();
+          }
+          close(file);
+        }
+      }
+    }
+
+    /**
+     * Wait for the channel lock in a blocking call, so that the lock is acquired as soon as the owner releases it.
+     * The wait is bounded by closing the channel at the deadline, which interrupts the blocking call.
+     *
+     * @return the channel lock or null if the deadline has passed
+     */
+    private static java.nio.channels.FileLock lockChannel(RandomAccessFile file, long deadline) throws IOException {
+      final long timeout = deadline - System.currentTimeMillis();
+      if (timeout <= 0) return null;
+      final TimeoutTask timeoutTask = new TimeoutTask(file);
+      getTimer().schedule(timeoutTask, timeout);
+      try {
+        final java.nio.channels.FileLock channelLock = file.getChannel().lock(LOCK_POSITION, 1, false);
+        // the channel is closed and the lock is released if the deadline has passed in the meantime
+        return timeoutTask.finish() ? channelLock : null;
+      } catch (AsynchronousCloseException e) {
+        if (timeoutTask.finish()) throw e;
+        return null;
+      } finally {
+        timeoutTask.cancel();
       }
     }
 
-    private boolean tryUnlock() {
-      return myLock.delete();
+    private static synchronized Timer getTimer() {
+      if (ourTimer == null) {
+        ourTimer = new Timer("Coverage file lock timeout", true);
+      }
+      return ourTimer;
+    }
+
+    /**
+     * Closes a channel which is still waiting for a lock when the task is run.
+     */
+    private static class TimeoutTask extends TimerTask {
+      private final RandomAccessFile myFile;
+      private boolean myFinished;
+      private boolean myExpired;
+
+      TimeoutTask(RandomAccessFile file) {
+        myFile = file;
+      }
+
+      @Override
+      public synchronized void run() {
+        if (myFinished) return;
+        myExpired = true;
+        close(myFile);
+      }
+
+      /**
+       * @return false if the channel has been closed by timeout
+       */
+      synchronized boolean finish() {
+        myFinished = true;
+        return !myExpired;
+      }
+    }
+
+    /**
+     * Checks that the locked file is still present at the lock path by writing a unique token to the locked file
+     * and reading it back by the path.
+     * The returned stream must be closed only after the lock is released, as closing any handle of the file
+     * releases all the locks of the process on POSIX systems.
+     *
+     * @return stream opened by the lock path or null if the path denotes another file
+     */
+    private InputStream openIfCurrentFile(RandomAccessFile file) throws IOException {
+      final String token;
+      synchronized (ourRandom) {
+        token = Long.toHexString(ourRandom.nextLong()) + Long.toHexString(System.nanoTime());
+      }
+      file.setLength(0);
+      file.writeUTF(token);
+      DataInputStream in = null;
+      boolean current = false;
+      try {
+        in = new DataInputStream(new FileInputStream(myLock));
+        current = token.equals(in.readUTF());
+      } catch (IOException ignored) {
+      }
+      if (current) return in;
+      close(in);
+      return null;
     }
 
     public static FileLock lock(final File targetFile) {
@@ -66,25 +202,52 @@ public class CoverageIOUtil {
     }
 
     /**
-     * @param targetFile File to lock
-     * @return Lock object
+     * Wait for the lock of a file. Threads of the same process wait on an in-process lock and
+     * processes wait in a blocking channel lock, so the lock is passed to a waiting process as soon as it is released.
+     *
+     * @param targetFile     File to lock
+     * @param totalTimeoutMS Max time to wait for the lock
+     * @param waitTimeMS     Not used as the lock is waited for without polling
+     * @return Lock object or null if locking failed
      */
     public static FileLock lock(final File targetFile, final long totalTimeoutMS, final long waitTimeMS) {
       final FileLock lock = new FileLock(targetFile);
-      if (lock.myLock.exists()) {
-        // If file exists, and it was created long time ago then looks like it stayed from a previous run.
-        // This may lead to a race, as modification check and deletion is not atomic.
-        final long current = System.currentTimeMillis();
-        final long modified = lock.myLock.lastModified();
-        if (modified != 0 && modified + totalTimeoutMS < current) {
-          lock.tryUnlock();
+      final long deadline = System.currentTimeMillis() + totalTimeoutMS;
+      try {
+        if (!lock.myProcessLock.tryAcquire(totalTimeoutMS, TimeUnit.MILLISECONDS)) {
+          ErrorReporter.reportError("Failed to lock with file lock: " + lock.myLock.getAbsolutePath());
+          return null;
         }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Failed to lock with file lock: " + lock.myLock.getAbsolutePath(), e);
       }
-      for (long timePassed = 0; timePassed < totalTimeoutMS; timePassed += waitTimeMS) {
-        if (lock.tryLock()) return lock;
-        wait(lock, waitTimeMS, "lock");
+      try {
+        // a lock of a file deleted by the previous owner is retried immediately with the new file
+        while (System.currentTimeMillis() < deadline) {
+          if (lock.acquire(deadline)) return lock;
+        }
+        ErrorReporter.reportError("Failed to lock with file lock: " + lock.myLock.getAbsolutePath());
+      } catch (IOException e) {
+        ErrorReporter.reportError("Failed to lock with file lock: " + lock.myLock.getAbsolutePath(), e);
       }
-      ErrorReporter.reportError("Failed to lock with file lock: " + lock.myLock.getAbsolutePath());
+      lock.myProcessLock.release();
+      return null;
+    }
+
+    /**
+     * Lock a file if it is not locked by another thread or process.
+     *
+     * @return Lock object or null if the file is already locked or locking failed
+     */
+    public static FileLock tryLock(final File targetFile) {
+      final FileLock lock = new FileLock(targetFile);
+      if (!lock.myProcessLock.tryAcquire()) return null;
+      try {
+        if (lock.acquire(0)) return lock;
+      } catch (IOException e) {
+        ErrorReporter.reportError("Failed to lock with file lock: " + lock.myLock.getAbsolutePath(), e);
+      }
+      lock.myProcessLock.release();
       return null;
     }
 
@@ -92,21 +255,31 @@ public class CoverageIOUtil {
       unlock(lock, 5, 100);
     }
 
+    /**
+     * The lock file is deleted while it is still locked, so that a process waiting for it retries with a new file.
+     * Where an open file cannot be deleted, it is deleted after closing, which also fails if another process
+     * has opened it already.
+     *
+     * @param retries    Not used as releasing a channel lock does not need retries
+     * @param waitTimeMS Not used as releasing a channel lock does not need retries
+     */
     public static void unlock(final FileLock lock, final int retries, final long waitTimeMS) {
-      if (lock == null) return;
-      for (int attempt = 0; attempt < retries; attempt++) {
-        if (!lock.isLocked()) return;
-        if (lock.tryUnlock()) return;
-        wait(lock, waitTimeMS, "unlock");
-      }
-      ErrorReporter.reportError("Failed to unlock with file lock: " + lock.myLock.getAbsolutePath());
-    }
-
-    private static void wait(final FileLock lock, final long waitTimeMS, final String action) {
+      if (lock == null || lock.myFile == null) return;
+      final boolean deleted = lock.myLock.delete();
       try {
-        Thread.sleep(waitTimeMS);
-      } catch (InterruptedException e) {
-        throw new RuntimeException("Failed to " + action + " with file lock: " + lock.myLock.getAbsolutePath(), e);
+        lock.myChannelLock.release();
+      } catch (IOException e) {
+        ErrorReporter.reportError("Failed to unlock with file lock: " + lock.myLock.getAbsolutePath(), e);
+      } finally {
+        close(lock.myFile);
+        close(lock.myCheck);
+        lock.myFile = null;
+        lock.myCheck = null;
+        lock.myChannelLock = null;
+        if (!deleted) {
+          lock.myLock.delete();
+        }
+        lock.myProcessLock.release();
       }
     }
   }
@@ -278,6 +451,16 @@ public class CoverageIOUtil {
     return methodSignature;
   }
 
+  public static byte[] readBytes(InputStream is) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 1024));
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
   public static DataOutputStream openFile(File file) throws FileNotFoundException {
     return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
   }
@@ -20,12 +20,81 @@ public class OptionsUtil {
   public static final boolean NEW_SAMPLING_ENABLED = System.getProperty("idea.new.sampling.coverage") != null;
   public static final boolean NEW_TRACING_ENABLED = System.getProperty("idea.new.tracing.coverage") != null;
   public static final boolean NEW_TEST_TRACKING_ENABLED = "true".equals(System.getProperty("idea.new.test.tracking.coverage", "true"));
+  /**
+   * Number of hits array stripes in new tracing mode, rounded down to a power of two. Each thread increments
+   * counters in its own stripe, which reduces cache line contention in hot classes. Striping is disabled when less than 2.
+   */
+  public static final int TRACING_STRIPES = Integer.highestOneBit(Math.max(0, Integer.getInteger("coverage.tracing.stripes", 0)));
+  /**
+   * Count hits in new tracing mode with atomic increments, so that no hits are lost when a class is used
+   * from several threads. Requires Java 7+.
+   */
+  public static final boolean TRACING_ATOMIC_HITS = "true".equals(System.getProperty("coverage.tracing.atomic", "false"));
+  /**
+   * Skip field initialization checks in methods of classes that cannot be used before their static initializer.
+   * @see com.intellij.rt.coverage.instrumentation.ClassInitializationAnalyzer
+   */
+  public static final boolean CLASS_INIT_ANALYSIS = "true".equals(System.getProperty("coverage.class.init.analysis", "false"));
+  /**
+   * Store a covered flag per line in a <code>byte[]</code> instead of an <code>int[]</code> hits counter in new sampling mode.
+   * Reduces the memory used by line masks 4 times, covered lines are reported with a single hit.
+   */
+  public static final boolean SAMPLING_BYTE_MASK = "true".equals(System.getProperty("coverage.sampling.byte.mask", "false"));
+  /**
+   * Write a line mask element in new sampling mode only if it is not set yet. Covered lines are reported with a single hit,
+   * but hot lines no longer write into shared mask arrays, which avoids invalidation of the cache lines in other cores.
+   */
+  public static final boolean SAMPLING_WRITE_ONCE = "true".equals(System.getProperty("coverage.sampling.write.once", "false"));
+  /**
+   * Keep the line mask of a class in a static field in legacy sampling mode and increment it directly, instead of looking up
+   * the class data by name in every method and counting hits through <code>ProjectData.touchLine</code>.
+   */
+  public static final boolean SAMPLING_LINE_MASK_FIELD = "true".equals(System.getProperty("coverage.sampling.line.mask.field", "false"));
   public static final boolean CONDY_ENABLED = "true".equals(System.getProperty("coverage.condy.enable", "true"));
   public static final boolean INSTRUCTIONS_COVERAGE_ENABLED = "true".equals(System.getProperty("coverage.instructions.enable", "false"));
 
   public static final boolean UNLOADED_CLASSES_FULL_ANALYSIS = "true".equals(System.getProperty("coverage.unloaded.classes.full.analysis", "true"));
+  public static final int UNLOADED_CLASSES_THREADS = Integer.getInteger("coverage.unloaded.classes.threads", 1);
+  /** Path to the file with cached results of unloaded classes analysis, the cache is disabled when not set. */
+  public static final String UNLOADED_CLASSES_CACHE = System.getProperty("coverage.unloaded.classes.cache");
+  /**
+   * Number of threads that list class path entries and read class files while classes are searched. Classes are still
+   * passed to the consumer on the calling thread in the same order. Class path is scanned sequentially when less than 2.
+   */
+  public static final int CLASS_FINDER_THREADS = Integer.getInteger("coverage.class.finder.threads", 1);
+  /**
+   * Number of threads that load binary reports in the aggregator, reports are still merged in their order.
+   * Reports are loaded sequentially when less than 2 or when thread safe storage is disabled.
+   */
+  public static final int AGGREGATOR_THREADS = Integer.getInteger("coverage.aggregator.threads", 1);
+  /** Merge reports of several processes through a journal of snapshots, which is folded into the data file by a single process. */
+  public static final boolean MERGE_JOURNAL = "true".equals(System.getProperty("coverage.merge.journal", "false"));
   public static final boolean THREAD_SAFE_STORAGE = "true".equals(System.getProperty("idea.coverage.thread-safe.enabled", "true"));
 
+  /** Period of incremental coverage snapshots in milliseconds, snapshots are disabled when not positive. */
+  public static final long SNAPSHOT_PERIOD_MS = Long.getLong("coverage.snapshot.period.ms", 0);
+
+  /**
+   * Period in milliseconds of checks for fully covered classes in sampling mode, which are then retransformed without probes.
+   * Disabled when not positive.
+   */
+  public static final long DEINSTRUMENTATION_PERIOD_MS = Long.getLong("coverage.deinstrumentation.period.ms", 0);
+
+  /**
+   * Maximal number of classes per class loader whose supertypes are cached for frames computation.
+   */
+  public static final int HIERARCHY_CACHE_SIZE = Integer.getInteger("coverage.hierarchy.cache.size", 4096);
+
+  /**
+   * Collect detailed class transformation metrics, which are available through JMX.
+   * @see com.intellij.rt.coverage.instrumentation.TransformationMetrics
+   */
+  public static final boolean TRANSFORMATION_METRICS = "true".equals(System.getProperty("coverage.transformation.metrics", "false"));
+  /** Path to the file the transformation metrics are written to, if set. */
+  public static final String TRANSFORMATION_METRICS_FILE = System.getProperty("coverage.transformation.metrics.file");
+  /** Period of transformation metrics writes in milliseconds, the metrics are written only on shutdown when not positive. */
+  public static final long TRANSFORMATION_METRICS_PERIOD_MS = Long.getLong("coverage.transformation.metrics.period.ms", 0);
+
   public static final boolean IGNORE_PRIVATE_CONSTRUCTOR_OF_UTIL_CLASS = "true".equals(System.getProperty("coverage.ignore.private.constructor.util.class", "false"));
 
   public static final String LOG_LEVEL = System.getProperty("idea.coverage.log.level");
@@ -16,6 +16,8 @@
 
 package com.intellij.rt.coverage.util.classFinder;
 
+import com.intellij.rt.coverage.util.CoverageIOUtil;
+
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -35,6 +37,14 @@ public abstract class ClassEntry {
 
   public abstract InputStream getClassInputStream() throws IOException;
 
+  /**
+   * @return class file bytes or null if the class file is not available
+   */
+  public byte[] getClassBytes() throws IOException {
+    final InputStream is = getClassInputStream();
+    return is == null ? null : CoverageIOUtil.readBytes(is);
+  }
+
   public boolean equals(final Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
@@ -16,6 +16,7 @@
 
 package com.intellij.rt.coverage.util.classFinder;
 
+import com.intellij.rt.coverage.util.ClassNamePatternMatcher;
 import com.intellij.rt.coverage.util.ClassNameUtil;
 
 import java.util.List;
@@ -24,21 +25,37 @@ import java.util.regex.Pattern;
 public interface ClassFilter {
   boolean shouldInclude(String className);
 
-  class PatternFilter implements ClassFilter {
-    private final List<Pattern> myIncludePatterns;
-    private final List<Pattern> myExcludePatterns;
+  /**
+   * Filter that can reject whole packages, so that class path entries skip them without listing their classes.
+   */
+  interface PackageFilter extends ClassFilter {
+    /**
+     * @param packageName non-empty package name, e.g. <code>com.acme</code>
+     * @return false if no class in the package or its subpackages is included
+     */
+    boolean mayIncludePackage(String packageName);
+  }
+
+  class PatternFilter implements PackageFilter {
+    private final ClassNamePatternMatcher myIncludeMatcher;
+    private final ClassNamePatternMatcher myExcludeMatcher;
 
     public PatternFilter(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
-      myIncludePatterns = includePatterns;
-      myExcludePatterns = excludePatterns;
+      myIncludeMatcher = new ClassNamePatternMatcher(includePatterns);
+      myExcludeMatcher = new ClassNamePatternMatcher(excludePatterns);
     }
 
     @Override
     public boolean shouldInclude(String className) {
-      if (ClassNameUtil.matchesPatterns(className, myExcludePatterns)) return false;
+      if (myExcludeMatcher.matches(className)) return false;
       final String outerClassName = ClassNameUtil.getOuterClassName(className);
-      if (ClassNameUtil.matchesPatterns(outerClassName, myIncludePatterns)) return true;
-      return myIncludePatterns.isEmpty();
+      if (myIncludeMatcher.matches(outerClassName)) return true;
+      return myIncludeMatcher.isEmpty();
+    }
+
+    public boolean mayIncludePackage(String packageName) {
+      if (myExcludeMatcher.matchesPackage(packageName)) return false;
+      return myIncludeMatcher.isEmpty() || myIncludeMatcher.mayMatchPackage(packageName);
     }
   }
 }
@@ -17,6 +17,7 @@
 package com.intellij.rt.coverage.util.classFinder;
 
 import com.intellij.rt.coverage.util.ErrorReporter;
+import com.intellij.rt.coverage.util.OptionsUtil;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -32,6 +33,10 @@ import java.util.regex.Pattern;
 public class ClassFinder {
   private final ClassFilter myFilter;
   private final Set<ClassLoader> myClassloaders;
+  /** Class path entries of the matched classes found by the last {@link #iterateMatchedClasses} call. */
+  private volatile Map<String, ClassPathEntry> myClassLocations = Collections.emptyMap();
+  /** Entries scanned by the last {@link #iterateMatchedClasses} call, their archives are kept open until {@link #closeArchives()}. */
+  private volatile Collection<ClassPathEntry> myScannedEntries = Collections.emptyList();
 
   public ClassFinder(List<Pattern> includePatterns, List<Pattern> excludePatterns) {
     this(new ClassFilter.PatternFilter(includePatterns, excludePatterns));
@@ -56,14 +61,48 @@ public class ClassFinder {
     }
   }
 
+  /**
+   * Pass the matched classes to the consumer. The locations of the classes are remembered, so that they can be read
+   * later with {@link #getClassBytes} without searching the class path again.
+   * Archives opened during the scan stay open for these reads, call {@link #closeArchives()} when the classes are not needed anymore.
+   */
   public void iterateMatchedClasses(ClassEntry.Consumer consumer) {
-    for (ClassPathEntry entry : getClassPathEntries()) {
-      try {
-        entry.iterateMatchedClasses(myFilter, consumer);
-      } catch (IOException e) {
-        ErrorReporter.reportError("Error during iterating classes.", e);
+    closeArchives();
+    final Map<String, ClassPathEntry> locations = new HashMap<String, ClassPathEntry>();
+    final Collection<ClassPathEntry> entries = getClassPathEntries();
+    myScannedEntries = entries;
+    if (OptionsUtil.CLASS_FINDER_THREADS > 1) {
+      new ParallelClassPathScanner(OptionsUtil.CLASS_FINDER_THREADS).iterateMatchedClasses(entries, myFilter, consumer, locations);
+    } else {
+      for (ClassPathEntry entry : entries) {
+        try {
+          entry.iterateMatchedClasses(myFilter, new IndexingConsumer(entry, consumer, locations));
+        } catch (IOException e) {
+          ErrorReporter.reportError("Error during iterating classes.", e);
+        }
       }
     }
+    myClassLocations = locations;
+  }
+
+  /**
+   * Read a class found by the last {@link #iterateMatchedClasses} call.
+   *
+   * @return class file bytes or null if the class has not been found
+   */
+  public byte[] getClassBytes(String className) throws IOException {
+    final ClassPathEntry entry = myClassLocations.get(className);
+    return entry == null ? null : entry.getClassBytes(className);
+  }
+
+  /**
+   * Close the archives opened by the last {@link #iterateMatchedClasses} call and by {@link #getClassBytes}.
+   * Classes can still be read after that, the archives are opened again when needed.
+   */
+  public void closeArchives() {
+    for (ClassPathEntry entry : myScannedEntries) {
+      entry.closeArchive();
+    }
   }
 
   // Overriden in IntelliJ
@@ -126,4 +165,26 @@ public class ClassFinder {
   public Set<ClassLoader> getClassloaders() {
     return myClassloaders;
   }
+
+  /**
+   * Remembers the entry of each consumed class. If a class is present in several entries, the first one is used.
+   */
+  static class IndexingConsumer implements ClassEntry.Consumer {
+    private final ClassPathEntry myEntry;
+    private final ClassEntry.Consumer myConsumer;
+    private final Map<String, ClassPathEntry> myLocations;
+
+    IndexingConsumer(ClassPathEntry entry, ClassEntry.Consumer consumer, Map<String, ClassPathEntry> locations) {
+      myEntry = entry;
+      myConsumer = consumer;
+      myLocations = locations;
+    }
+
+    public void consume(ClassEntry classEntry) {
+      if (!myLocations.containsKey(classEntry.getClassName())) {
+        myLocations.put(classEntry.getClassName(), myEntry);
+      }
+      myConsumer.consume(classEntry);
+    }
+  }
 }
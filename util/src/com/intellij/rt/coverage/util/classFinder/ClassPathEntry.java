@@ -29,6 +29,8 @@ import java.util.zip.ZipFile;
  */
 public class ClassPathEntry {
   private final String myClassPathEntry;
+  /** Archive opened by the scan or a lookup, it is kept open until {@link #closeArchive()}. */
+  private ZipFile myZipFile;
 
   // Used in IntelliJ
   @SuppressWarnings("WeakerAccess")
@@ -46,20 +48,65 @@ public class ClassPathEntry {
     processor.iterateMatchedClasses(myClassPathEntry, consumer);
   }
 
-  private static ClassPathEntryProcessor createEntryProcessor(String entry) {
+  /**
+   * @param className fully qualified class name
+   * @return class file bytes or null if the entry does not contain the class
+   */
+  byte[] getClassBytes(String className) throws IOException {
+    final String path = ClassNameUtil.convertToInternalName(className) + CLASS_FILE_SUFFIX;
+    final File file = new File(myClassPathEntry);
+    if (file.isDirectory()) {
+      final File classFile = new File(file, path);
+      if (!classFile.isFile()) return null;
+      final InputStream is = new FileInputStream(classFile);
+      try {
+        return CoverageIOUtil.readBytes(is);
+      } finally {
+        is.close();
+      }
+    }
+    final ZipFile zipFile = getZipFile();
+    final ZipEntry entry = zipFile.getEntry(path);
+    if (entry == null) return null;
+    final InputStream is = zipFile.getInputStream(entry);
+    try {
+      return CoverageIOUtil.readBytes(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private synchronized ZipFile getZipFile() throws IOException {
+    if (myZipFile == null) {
+      myZipFile = new ZipFile(new File(myClassPathEntry));
+    }
+    return myZipFile;
+  }
+
+  /**
+   * Close the archive of this entry if it is open. It is opened again on the next access.
+   */
+  synchronized void closeArchive() {
+    if (myZipFile == null) return;
+    try {
+      myZipFile.close();
+    } catch (IOException ignored) {
+    }
+    myZipFile = null;
+  }
+
+  // processors keep a filter, so they are created per call, as entries may be scanned concurrently
+  private ClassPathEntryProcessor createEntryProcessor(String entry) {
     File file = new File(entry);
     if (file.isDirectory()) {
-      return myDirectoryProcessor;
+      return new DirectoryEntryProcessor();
     }
     if (file.isFile() && (file.getName().endsWith(".jar") || file.getName().endsWith(".zip"))) {
-      return myZipProcessor;
+      return new ZipEntryProcessor(this);
     }
     return null;
   }
 
-  private final static DirectoryEntryProcessor myDirectoryProcessor = new DirectoryEntryProcessor();
-  private final static ZipEntryProcessor myZipProcessor = new ZipEntryProcessor();
-
   private static abstract class AbstractClassPathEntryProcessor implements ClassPathEntryProcessor {
     private ClassFilter myFilter;
 
@@ -69,6 +116,10 @@ public class ClassPathEntry {
     protected final boolean shouldInclude(final String className) {
       return myFilter.shouldInclude(className);
     }
+
+    protected final boolean mayIncludePackage(final String packageName) {
+      return !(myFilter instanceof ClassFilter.PackageFilter) || ((ClassFilter.PackageFilter) myFilter).mayIncludePackage(packageName);
+    }
   }
 
   private interface ClassPathEntryProcessor {
@@ -110,7 +161,10 @@ public class ClassPathEntry {
               }
             }
           } else if (f.isDirectory()) {
-            collectClasses(prefix + name, f, consumer, is);
+            final String packageName = prefix + name;
+            if (mayIncludePackage(packageName)) {
+              collectClasses(packageName, f, consumer, is);
+            }
           }
         }
       }
@@ -122,33 +176,47 @@ public class ClassPathEntry {
   }
 
   private static class ZipEntryProcessor extends AbstractClassPathEntryProcessor {
+    private final ClassPathEntry myEntry;
+
+    private ZipEntryProcessor(ClassPathEntry entry) {
+      myEntry = entry;
+    }
+
     public void iterateMatchedClasses(final String classPathEntry, ClassEntry.Consumer consumer) throws IOException {
-      final ZipFile zipFile = new ZipFile(new File(classPathEntry));
-      try {
-        final InputStream[] is = new InputStream[] {null};
-        Enumeration<? extends ZipEntry> zenum = zipFile.entries();
-        while (zenum.hasMoreElements()) {
-          ZipEntry ze = zenum.nextElement();
-          if (!ze.isDirectory() && ze.getName().endsWith(CLASS_FILE_SUFFIX)) {
-            final String className = ClassNameUtil.convertToFQName(removeClassSuffix(ze.getName()));
-            if (shouldInclude(className)) {
-              is[0] = null;
-              try {
-                final ZipEntry zipEntry = ze;
-                consumer.consume(new ClassEntry(className) {
-                  public InputStream getClassInputStream() throws IOException {
-                    is[0] = zipFile.getInputStream(zipEntry);
-                    return is[0];
-                  }
-                });
-              } finally {
-                CoverageIOUtil.close(is[0]);
-              }
+      // the archive stays open, so that the found classes are read later without opening it again
+      final ZipFile zipFile = myEntry.getZipFile();
+      final InputStream[] is = new InputStream[] {null};
+      // entries of a package usually go one after another, so the package decision is reused
+      String lastPackage = null;
+      boolean lastPackageIncluded = true;
+      Enumeration<? extends ZipEntry> zenum = zipFile.entries();
+      while (zenum.hasMoreElements()) {
+        ZipEntry ze = zenum.nextElement();
+        if (!ze.isDirectory() && ze.getName().endsWith(CLASS_FILE_SUFFIX)) {
+          final int packageEnd = ze.getName().lastIndexOf('/');
+          if (packageEnd > 0) {
+            if (lastPackage == null || !ze.getName().regionMatches(0, lastPackage, 0, packageEnd) || lastPackage.length() != packageEnd) {
+              lastPackage = ze.getName().substring(0, packageEnd);
+              lastPackageIncluded = mayIncludePackage(ClassNameUtil.convertToFQName(lastPackage));
+            }
+            if (!lastPackageIncluded) continue;
+          }
+          final String className = ClassNameUtil.convertToFQName(removeClassSuffix(ze.getName()));
+          if (shouldInclude(className)) {
+            is[0] = null;
+            try {
+              final ZipEntry zipEntry = ze;
+              consumer.consume(new ClassEntry(className) {
+                public InputStream getClassInputStream() throws IOException {
+                  is[0] = zipFile.getInputStream(zipEntry);
+                  return is[0];
+                }
+              });
+            } finally {
+              CoverageIOUtil.close(is[0]);
             }
           }
         }
-      } finally {
-        zipFile.close();
       }
     }
   }
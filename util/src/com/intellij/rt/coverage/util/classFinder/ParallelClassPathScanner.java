@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.intellij.rt.coverage.util.classFinder;
+
+import com.intellij.rt.coverage.util.ErrorReporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans class path entries in a thread pool, while the consumer is called on the calling thread.
+ * <p>
+ * Each entry is listed by a worker, which also reads the bytes of the matched classes, so that jars are inflated
+ * concurrently with the consumer. Classes are passed to the consumer in the same order as in the sequential scan:
+ * entry by entry, in the order of the entries listing. Each entry buffers a limited number of classes,
+ * which limits the memory used by class bytes.
+ */
+class ParallelClassPathScanner {
+  private static final int PREFETCHED_CLASSES_PER_ENTRY = 256;
+  private static final PrefetchedClass END = new PrefetchedClass(null, null, null);
+
+  private final int myThreads;
+  /** Read buffer of each worker, so that only the resulting array is allocated per class. */
+  private final ThreadLocal<byte[]> myBuffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[8192];
+    }
+  };
+
+  ParallelClassPathScanner(int threads) {
+    myThreads = threads;
+  }
+
+  /**
+   * @param locations map to put the entry of each consumed class into
+   */
+  void iterateMatchedClasses(Collection<ClassPathEntry> entries, ClassFilter filter, ClassEntry.Consumer consumer,
+                             Map<String, ClassPathEntry> locations) {
+    final ExecutorService executor = Executors.newFixedThreadPool(myThreads, new WorkerThreadFactory());
+    try {
+      // tasks are started in the same order as they are consumed, so a worker blocked on a full queue never waits for a later entry
+      final List<ClassPathEntry> scannedEntries = new ArrayList<ClassPathEntry>(entries);
+      final List<BlockingQueue<PrefetchedClass>> queues = new ArrayList<BlockingQueue<PrefetchedClass>>();
+      for (ClassPathEntry entry : scannedEntries) {
+        final BlockingQueue<PrefetchedClass> queue = new ArrayBlockingQueue<PrefetchedClass>(PREFETCHED_CLASSES_PER_ENTRY);
+        queues.add(queue);
+        executor.execute(new ScanTask(entry, filter, queue));
+      }
+      for (int i = 0; i < queues.size(); i++) {
+        final ClassEntry.Consumer entryConsumer = new ClassFinder.IndexingConsumer(scannedEntries.get(i), consumer, locations);
+        final BlockingQueue<PrefetchedClass> queue = queues.get(i);
+        PrefetchedClass prefetchedClass;
+        while ((prefetchedClass = queue.take()) != END) {
+          entryConsumer.consume(prefetchedClass);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private byte[] readBytes(InputStream is) throws IOException {
+    byte[] buffer = myBuffers.get();
+    int length = 0;
+    int read;
+    while ((read = is.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length == buffer.length) {
+        final byte[] newBuffer = new byte[2 * buffer.length];
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        buffer = newBuffer;
+        myBuffers.set(buffer);
+      }
+    }
+    final byte[] result = new byte[length];
+    System.arraycopy(buffer, 0, result, 0, length);
+    return result;
+  }
+
+  private class ScanTask implements Runnable {
+    private final ClassPathEntry myEntry;
+    private final ClassFilter myFilter;
+    private final BlockingQueue<PrefetchedClass> myQueue;
+
+    private ScanTask(ClassPathEntry entry, ClassFilter filter, BlockingQueue<PrefetchedClass> queue) {
+      myEntry = entry;
+      myFilter = filter;
+      myQueue = queue;
+    }
+
+    public void run() {
+      try {
+        myEntry.iterateMatchedClasses(myFilter, new ClassEntry.Consumer() {
+          public void consume(ClassEntry classEntry) {
+            PrefetchedClass prefetchedClass;
+            try {
+              final InputStream is = classEntry.getClassInputStream();
+              prefetchedClass = new PrefetchedClass(classEntry.getClassName(), is == null ? null : readBytes(is), null);
+            } catch (IOException e) {
+              // the error is reported when the consumer reads the class
+              prefetchedClass = new PrefetchedClass(classEntry.getClassName(), null, e);
+            }
+            put(prefetchedClass);
+          }
+        });
+        put(END);
+      } catch (CancellationException ignored) {
+      } catch (Throwable e) {
+        ErrorReporter.reportError("Error during iterating classes.", e);
+        try {
+          put(END);
+        } catch (CancellationException ignored) {
+        }
+      }
+    }
+
+    private void put(PrefetchedClass prefetchedClass) {
+      try {
+        myQueue.put(prefetchedClass);
+      } catch (InterruptedException e) {
+        // the scan is cancelled
+        throw new CancellationException();
+      }
+    }
+  }
+
+  private static class PrefetchedClass extends ClassEntry {
+    private final byte[] myBytes;
+    private final IOException myError;
+
+    private PrefetchedClass(String className, byte[] bytes, IOException error) {
+      super(className);
+      myBytes = bytes;
+      myError = error;
+    }
+
+    @Override
+    public InputStream getClassInputStream() throws IOException {
+      if (myError != null) throw myError;
+      return myBytes == null ? null : new ByteArrayInputStream(myBytes);
+    }
+
+    @Override
+    public byte[] getClassBytes() throws IOException {
+      if (myError != null) throw myError;
+      return myBytes;
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger myCounter = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "Coverage class path scanner " + myCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}